@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 
 import name.vbraun.view.write.Page;
@@ -45,7 +46,7 @@ public class PDFExporter {
 		pages.addAll(book.getPages());
 	}
 
-	public void add(LinkedList<Page> page_list) {
+	public void add(List<Page> page_list) {
 		pages.addAll(page_list);
 	}
 
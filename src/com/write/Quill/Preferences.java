@@ -17,6 +17,7 @@ import name.vbraun.view.write.HandwriterView;
 import com.write.Quill.R;
 import com.write.Quill.data.Book.BookIOException;
 import com.write.Quill.data.Bookshelf;
+import com.write.Quill.data.IncrementalBackup;
 import com.write.Quill.data.Storage;
 import com.write.Quill.data.StorageAndroid;
 
@@ -238,7 +239,11 @@ public class Preferences
     		
     		Bookshelf bookshelf = Bookshelf.getBookshelf();
     		try {
-    			bookshelf.importBook(new File(fileName));
+    			File file = new File(fileName);
+    			if (IncrementalBackup.isManifest(file))
+    				bookshelf.restoreBackup(file);
+    			else
+    				bookshelf.importBook(file);
     			finish();
     		} catch (BookIOException e) {
     			Log.e(TAG, "Error loading the backup file.");
@@ -27,8 +27,10 @@ import junit.framework.Assert;
 import com.write.Quill.R;
 import com.write.Quill.artist.ArtistPDF;
 import com.write.Quill.artist.PaperType;
+import com.write.Quill.data.BlobStore;
 import com.write.Quill.data.Book;
 import com.write.Quill.data.Bookshelf;
+import com.write.Quill.data.StartupTrace;
 import com.write.Quill.data.Storage;
 import com.write.Quill.data.StorageAndroid;
 import com.write.Quill.data.Book.BookIOException;
@@ -49,6 +51,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -172,6 +175,20 @@ public class QuillWriterActivity
     	switchToPage(book.currentPage());
     	setKeepScreenOn();
     	UndoManager.setApplication(this);
+    	mView.post(new Runnable() {
+    		@Override
+    		public void run() {
+    			StartupTrace.firstInkReady(getVersionName());
+    		}
+    	});
+    }
+
+    private String getVersionName() {
+    	try {
+    		return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+    	} catch (NameNotFoundException e) {
+    		return "?";
+    	}
     }
 
 
@@ -748,7 +765,7 @@ public class QuillWriterActivity
         if (book != null) {
         	Page p = book.currentPage();
         	if (mView.getPage() == p) {
-        		book.filterChanged();
+        		book.pageTagsChanged(p);
             	TagOverlay overlay = new TagOverlay(getApplicationContext(), 
             			p.getTags(), book.currentPageNumber(), mView.isToolboxOnLeft());
             	mView.setOverlay(overlay);
@@ -826,7 +843,14 @@ public class QuillWriterActivity
     		else {
     			Uri uri = Uri.parse(uriStr);
     			String name = uri.getPath();
-    			mView.setImage(uuid, name, constrain);
+    			BlobStore blobs = Storage.getInstance().getBlobStore();
+    			try {
+    				String hash = blobs.add(new File(name));
+    				mView.setImage(uuid, blobs.getFile(hash), hash, constrain);
+    			} catch (IOException e) {
+    				Log.e(TAG, "Unable to add image to the blob store: " + e.getMessage());
+    				mView.setImage(uuid, name, constrain);
+    			}
     		}
     		break;
     	}
@@ -1,22 +1,32 @@
 package com.write.Quill.bookshelf;
 
 import java.io.File;
+import java.io.IOException;
 
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.write.Quill.ActivityBase;
 import com.write.Quill.QuillWriterActivity;
 import com.write.Quill.R;
+import com.write.Quill.data.BookArchive;
 import com.write.Quill.data.Book.BookIOException;
 import com.write.Quill.data.Bookshelf;
 
 /**
  * This activity is called if the user picks a .quill file with a file manager
+ * 
+ * The archived book is shown without importing it, the user has to confirm
+ * the import. Archives that cannot be read directly (compressed or in the old
+ * format) are imported right away.
  * @author vbraun
  *
  */
@@ -71,12 +81,45 @@ public class ImportBackupActivity extends ActivityBase {
 		finish();
 	}
 	
+	/**
+	 * Show the archived book
+	 * @return Whether the archive could be read
+	 */
+	private boolean showPreview() {
+		BookArchive archive;
+		try {
+			archive = BookArchive.open(file);
+		} catch (IOException e) {
+			Log.d(TAG, "No preview: " + e.getMessage());
+			return false;
+		}
+		((ImageView) findViewById(R.id.import_backup_thumbnail)).setImageBitmap(archive.getThumbnail());
+		((TextView) findViewById(R.id.import_backup_title)).setText(archive.getTitle());
+		String pages = getString(R.string.import_backup_pages, archive.getPageCount());
+		((TextView) findViewById(R.id.import_backup_summary)).setText(pages + "\n" + archive.getSummary());
+		findViewById(R.id.import_backup_preview).setVisibility(View.VISIBLE);
+		findViewById(R.id.import_backup_label).setVisibility(View.INVISIBLE);
+		findViewById(R.id.import_backup_progress).setVisibility(View.GONE);
+		Button button = (Button) findViewById(R.id.import_backup_import);
+		button.setVisibility(View.VISIBLE);
+		button.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				v.setVisibility(View.GONE);
+				findViewById(R.id.import_backup_label).setVisibility(View.VISIBLE);
+				findViewById(R.id.import_backup_progress).setVisibility(View.VISIBLE);
+				handler.post(importRunnable);
+			}
+		});
+		return true;
+	}
+	
 	@Override
 	protected void onResume() {
 		super.onResume();
 		if (file == null) 
 			finish();
-		else
+		else if (!showPreview())
 			handler.postDelayed(importRunnable, 1000);
 	}
 }
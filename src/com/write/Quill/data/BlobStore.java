@@ -0,0 +1,343 @@
+package com.write.Quill.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import name.vbraun.view.write.GraphicsImage;
+import name.vbraun.view.write.Page;
+
+import android.util.Log;
+
+/**
+ * Content-addressed store for images
+ *
+ * Image files are stored once in the blob directory, named after the SHA-1
+ * hash of their content. Pages refer to them by the hash (see
+ * {@link GraphicsImage#getHash()}), so the same picture in several pages or
+ * books is only stored once and duplicating a page does not copy the file.
+ *
+ * For every book, the number of references to each blob is recorded when the
+ * book is saved. Blobs that are not referenced by any book are deleted by
+ * {@link #collect()}, except for the blobs that were added since the app was
+ * started and are not yet in any saved book.
+ *
+ * Images of books written by older versions are files in the book directory
+ * named after the image UUID. They are copied into the store when the book is
+ * loaded, see {@link #adopt(Book)}. The original file is only deleted once the
+ * pages referring to the copy and the references are saved.
+ *
+ * @author vbraun
+ *
+ */
+public class BlobStore {
+	private static final String TAG = "BlobStore";
+	private static final String DIRECTORY = "blobs";
+	private static final String REFERENCES_FILE = "references.quill_data";
+	private static final int VERSION = 1;
+
+	private final File dir;
+	private final File referencesFile;
+
+	// book UUID -> (hash -> number of images), guarded by the object lock
+	private final HashMap<UUID, HashMap<String, Integer>> references =
+			new HashMap<UUID, HashMap<String, Integer>>();
+
+	// added but not yet referenced by a saved book
+	private final HashSet<String> pending = new HashSet<String>();
+
+	// false if the references file could not be read, then nothing is deleted
+	private boolean referencesValid = true;
+
+	protected BlobStore(Storage storage) {
+		dir = new File(storage.getFilesDir(), DIRECTORY);
+		referencesFile = new File(dir, REFERENCES_FILE);
+		try {
+			loadReferences();
+		} catch (FileNotFoundException e) {
+			Log.d(TAG, "No blob references");
+		} catch (IOException e) {
+			// without references, nothing must be collected
+			Log.e(TAG, "Error reading blob references: "+e.getMessage());
+			references.clear();
+			referencesValid = false;
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @param hash
+	 * @return The file of the blob, which need not exist
+	 */
+	public File getFile(String hash) {
+		return new File(dir, GraphicsImage.getBlobFileName(hash));
+	}
+
+	/**
+	 * Whether the file name is that of a blob in the store
+	 * @param name
+	 */
+	public static boolean isBlobFileName(String name) {
+		int pos = name.indexOf('.');
+		if (pos != 40) return false;
+		for (int i=0; i<pos; i++)
+			if (Character.digit(name.charAt(i), 16) < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Move a file into the store. If the store already has a blob with the same
+	 * content, the file is deleted instead.
+	 * @param file
+	 * @return The hash of the file content
+	 * @throws IOException
+	 */
+	public String add(File file) throws IOException {
+		String hash = hash(file);
+		File blob = getFile(hash);
+		synchronized (this) {
+			pending.add(hash);
+			if (blob.exists()) {
+				file.delete();
+				return hash;
+			}
+			if (!dir.isDirectory() && !dir.mkdir())
+				throw new IOException("Error creating blob directory");
+			if (!file.renameTo(blob))
+				throw new IOException("Unable to move image into the blob store");
+		}
+		return hash;
+	}
+
+	/**
+	 * Copy a file into the store, the file itself is not changed
+	 * @param file
+	 * @return The hash of the file content
+	 * @throws IOException
+	 */
+	private String addCopy(File file) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdir())
+			throw new IOException("Error creating blob directory");
+		MessageDigest digest = newDigest();
+		File tmp = new File(dir, UUID.randomUUID().toString() + ".tmp");
+		try {
+			IncrementalBackup.copy(file, tmp, digest);
+			String hash = toHex(digest);
+			File blob = getFile(hash);
+			synchronized (this) {
+				pending.add(hash);
+				if (!blob.exists() && !tmp.renameTo(blob))
+					throw new IOException("Unable to copy image into the blob store");
+			}
+			return hash;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return A new digest for the content hash
+	 */
+	protected static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+	}
+
+	/**
+	 * @return The content hash as hex string
+	 */
+	protected static String toHex(MessageDigest digest) {
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : digest.digest())
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte data[] = new byte[8192];
+			int count;
+			while ((count = in.read(data)) != -1)
+				digest.update(data, 0, count);
+		} finally {
+			in.close();
+		}
+		return toHex(digest);
+	}
+
+	/**
+	 * Copy the images of a book into the store that are still files in the book
+	 * directory. Pages whose image records change are touched so they are saved 
+	 * again. The BookSaver deletes the old files after saving the pages.
+	 * @param book A book that was loaded for editing
+	 */
+	protected void adopt(Book book) {
+		for (Page page : book.getPages()) {
+			boolean changed = false;
+			for (GraphicsImage image : page.images) {
+				File file = image.getFile();
+				if (file == null || !file.exists() || dir.equals(file.getParentFile()))
+					continue;
+				try {
+					String hash = addCopy(file);
+					changed |= !hash.equals(image.getHash());
+					image.fileMoved(getFile(hash), hash);
+				} catch (IOException e) {
+					Log.e(TAG, "Error adding image to the blob store: "+e.getMessage());
+				}
+			}
+			if (changed)
+				page.touch();
+		}
+	}
+
+	/**
+	 * Count the references of the pages to blobs in the store
+	 * @param pages
+	 * @return A map hash -> number of images
+	 */
+	protected static HashMap<String, Integer> countReferences(Iterable<Page> pages) {
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (Page page : pages)
+			for (GraphicsImage image : page.images) {
+				String hash = image.getHash();
+				if (hash == null) continue;
+				Integer n = counts.get(hash);
+				counts.put(hash, n == null ? 1 : n + 1);
+			}
+		return counts;
+	}
+
+	/**
+	 * The blobs referenced by a saved book
+	 * @param book
+	 * @return The hashes
+	 */
+	public synchronized Set<String> getReferences(UUID book) {
+		HashMap<String, Integer> counts = references.get(book);
+		if (counts == null)
+			return new HashSet<String>();
+		return new HashSet<String>(counts.keySet());
+	}
+
+	/**
+	 * Replace the references of a book. Called after the book is saved.
+	 * @param book
+	 * @param counts The references as returned by countReferences(), or null if the book was deleted
+	 */
+	protected synchronized void setReferences(UUID book, Map<String, Integer> counts) {
+		HashMap<String, Integer> old = (counts == null) ?
+				references.remove(book) : references.put(book, new HashMap<String, Integer>(counts));
+		if (counts != null)
+			pending.removeAll(counts.keySet());
+		if (old == null ? counts == null || counts.isEmpty() : old.equals(counts))
+			return;
+		saveReferences();
+	}
+
+	/**
+	 * Delete the blobs that are not referenced by any book
+	 */
+	protected void collect() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		HashMap<String, Integer> total = new HashMap<String, Integer>();
+		synchronized (this) {
+			if (!referencesValid)
+				return;
+			for (HashMap<String, Integer> counts : references.values())
+				for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+					Integer n = total.get(entry.getKey());
+					total.put(entry.getKey(), n == null ? entry.getValue() : n + entry.getValue());
+				}
+			for (File file : files) {
+				String name = file.getName();
+				if (!isBlobFileName(name)) continue;
+				String hash = name.substring(0, 40);
+				Integer n = total.get(hash);
+				if ((n != null && n > 0) || pending.contains(hash)) continue;
+				Log.d(TAG, "Deleting unreferenced blob " + name);
+				file.delete();
+			}
+		}
+	}
+
+	private void loadReferences() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(referencesFile)));
+		try {
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown blob references version");
+			int nBooks = in.readInt();
+			for (int i=0; i<nBooks; i++) {
+				UUID book = UUID.fromString(in.readUTF());
+				int n = in.readInt();
+				HashMap<String, Integer> counts = new HashMap<String, Integer>();
+				for (int j=0; j<n; j++) {
+					String hash = in.readUTF();
+					counts.put(hash, in.readInt());
+				}
+				references.put(book, counts);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void saveReferences() {
+		if (!referencesValid)
+			return;
+		if (!dir.isDirectory() && !dir.mkdir()) {
+			Log.e(TAG, "Error creating blob directory");
+			return;
+		}
+		File tmp = new File(referencesFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(VERSION);
+				out.writeInt(references.size());
+				for (Map.Entry<UUID, HashMap<String, Integer>> book : references.entrySet()) {
+					out.writeUTF(book.getKey().toString());
+					out.writeInt(book.getValue().size());
+					for (Map.Entry<String, Integer> entry : book.getValue().entrySet()) {
+						out.writeUTF(entry.getKey());
+						out.writeInt(entry.getValue());
+					}
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(referencesFile))
+				throw new IOException("Unable to rename blob references");
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing blob references: "+e.getMessage());
+			tmp.delete();
+		}
+	}
+}
@@ -1,27 +1,45 @@
 package com.write.Quill.data;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import com.write.Quill.BookModifiedListener;
 import com.write.Quill.data.Bookshelf.BookPreview;
 import com.write.Quill.data.TagManager.TagSet;
 
+import name.vbraun.view.write.GraphicsImage;
 import name.vbraun.view.write.Page;
+import name.vbraun.view.write.PageContentCache;
 
 import junit.framework.Assert;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.text.format.Time;
 import android.util.Log;
 
@@ -98,7 +116,10 @@ public class Book {
 	protected UUID uuid;
 
 	// pages is never empty
-	protected final LinkedList<Page> pages = new LinkedList<Page>();
+	protected final PageList pages = new PageList();
+
+	// number of pages in the stored book, larger than pages.size() for truncated previews
+	protected int storedPageCount = 0;
 	private TagSet filter = tagManager.newTagSet();
 	protected int currentPage = 0;
 
@@ -115,27 +136,47 @@ public class Book {
 	// unset this to ensure that the book is never saved (truncated previews, for example)
 	protected boolean allowSave = false;
 
-	// filteredPages is never empty
-	protected final LinkedList<Page> filteredPages = new LinkedList<Page>();
+	// records changes between saves, created when the book is loaded or first saved
+	private Journal journal = null;
 
-	public LinkedList<Page> getFilteredPages() {
-		return filteredPages;
+	// the files of a preview from a pack or archive, see closePreview()
+	private TemporaryDirectory previewDirectory = null;
+
+	// the pages that are being loaded in the background, see finishLoading()
+	private FutureTask<PageList> remainingPages = null;
+	private Callable<PageList> remainingPagesLoader = null;
+	// the remaining pages could not be loaded, saving would delete them
+	private boolean loadIncomplete = false;
+	// the position of the current page and the number of pages while loading
+	private int loadingPosition, loadingPageCount;
+	
+	private Journal getJournal(BookDirectory dir) {
+		if (journal == null) {
+			journal = new Journal(dir);
+			for (Page page : pages)
+				page.setJournal(journal);
+		}
+		return journal;
 	}
 
-	public LinkedList<Page> getPages() {
-		return pages;
+	// filteredPages is never empty, in the same order as pages
+	protected final PageList filteredPages = new PageList();
+
+	public PageList getFilteredPages() {
+		finishLoading();
+		return filteredPages;
 	}
 
-	// mark all subsequent pages as changed so that they are saved again
-	private void touchAllSubsequentPages(int fromPage) {
-		for (int i = fromPage; i < pages.size(); i++)
-			getPage(i).touch();
+	public PageList getPages() {
+		finishLoading();
+		return pages;
 	}
 
 	// Call this whenever the filter changed
 	// will ensure that there is at least one page matching the filter
 	// but will not change the current page (which need not match).
 	public void filterChanged() {
+		finishLoading();
 		Page curr = currentPage();
 		updateFilteredPages();
 		Assert.assertTrue("current page must not change", curr == currentPage());
@@ -151,6 +192,37 @@ public class Book {
 		}
 	}
 
+	// Call this when the tags of a single page changed, the filter must be the same
+	public void pageTagsChanged(Page page) {
+		if (remainingPages != null)
+			return;  // the filtered pages are updated when loading finishes
+		boolean matches = pageMatchesFilter(page);
+		if (matches == filteredPages.contains(page))
+			return;
+		if (matches)
+			filteredPages.add(filteredPosition(pages.indexOf(page)), page);
+		else
+			filteredPages.remove(page);
+	}
+
+	/**
+	 * Binary search in the filtered pages 
+	 * @param position A position in pages
+	 * @return The position in filteredPages of the first page at or after the given position
+	 */
+	private int filteredPosition(int position) {
+		int low = 0;
+		int high = filteredPages.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (pages.indexOf(filteredPages.get(mid)) < position)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
 	// remove empty pages as far as possible
 	private void removeEmptyPages() {
 		Page curr = currentPage();
@@ -195,25 +267,36 @@ public class Book {
 	}
 	
 	public Page getPage(int n) {
+		finishLoading();
 		return pages.get(n);
 	}
 
 	public int getPageNumber(Page page) {
+		finishLoading();
 		return pages.indexOf(page);
 	}
 
 	// to be called from the undo manager
+	// The page order is only stored in the index, the other pages are not saved again.
 	public void addPage(Page page, int position) {
+		finishLoading();
 		Assert.assertFalse("page already in book", pages.contains(page));
-		touchAllSubsequentPages(position);
 		pages.add(position, page);
-		updateFilteredPages();
+		page.touch(); // the page file may have been deleted
+		if (journal != null) {
+			page.setJournal(journal);
+			page.setCacheOwner(this);
+			journal.pageAdded(page, position);
+		}
+		if (pageMatchesFilter(page))
+			filteredPages.add(filteredPosition(position), page);
 		currentPage = position;
 		modified = true;
 	}
 
 	// to be called from the undo manager
 	public void removePage(Page page, int position) {
+		finishLoading();
 		Assert.assertTrue("page not in book", getPage(position) == page);
 		int pos = filteredPages.indexOf(page);
 		if (pos >= 0) {
@@ -234,8 +317,11 @@ public class Book {
 				Assert.fail("Cannot create empty book");
 		}
 		pages.remove(position);
-		updateFilteredPages();
-		touchAllSubsequentPages(position);
+		if (journal != null) {
+			page.setJournal(null);
+			journal.pageRemoved(page);
+		}
+		filteredPages.remove(page);
 		currentPage = pos;
 		modified = true;
 		Log.d(TAG, "Removed page " + position + ", current = " + currentPage);
@@ -269,6 +355,8 @@ public class Book {
 	}
 
 	public int currentPageNumber() {
+		if (remainingPages != null)
+			return loadingPosition;
 		return currentPage;
 	}
 	
@@ -279,19 +367,24 @@ public class Book {
 	}
 
 	public void setCurrentPage(Page page) {
+		finishLoading();
 		currentPage = pages.indexOf(page);
 		Assert.assertTrue(currentPage >= 0);
 	}
 
 	public int pagesSize() {
+		if (remainingPages != null)
+			return loadingPageCount;
 		return pages.size();
 	}
 
 	public int filteredPagesSize() {
+		finishLoading();
 		return filteredPages.size();
 	}
 
 	public Page getFilteredPage(int position) {
+		finishLoading();
 		return filteredPages.get(position);
 	}
 
@@ -299,6 +392,7 @@ public class Book {
 	// the book always has at least one page.
 	// deleting the last page is only clearing it etc.
 	public void deletePage() {
+		finishLoading();
 		Log.d(TAG, "delete_page() " + currentPage + "/" + pages.size());
 		Page page = currentPage();
 		if (pages.size() == 1) {
@@ -308,75 +402,56 @@ public class Book {
 	}
 
 	public Page lastPage() {
+		finishLoading();
 		Page last = filteredPages.getLast();
 		currentPage = pages.indexOf(last);
 		return last;
 	}
 
 	public Page lastPageUnfiltered() {
+		finishLoading();
 		currentPage = pages.size() - 1;
 		return pages.get(currentPage);
 	}
 
 	public Page nextPage() {
+		finishLoading();
 		int pos = filteredPages.indexOf(currentPage());
-		Page next = null;
-		if (pos >= 0) {
-			ListIterator<Page> iter = filteredPages.listIterator(pos);
-			iter.next(); // == currentPage()
-			if (iter.hasNext())
-				next = iter.next();
-		} else {
-			ListIterator<Page> iter = pages.listIterator(currentPage);
-			iter.next(); // == currentPage()
-			while (iter.hasNext()) {
-				Page p = iter.next();
-				if (pageMatchesFilter(p)) {
-					next = p;
-					break;
-				}
-			}
-		}
-		if (next == null)
+		if (pos >= 0)
+			pos += 1;
+		else
+			pos = filteredPosition(currentPage);
+		if (pos >= filteredPages.size())
 			return currentPage();
+		Page next = filteredPages.get(pos);
 		currentPage = pages.indexOf(next);
 		Assert.assertTrue(currentPage >= 0);
 		return next;
 	}
 
 	public Page previousPage() {
+		finishLoading();
 		int pos = filteredPages.indexOf(currentPage());
-		Page prev = null;
-		if (pos >= 0) {
-			ListIterator<Page> iter = filteredPages.listIterator(pos);
-			if (iter.hasPrevious())
-				prev = iter.previous();
-			if (prev != null)
-				Log.d(TAG, "Prev " + pos + " " + pageMatchesFilter(prev));
-		} else {
-			ListIterator<Page> iter = pages.listIterator(currentPage);
-			while (iter.hasPrevious()) {
-				Page p = iter.previous();
-				if (pageMatchesFilter(p)) {
-					prev = p;
-					break;
-				}
-			}
-		}
-		if (prev == null)
+		if (pos < 0)
+			pos = filteredPosition(currentPage);
+		pos -= 1;
+		if (pos < 0)
 			return currentPage();
+		Page prev = filteredPages.get(pos);
 		currentPage = pages.indexOf(prev);
 		Assert.assertTrue(currentPage >= 0);
 		return prev;
 	}
 
 	public Page nextPageUnfiltered() {
+		finishLoading();
 		if (currentPage + 1 < pages.size())
 			currentPage += 1;
 		return pages.get(currentPage);
 	}
 
 	public Page previousPageUnfiltered() {
+		finishLoading();
 		if (currentPage > 0)
 			currentPage -= 1;
 		return pages.get(currentPage);
@@ -385,6 +460,7 @@ public class Book {
 	// inserts a page at position and makes it the current page
 	// empty pages are removed
 	public Page insertPage(Page template, int position) {
+		finishLoading();
 		Page new_page;
 		if (template != null)
 			new_page = Page.emptyWithStyleOf(template);
@@ -399,6 +475,7 @@ public class Book {
 	}
 
 	public Page duplicatePage() {
+		finishLoading();
 		Page new_page;
 		Storage storage = Storage.getInstance();
 		BookDirectory dir = storage.getBookDirectory(uuid);
@@ -411,29 +488,37 @@ public class Book {
 	}
 	
 	public Page insertPage() {
+		finishLoading();
 		return insertPage(currentPage(), currentPage + 1);
 	}
 
 	public Page insertPageAtEnd() {
+		finishLoading();
 		return insertPage(currentPage(), pages.size());
 	}
 
 	public boolean isFirstPage() {
+		if (remainingPages != null && getFilter().size() == 0)
+			return isFirstPageUnfiltered();
+		finishLoading();
 		if (filteredPages.isEmpty()) return false;
 		return currentPage() == filteredPages.getFirst();
 	}
 
 	public boolean isLastPage() {
+		if (remainingPages != null && getFilter().size() == 0)
+			return isLastPageUnfiltered();
+		finishLoading();
 		if (filteredPages.isEmpty()) return false;
 		return currentPage() == filteredPages.getLast();
 	}
 
 	public boolean isFirstPageUnfiltered() {
-		return currentPage == 0;
+		return currentPageNumber() == 0;
 	}
 
 	public boolean isLastPageUnfiltered() {
-		return currentPage + 1 == pages.size();
+		return currentPageNumber() + 1 == pagesSize();
 	}
 
 	// ///////////////////////////////////////////////////
@@ -480,7 +565,7 @@ public class Book {
 	 */
 	protected void loadingFinishedHook() {
 		makeCurrentPageConsistent();
-		filterChanged();
+		updateFilteredPages();
 	}
 	
 	////////////////////////////////////////
@@ -489,11 +574,30 @@ public class Book {
 
 	// Loads the book. This is the complement to the save() method
 	public Book(Storage storage, UUID uuid) {
+		this(storage, uuid, true);
+	}
+	
+	/**
+	 * Load the book
+	 * @param storage
+	 * @param uuid
+	 * @param staged Whether to load the current page first and the other pages 
+	 *               on the background thread, see loadCurrentPageFirst()
+	 */
+	protected Book(Storage storage, UUID uuid, boolean staged) {
 		allowSave = true;
 		this.uuid = uuid;
+		BookSaver.flush(uuid);
 		BookDirectory dir = storage.getBookDirectory(uuid);
 		try {
-			doLoadBookFromDirectory(dir, -1);
+			synchronized (storage) {
+				storage.unpackBook(uuid);
+				// the book is in use, see Storage.packUnusedBooks()
+				dir.setLastModified(System.currentTimeMillis());
+			}
+			doLoadBookFromDirectory(dir, -1, staged);
+			if (remainingPages == null)
+				storage.getBlobStore().adopt(this);
 		} catch (BookLoadException e) {
 			storage.LogError(TAG, e.getLocalizedMessage());
 		} catch (EOFException e) {
@@ -508,9 +612,31 @@ public class Book {
 	public Book(Storage storage, UUID uuid, int pageLimit) {
 		allowSave = false;
 		this.uuid = uuid;
+		BookSaver.flush(uuid);
 		BookDirectory dir = storage.getBookDirectory(uuid);
 		try {
-			doLoadBookFromDirectory(dir, pageLimit);
+			synchronized (storage) {  // the book is not packed or unpacked meanwhile
+				if (storage.isBookPacked(uuid))
+					doLoadBookFromPack(storage, pageLimit);
+				else
+					doLoadBookFromDirectory(dir, pageLimit, false);
+			}
+		} catch (BookLoadException e) {
+			storage.LogError(TAG, e.getLocalizedMessage());
+		} catch (EOFException e) {
+			storage.LogError(TAG, "Truncated data file");
+		} catch (IOException e) {
+			storage.LogError(TAG, e.getLocalizedMessage());
+		}
+		loadingFinishedHook();
+	}
+
+	// Load a truncated preview of an archived book, see BookArchive
+	protected Book(Storage storage, BookArchive archive, int pageLimit) {
+		allowSave = false;
+		this.uuid = archive.getUUID();
+		try {
+			doLoadBookFromArchive(storage, archive, pageLimit);
 		} catch (BookLoadException e) {
 			storage.LogError(TAG, e.getLocalizedMessage());
 		} catch (EOFException e) {
@@ -528,18 +654,25 @@ public class Book {
 	}
 
 	// save data internally. To load, use the constructor.
+	// The files are written in the background, see BookSaver.
 	protected void save(Storage storage) {
 		Assert.assertTrue(allowSave);
+		finishLoading();
+		if (loadIncomplete)
+			return;  // would delete the pages that are not loaded
 		BookDirectory dir = storage.getBookDirectory(getUUID());
+		Bookshelf bookshelf = Bookshelf.getBookshelf();
 		try {
-			doSaveBookInDirectory(dir);
-		} catch (BookSaveException e ) {
-			storage.LogError(TAG, e.getLocalizedMessage());
+			doSaveBookInDirectory(dir, bookshelf);
+			markAsSaved();  // BookSaver marks the pages as modified again if writing fails
 		} catch (IOException e ) {
 			storage.LogError(TAG, e.getLocalizedMessage());
 		}
-		markAsSaved();
-		Bookshelf.getBookshelf().reloadPreview(this);
+		if (bookshelf.getPreview(this) == null) {
+			// new books must be in the preview list right away
+			BookSaver.flush(uuid);
+			bookshelf.reloadPreview(uuid);
+		}
 	}
 	
 	/**
@@ -551,49 +684,281 @@ public class Book {
 			page.markAsSaved();
 	}
 	
-	private void doLoadBookFromDirectory(BookDirectory dir, int pageLimit) throws BookLoadException, IOException {
+	private void doLoadBookFromDirectory(BookDirectory dir, int pageLimit, boolean staged) throws BookLoadException, IOException {
 		if (!dir.isDirectory())
 			throw new BookLoadException("No such directory: "+dir.toString());
+		Journal journal = new Journal(dir);
+		LinkedList<Journal.Record> records = journal.load(allowSave);
 		LinkedList<UUID> pageUUIDs = loadIndex(dir);
-
-		// add  remaining page uuids from files in dir 
+		if (staged && loadCurrentPageFirst(dir, journal, records, pageUUIDs))
+			return;
+		recoverPages(dir, pageUUIDs);
+		pages.clear();
+		storedPageCount = pageUUIDs.size();
+		if (pageLimit >= 0 && pageUUIDs.size() > pageLimit)
+			pageUUIDs = new LinkedList<UUID>(pageUUIDs.subList(0, pageLimit));
+		loadPages(pages, pageUUIDs, dir, null);
+		journal.replay(this, pages, records, pageLimit < 0);
+		if (allowSave) {
+			this.journal = journal;
+			for (Page page : pages) {
+				page.setJournal(journal);
+				page.setCacheOwner(this);
+			}
+		}
+	}
+	
+	/**
+	 * Add the page files that are missing in the index
+	 */
+	private void recoverPages(BookDirectory dir, LinkedList<UUID> pageUUIDs) {
 		LinkedList<UUID> pageUUIDsInDir = dir.listPages();
 		pageUUIDsInDir.removeAll(pageUUIDs);
 		if (!pageUUIDsInDir.isEmpty()) {
 			pageUUIDs.addAll(pageUUIDsInDir);
 			Storage.getInstance().LogError(TAG, "I recovered pages missing in notebook index");
 		}
-		
+	}
+	
+	/**
+	 * Load only the current page, so it can be shown right away. The other 
+	 * pages are loaded on the background thread and added to the book when 
+	 * they are first needed, see finishLoading(). Until then, the book 
+	 * consists of the current page only.
+	 * @return Whether the book is loaded this way. If not, nothing was changed.
+	 */
+	private boolean loadCurrentPageFirst(final BookDirectory dir, final Journal journal, 
+			final LinkedList<Journal.Record> records, final LinkedList<UUID> pageUUIDs) throws IOException {
+		if (currentPage < 0 || currentPage >= pageUUIDs.size())
+			return false;
+		UUID currentUUID = pageUUIDs.get(currentPage);
+		if (!getPageFile(dir, currentUUID).exists())
+			return false;
+		final Page current = loadPage(currentUUID, dir);
+		if (!current.getUUID().equals(currentUUID))
+			return false;
+		LinkedList<Journal.Record> currentRecords = Journal.extractPage(records, currentUUID);
+		if (currentRecords == null)
+			return false;  // the journal adds or removes the current page
 		pages.clear();
-		for (UUID uuid : pageUUIDs) {
-			if (pageLimit >=0 && pages.size() >= pageLimit) return;
-			loadPage(uuid, dir);
+		pages.add(current);
+		journal.replay(this, pages, currentRecords, false);
+		this.journal = journal;
+		current.setJournal(journal);
+		current.setCacheOwner(this);
+		storedPageCount = loadingPageCount = pageUUIDs.size();
+		loadingPosition = currentPage;
+		currentPage = 0;
+		StartupTrace.mark("Current page loaded");
+		remainingPagesLoader = new Callable<PageList>() {
+			@Override
+			public PageList call() throws IOException {
+				recoverPages(dir, pageUUIDs);
+				PageList all = new PageList();
+				loadPages(all, pageUUIDs, dir, current);
+				journal.replay(Book.this, all, records, true);
+				StartupTrace.mark("Remaining pages loaded");
+				return all;
+			}
+		};
+		remainingPages = new FutureTask<PageList>(remainingPagesLoader) {
+			@Override
+			protected void done() {
+				final FutureTask<PageList> task = this;
+				// put the pages into the book on the UI thread as soon as they are loaded
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (remainingPages == task)
+							finishLoading();
+					}
+				});
+			}
+		};
+		// not on the startup executor, the pages must not wait for the previews
+		remainingPagesExecutor.execute(remainingPages);
+		return true;
+	}
+	
+	// loads the remaining pages of staged books, see loadCurrentPageFirst()
+	private static final ExecutorService remainingPagesExecutor = newBackgroundExecutor(1);
+	private static final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Wait until the remaining pages are loaded (see loadCurrentPageFirst()) 
+	 * and put them into the book. Does nothing if the book is completely loaded.
+	 * This happens on the UI thread right after loading finished, so it only 
+	 * waits if the pages are needed before. If the background thread did not
+	 * start loading yet, they are loaded on this thread instead. If loading 
+	 * failed in the background, it is tried again on this thread. If that 
+	 * fails, too, the book is not saved any more.
+	 */
+	private void finishLoading() {
+		if (remainingPages == null)
+			return;
+		FutureTask<PageList> future = remainingPages;
+		Callable<PageList> loader = remainingPagesLoader;
+		remainingPages = null;
+		remainingPagesLoader = null;
+		Page current = currentPage();
+		Storage storage = Storage.getInstance();
+		PageList all = null;
+		try {
+			future.run();  // does nothing if already started
+			all = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			storage.LogError(TAG, "Interrupted while loading pages");
+		} catch (ExecutionException e) {
+			storage.LogError(TAG, e.getCause().getLocalizedMessage());
+		}
+		if (all == null && !Thread.currentThread().isInterrupted())
+			try {
+				all = loader.call();
+			} catch (Exception e) {
+				storage.LogError(TAG, e.getLocalizedMessage());
+			}
+		if (all == null) {
+			storage.LogError(TAG, "Unable to load all pages, the book will not be saved");
+			loadIncomplete = true;
+		} else {
+			pages.clear();
+			pages.addAll(all);
+		}
+		currentPage = pages.indexOf(current);
+		for (Page page : pages) {
+			page.setJournal(journal);
+			page.setCacheOwner(this);
 		}
+		if (!loadIncomplete)
+			storage.getBlobStore().adopt(this);
+		makeCurrentPageConsistent();
+		updateFilteredPages();
 	}
 	
-	private void doSaveBookInDirectory(BookDirectory dir) throws BookSaveException, IOException {
-		if (!dir.isDirectory() && !dir.mkdir())
-			throw new BookSaveException("Error creating directory "+dir.toString());
-		saveIndex(dir);
-		LinkedList<UUID> pageUUIDsInDir = dir.listPages();
-		LinkedList<UUID> blobUUIDsInDir = dir.listBlobs();
-		for (Page page : getPages()) {
-			pageUUIDsInDir.remove(page.getUUID());
-			blobUUIDsInDir.removeAll(page.getBlobUUIDs());
-			if (!page.isModified())	continue;
-			savePage(page, dir);
+	/**
+	 * To be called when the book is no longer used. Its pages are removed 
+	 * from the {@link PageContentCache}, so they can be garbage collected,
+	 * and its journal is folded into the page files in the background.
+	 */
+	public void close() {
+		if (remainingPages != null) {
+			remainingPages.cancel(false);
+			remainingPages = null;
+			remainingPagesLoader = null;
 		}
-
-		for (UUID unused: pageUUIDsInDir) {
-			File file = dir.getFile(unused);
-			Log.d(TAG, "Deleteing unusued page file: "+file.toString());
-			file.delete();
+		for (Page page : pages)
+			page.setCacheOwner(null);
+		// pages that were removed, but may still be in the undo history
+		PageContentCache.removeAll(this);
+		if (journal != null)
+			BookSaver.closed(uuid, journal);
+	}
+	
+	/**
+	 * Delete the temporary files of a preview that was loaded from a pack or 
+	 * archive. Its images can no longer be drawn afterwards.
+	 */
+	protected void closePreview() {
+		if (previewDirectory == null)
+			return;
+		previewDirectory.deleteAll();
+		previewDirectory = null;
+	}
+	
+	/**
+	 * Load the first pages of a packed book without unpacking it
+	 */
+	private void doLoadBookFromPack(Storage storage, int pageLimit) throws BookLoadException, IOException {
+		BookPack pack = new BookPack(storage.getBookPackFile(uuid));
+		try {
+			LinkedList<UUID> pageUUIDs = loadIndex(pack.openIndex());
+			storedPageCount = pageUUIDs.size();
+			if (pageLimit >= 0 && pageUUIDs.size() > pageLimit)
+				pageUUIDs = new LinkedList<UUID>(pageUUIDs.subList(0, pageLimit));
+			// images are extracted only if the pages have any
+			UUID blobDirUUID = UUID.randomUUID();
+			File blobDir = new File(storage.getFilesDir(), Storage.TEMPORARY_DIRECTORY_PREFIX + blobDirUUID);
+			LinkedList<UUID> blobUUIDs = new LinkedList<UUID>();
+			pages.clear();
+			for (UUID uuid : pageUUIDs) {
+				InputStream in = pack.openPage(uuid);
+				if (in == null)
+					throw new BookLoadException("Missing page in book pack");
+				CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+				Page page = new Page(new DataInputStream(checked), tagManager, blobDir);
+				page.setContentVersion(checked.getChecksum().getValue());
+				blobUUIDs.addAll(page.getBlobUUIDs());
+				addLoadedPage(pages, uuid, page);
+			}
+			if (!blobUUIDs.isEmpty()) {
+				previewDirectory = new TemporaryDirectory(storage, blobDirUUID);
+				pack.extractBlobs(blobUUIDs, previewDirectory);
+			}
+		} finally {
+			pack.close();
 		}
-		for (UUID unused: blobUUIDsInDir) {
-			File file = dir.getFile(unused);
-			Log.d(TAG, "Deleteing unusued blob file: "+file.toString());
-			file.delete();
+	}
+	
+	/**
+	 * Load the first pages of an archived book without importing it
+	 */
+	private void doLoadBookFromArchive(Storage storage, BookArchive archive, int pageLimit) 
+			throws BookLoadException, IOException {
+		DataInputStream index = archive.open(INDEX_FILE);
+		if (index == null)
+			throw new BookLoadException("Book archive without index");
+		LinkedList<UUID> pageUUIDs = loadIndex(index);
+		storedPageCount = pageUUIDs.size();
+		if (pageLimit >= 0 && pageUUIDs.size() > pageLimit)
+			pageUUIDs = new LinkedList<UUID>(pageUUIDs.subList(0, pageLimit));
+		// the journal and the images are extracted only if needed
+		TemporaryDirectory dir = storage.newTemporaryDirectory();
+		previewDirectory = dir;
+		pages.clear();
+		for (UUID uuid : pageUUIDs) {
+			DataInputStream in = archive.open(getPageFile(dir, uuid).getName());
+			if (in == null)
+				throw new BookLoadException("Missing page in book archive");
+			CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+			Page page = new Page(new DataInputStream(checked), tagManager, dir);
+			page.setContentVersion(checked.getChecksum().getValue());
+			addLoadedPage(pages, uuid, page);
 		}
+		if (archive.extract(Journal.JOURNAL_FILE, dir)) {
+			Journal journal = new Journal(dir);
+			journal.replay(this, pages, journal.load(false), false);
+		}
+		for (Page page : pages)
+			for (GraphicsImage image : page.images) {
+				File file = image.getFile();
+				if (file != null && !file.exists())
+					archive.extract(file.getName(), dir);
+			}
+	}
+	
+	private void doSaveBookInDirectory(BookDirectory dir, Bookshelf bookshelf) throws IOException {
+		Journal journal = getJournal(dir);
+		LinkedList<Journal.PageSnapshot> snapshots = new LinkedList<Journal.PageSnapshot>();
+		HashSet<UUID> used = new HashSet<UUID>();
+		HashMap<String, Integer> blobs = BlobStore.countReferences(pages);
+		for (Page page : pages) {
+			used.add(page.getUUID());
+			// the old image files of images in the blob store are deleted, see BlobStore.adopt()
+			for (GraphicsImage image : page.images)
+				if (image.getHash() == null)
+					used.add(image.getUuid());
+			// changes to the graphics are already in the journal
+			if (page.isSnapshotRequired())
+				snapshots.add(journal.snapshot(page));
+		}
+		long seq = journal.getSequence();
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream dataOut = new DataOutputStream(index);
+		saveIndex(dataOut);
+		dataOut.close();
+		BookSaver.save(this, dir, journal, bookshelf, snapshots, index.toByteArray(), seq, used,
+				blobs, new ArrayList<Page>(pages));
 	}
 
 	
@@ -618,23 +983,6 @@ public class Book {
 		}
 	}
 
-	private void saveIndex(File dir) throws IOException, BookSaveException {
-		File indexFile = new File(dir, INDEX_FILE);
-		FileOutputStream fos = null;
-		BufferedOutputStream buffer = null;
-		DataOutputStream dataOut = null;
-		try {
-			fos = new FileOutputStream(indexFile);
-			buffer = new BufferedOutputStream(fos);
-			dataOut = new DataOutputStream(buffer);
-			saveIndex(dataOut);
-		} finally {
-			if (dataOut != null) dataOut.close();
-			else if (buffer != null) buffer.close();
-			else if (fos != null) fos.close();
-		}			
-	}
-
 	private LinkedList<UUID> loadIndex(DataInputStream dataIn) throws IOException, BookLoadException {
 		Log.d(TAG, "Loading book index");
 		int n_pages;
@@ -657,6 +1005,7 @@ public class Book {
 	}
 
 	protected void saveIndex(DataOutputStream dataOut) throws IOException {
+		finishLoading();
 		Log.d(TAG, "Saving book index");
 		dataOut.writeInt(4);
 		dataOut.writeInt(pages.size());
@@ -672,48 +1021,86 @@ public class Book {
 		getFilter().write_to_stream(dataOut);
 	}
 
-	private File getPageFile(File dir, UUID uuid) {
+	protected static File getPageFile(File dir, UUID uuid) {
 		return new File(dir, PAGE_FILE_PREFIX + uuid.toString() + QUILL_DATA_FILE_SUFFIX);
 	}
 	
-	private void loadPage(UUID uuid, File dir) throws IOException {
-		Log.d(TAG, "Loading page "+uuid);
-		File file = getPageFile(dir, uuid);
-		FileInputStream fis = null;
-		BufferedInputStream buffer = null;
-		DataInputStream dataIn = null;
+	/**
+	 * A pool of daemon threads that exit when they are idle
+	 * @param threads The number of threads
+	 */
+	private static ExecutorService newBackgroundExecutor(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 
+				10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, TAG);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	// decodes the page files of a book that is being loaded, the threads exit when idle
+	private static final ExecutorService pageDecoder = 
+			newBackgroundExecutor(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Load the pages with the given UUIDs. The page files are decoded in
+	 * parallel, the pages are appended in the given order. 
+	 * @param target The list to append the pages to
+	 * @param loaded A page that is already loaded, or null
+	 */
+	private void loadPages(PageList target, LinkedList<UUID> pageUUIDs, final File dir, final Page loaded) 
+			throws IOException {
+		if (pageUUIDs.size() <= 1) {
+			for (UUID uuid : pageUUIDs)
+				addLoadedPage(target, uuid, loaded != null && loaded.getUUID().equals(uuid) ? loaded : loadPage(uuid, dir));
+			return;
+		}
+		LinkedList<Future<Page>> futures = new LinkedList<Future<Page>>();
+		for (final UUID uuid : pageUUIDs)
+			futures.add(pageDecoder.submit(new Callable<Page>() {
+				@Override
+				public Page call() throws IOException {
+					if (loaded != null && loaded.getUUID().equals(uuid))
+						return loaded;
+					return loadPage(uuid, dir);
+				}
+			}));
+		ListIterator<UUID> iter = pageUUIDs.listIterator();
 		try {
-			fis = new FileInputStream(file);
-			buffer = new BufferedInputStream(fis);
-			dataIn = new DataInputStream(buffer);
-			Page page = new Page(dataIn, tagManager, dir);
-			if (!page.getUUID().equals(uuid)) {
-				Storage.getInstance().LogError(TAG, "Page UUID mismatch.");
-				page.touch();
-			}
-			pages.add(page);
+			for (Future<Page> future : futures)
+				addLoadedPage(target, iter.next(), future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading pages");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new RuntimeException(cause);
 		} finally {
-			if (dataIn != null) dataIn.close();
-			else if (buffer != null) buffer.close();
-			else if (fis != null) fis.close();
+			for (Future<Page> future : futures)
+				future.cancel(false);
 		}
 	}
-
-	private void savePage(Page page, File dir) throws IOException {
-		File file = getPageFile(dir, page.getUUID());
-		FileOutputStream fos = null;
-		BufferedOutputStream buffer = null;
-		DataOutputStream dataOut = null;
-		try {
-			fos = new FileOutputStream(file);
-			buffer = new BufferedOutputStream(fos);
-			dataOut = new DataOutputStream(buffer);
-			savePage(page, dataOut);
-		} finally {
-			if (dataOut != null) dataOut.close();
-			else if (buffer != null) buffer.close();
-			else if (fos != null) fos.close();
+	
+	private void addLoadedPage(PageList target, UUID uuid, Page page) {
+		if (!page.getUUID().equals(uuid)) {
+			Storage.getInstance().LogError(TAG, "Page UUID mismatch.");
+			page.touch();
 		}
+		target.add(page);
+	}
+
+	// called from the pageDecoder threads, see TagManager for the thread safety of tags
+	// only the metadata is read, the graphics are loaded when needed 
+	private Page loadPage(UUID uuid, File dir) throws IOException {
+		Log.d(TAG, "Loading page "+uuid);
+		return Page.load(getPageFile(dir, uuid), tagManager, dir);
 	}
 
 	protected void savePage(Page page, DataOutputStream dataOut) throws IOException {
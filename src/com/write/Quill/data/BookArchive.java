@@ -0,0 +1,257 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.xeustechnologies.jtar.TarConstants;
+import org.xeustechnologies.jtar.TarEntry;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Read-only access to a .quill book archive without importing it
+ *
+ * Opening an archive reads only the tar headers, skipping over the file
+ * contents, and records where each file is. The files can then be read
+ * directly. The title, page count, and thumbnail are taken from the first page
+ * loaded this way. The index and the preview of the most recently opened
+ * archives are cached as long as the archive file does not change, so browsing
+ * many backups repeatedly is fast. The thumbnail is kept as PNG.
+ *
+ * Compressed archives cannot be read randomly, they must be imported.
+ *
+ * @author vbraun
+ *
+ */
+public class BookArchive {
+	private static final String TAG = "BookArchive";
+	private static final int BLOCK = TarConstants.DATA_BLOCK;
+
+	private static class Entry {
+		private final long offset;
+		private final long length;
+
+		private Entry(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	// number of archives in the cache
+	private static final int CACHE_SIZE = 32;
+
+	// archive path -> index, least recently used first, guarded by the class lock
+	private static final LinkedHashMap<String, BookArchive> cache = 
+			new LinkedHashMap<String, BookArchive>(CACHE_SIZE, 0.75f, true) {
+				private static final long serialVersionUID = 3563493447224781327L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, BookArchive> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			};
+
+	/**
+	 * Open a book archive. The index is read once and cached.
+	 * @param file A .quill book archive
+	 * @return The BookArchive
+	 * @throws IOException If the file is not an uncompressed book archive
+	 */
+	public static BookArchive open(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		synchronized (BookArchive.class) {
+			BookArchive archive = cache.get(key);
+			if (archive != null && archive.fileLength == file.length() && archive.fileTime == file.lastModified())
+				return archive;
+		}
+		BookArchive archive = new BookArchive(file);
+		synchronized (BookArchive.class) {
+			cache.put(key, archive);
+		}
+		return archive;
+	}
+
+	private final File file;
+	private final long fileLength, fileTime;
+	private UUID uuid = null;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	private BookArchive(File file) throws IOException {
+		this.file = file;
+		fileLength = file.length();
+		fileTime = file.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			readHeaders(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+		if (uuid == null || !entries.containsKey(Book.INDEX_FILE))
+			throw new IOException("Not a book archive");
+	}
+
+	private void readHeaders(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BLOCK);
+		long position = 0;
+		while (position + BLOCK <= fileLength) {
+			header.clear();
+			while (header.hasRemaining())
+				if (channel.read(header, position + header.position()) < 0)
+					throw new IOException("Truncated archive");
+			byte[] bytes = header.array();
+			if (position == 0 && (bytes[0] & 0xff) == 0x1f && (bytes[1] & 0xff) == 0x8b)
+				throw new IOException("Compressed archives must be imported");
+			if (isEmpty(bytes))
+				break;
+			TarEntry entry = new TarEntry(bytes);
+			position += BLOCK;
+			if (entry.isDirectory())
+				continue;
+			String name = entry.getName();
+			UUID entryUUID = null;
+			try {
+				entryUUID = Storage.getInstance().getBookUUIDfromDirectoryName(name);
+			} catch (RuntimeException e) {
+				// malformed name, handled below
+			}
+			if (entryUUID == null || (uuid != null && !uuid.equals(entryUUID)))
+				throw new IOException("Incorrect book archive file");
+			uuid = entryUUID;
+			long size = entry.getSize();
+			entries.put(name.substring(name.lastIndexOf('/') + 1), new Entry(position, size));
+			position += (size + BLOCK - 1) / BLOCK * BLOCK;
+		}
+		if (position > fileLength)
+			throw new IOException("Truncated archive");
+	}
+
+	private static boolean isEmpty(byte[] block) {
+		for (byte b : block)
+			if (b != 0) return false;
+		return true;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The UUID of the archived book
+	 */
+	public UUID getUUID() {
+		return uuid;
+	}
+
+	/**
+	 * @param name The file name in the book directory
+	 * @return The file content or null if it is not in the archive
+	 * @throws IOException
+	 */
+	protected DataInputStream open(String name) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry == null) return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+			return new DataInputStream(new BookPack.BufferInputStream(buffer));
+		} finally {
+			raf.close();  // the mapping stays valid
+		}
+	}
+
+	/**
+	 * Write a file from the archive
+	 * @param name The file name in the book directory
+	 * @param dir The directory to write to
+	 * @return Whether the file was in the archive
+	 * @throws IOException
+	 */
+	protected boolean extract(String name, File dir) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry == null) return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileOutputStream fos = new FileOutputStream(new File(dir, name));
+			try {
+				FileChannel out = fos.getChannel();
+				long position = 0;
+				while (position < entry.length) {
+					long count = raf.getChannel().transferTo(entry.offset + position, entry.length - position, out);
+					if (count <= 0)
+						throw new IOException("Truncated archive");
+					position += count;
+				}
+			} finally {
+				fos.close();
+			}
+		} finally {
+			raf.close();
+		}
+		return true;
+	}
+
+	private String title;
+	private long ctime, mtime;
+	private int pageCount;
+	private byte[] thumbnail = null;  // PNG
+
+	/**
+	 * Load the first page of the archived book, once
+	 */
+	private synchronized void loadPreview() {
+		if (thumbnail != null) return;
+		Log.d(TAG, "Preview of " + file.getName());
+		Book preview = new Book(Storage.getInstance(), this, 1);
+		title = preview.getTitle();
+		ctime = preview.ctime.toMillis(false);
+		mtime = preview.mtime.toMillis(false);
+		pageCount = preview.storedPageCount;
+		int size = BookCatalog.THUMBNAIL_SIZE;
+		Bitmap bitmap = preview.currentPage().renderBitmap(size, size, true);
+		preview.closePreview();
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+		bitmap.recycle();
+		thumbnail = png.toByteArray();
+	}
+
+	public String getTitle() {
+		loadPreview();
+		return title;
+	}
+
+	public int getPageCount() {
+		loadPreview();
+		return pageCount;
+	}
+
+	public String getSummary() {
+		loadPreview();
+		Storage storage = Storage.getInstance();
+		String s = "Created on ";
+		s += storage.formatDateTime(ctime) + "\n";
+		s += "Last modified on ";
+		s += storage.formatDateTime(mtime) + "\n";
+		return s;
+	}
+
+	/**
+	 * @return A new thumbnail of the first page
+	 */
+	public Bitmap getThumbnail() {
+		loadPreview();
+		return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+	}
+}
@@ -0,0 +1,200 @@
+package com.write.Quill.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.UUID;
+
+import name.vbraun.view.write.Page;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Persistent summary of all books for the bookshelf
+ *
+ * Stores the title, creation and modification time, number of pages, and a
+ * small thumbnail of each book in a single file. The bookshelf reads it on
+ * startup instead of loading every book. An entry is only used as long as
+ * the index file (or the pack) of the book is not modified after the entry
+ * was made. Entries of saved books are updated by the {@link BookSaver}. 
+ * The thumbnail is taken from the {@link ThumbnailCache} if possible.
+ *
+ * @author vbraun
+ *
+ */
+public class BookCatalog {
+	private static final String TAG = "BookCatalog";
+	private static final String CATALOG_FILE = "bookshelf.quill_data";
+	private static final int VERSION = 1;
+
+	// size of the thumbnails on the bookshelf
+	public static final int THUMBNAIL_SIZE = 150;
+
+	protected static class Entry {
+		protected final UUID uuid;
+		protected final String title;
+		protected final long ctime, mtime;
+		protected final int pageCount;
+		protected final byte[] thumbnail;  // PNG
+		protected final long fileTime;
+
+		private Entry(UUID uuid, String title, long ctime, long mtime, int pageCount, Page first,
+				long fileTime, ThumbnailCache thumbnails) {
+			this.uuid = uuid;
+			this.title = title;
+			this.ctime = ctime;
+			this.mtime = mtime;
+			this.pageCount = pageCount;
+			Bitmap bitmap = thumbnails.render(first, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+			thumbnail = png.toByteArray();
+			this.fileTime = fileTime;
+		}
+
+		private Entry(DataInputStream in) throws IOException {
+			uuid = UUID.fromString(in.readUTF());
+			title = in.readUTF();
+			ctime = in.readLong();
+			mtime = in.readLong();
+			pageCount = in.readInt();
+			thumbnail = new byte[in.readInt()];
+			in.readFully(thumbnail);
+			fileTime = in.readLong();
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeUTF(uuid.toString());
+			out.writeUTF(title);
+			out.writeLong(ctime);
+			out.writeLong(mtime);
+			out.writeInt(pageCount);
+			out.writeInt(thumbnail.length);
+			out.write(thumbnail);
+			out.writeLong(fileTime);
+		}
+	}
+
+	private final Storage storage;
+	private final ThumbnailCache thumbnails;
+	private final File file;
+	private final HashMap<UUID, Entry> entries = new HashMap<UUID, Entry>();
+	private boolean modified = false;
+
+	protected BookCatalog(Storage storage, ThumbnailCache thumbnails) {
+		this.storage = storage;
+		this.thumbnails = thumbnails;
+		file = new File(storage.getFilesDir(), CATALOG_FILE);
+		try {
+			load();
+		} catch (FileNotFoundException e) {
+			Log.d(TAG, "No bookshelf catalog");
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading bookshelf catalog: "+e.getMessage());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * The modification time of the book on disk
+	 */
+	private long getFileTime(UUID uuid) {
+		if (storage.isBookPacked(uuid))
+			return storage.getBookPackFile(uuid).lastModified();
+		return new File(storage.getBookDirectory(uuid), Book.INDEX_FILE).lastModified();
+	}
+
+	/**
+	 * Return the entry for the book unless the book was modified since
+	 * @param uuid
+	 * @return The Entry or null
+	 */
+	protected synchronized Entry get(UUID uuid) {
+		Entry entry = entries.get(uuid);
+		if (entry == null || entry.fileTime != getFileTime(uuid))
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Make a new entry from a (truncated) preview of the book on disk
+	 * @param preview
+	 * @return The new Entry
+	 */
+	protected Entry update(Book preview) {
+		return update(preview.getUUID(), preview.getTitle(), preview.ctime.toMillis(false), 
+				preview.mtime.toMillis(false), preview.storedPageCount, preview.currentPage());
+	}
+
+	/**
+	 * Make a new entry for a book that was just saved
+	 * @param first The first page, for the thumbnail
+	 * @return The new Entry
+	 */
+	protected Entry update(UUID uuid, String title, long ctime, long mtime, int pageCount, Page first) {
+		Entry entry = new Entry(uuid, title, ctime, mtime, pageCount, first, getFileTime(uuid), thumbnails);
+		synchronized (this) {
+			entries.put(entry.uuid, entry);
+			modified = true;
+		}
+		return entry;
+	}
+
+	protected synchronized void remove(UUID uuid) {
+		if (entries.remove(uuid) != null)
+			modified = true;
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown bookshelf catalog version");
+			int n = in.readInt();
+			for (int i=0; i<n; i++) {
+				Entry entry = new Entry(in);
+				entries.put(entry.uuid, entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the catalog if it was modified
+	 */
+	protected synchronized void save() {
+		if (!modified) return;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (Entry entry : entries.values())
+					entry.write(out);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("Unable to rename bookshelf catalog");
+			modified = false;
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing bookshelf catalog: "+e.getMessage());
+			tmp.delete();
+		}
+	}
+}
@@ -48,13 +48,16 @@ public class BookDirectory extends DirectoryBase {
 	}
 	
 	/**
-	 * List everything that is not Page and index data
+	 * List everything that is not Page, index, or journal data. Blobs named 
+	 * after their content hash are not included, see {@link BlobStore}.
 	 */
 	protected LinkedList<UUID> listBlobs() {
 		FilenameFilter filter = new FilenameFilter() {
 		    public boolean accept(File directory, String name) {
 		        return !name.startsWith(Book.PAGE_FILE_PREFIX) && 
-		        		!name.startsWith(Book.INDEX_FILE);
+		        		!name.startsWith(Book.INDEX_FILE) &&
+		        		!name.startsWith(Journal.JOURNAL_FILE_PREFIX) &&
+		        		!BlobStore.isBlobFileName(name);
 		    }}; 
 		File[] entries = listFiles(filter);
 		LinkedList<UUID> uuids = new LinkedList<UUID>();
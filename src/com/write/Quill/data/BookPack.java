@@ -0,0 +1,330 @@
+package com.write.Quill.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.UUID;
+
+import name.vbraun.view.write.GraphicsImage;
+import name.vbraun.view.write.Page;
+
+import android.util.Log;
+
+/**
+ * A book packed into a single file
+ *
+ * The usual format of a book is a {@link BookDirectory} with one file for
+ * the index, one for each page and one for each blob (images). The packed
+ * format stores the same files as records in a single file:
+ *
+ * <pre>
+ * int magic, int version
+ * records: int length, byte[length] data
+ * table: int n, n times (byte type, long uuid msb, long uuid lsb, UTF name, long offset, int length)
+ * trailer: long table offset, int magic
+ * </pre>
+ *
+ * The offsets point to the data of the record, after its length. The table is
+ * read when the pack is opened, any record can then be read by mapping it
+ * directly. Unpacking writes every record into a file with the stored name.
+ * Images from the {@link BlobStore} are packed as well, after unpacking they
+ * are moved back into the store when the book is loaded.
+ *
+ * @author vbraun
+ *
+ */
+public class BookPack {
+	private static final String TAG = "BookPack";
+
+	public static final String FILE_EXTENSION = ".quill_pack";
+
+	private static final int MAGIC = 0x5150414b;  // "QPAK"
+	private static final int VERSION = 1;
+	private static final int TRAILER_SIZE = 12;
+
+	private static final byte INDEX = 1;
+	private static final byte PAGE = 2;
+	private static final byte BLOB = 3;
+
+	private static class Entry {
+		private final byte type;
+		private final UUID uuid;
+		private final String name;
+		private final long offset;
+		private final int length;
+
+		private Entry(byte type, UUID uuid, String name, long offset, int length) {
+			this.type = type;
+			this.uuid = uuid;
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeByte(type);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+			out.writeUTF(name);
+			out.writeLong(offset);
+			out.writeInt(length);
+		}
+
+		private Entry(DataInputStream in) throws IOException {
+			type = in.readByte();
+			uuid = new UUID(in.readLong(), in.readLong());
+			name = in.readUTF();
+			offset = in.readLong();
+			length = in.readInt();
+		}
+	}
+
+	/**
+	 * Read from a mapped record
+	 */
+	protected static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		protected BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if (!buffer.hasRemaining()) return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	private final HashMap<UUID, Entry> byUUID = new HashMap<UUID, Entry>();
+	private Entry index;
+
+	/**
+	 * Open a packed book and read its table
+	 * @param packFile
+	 * @throws IOException
+	 */
+	public BookPack(File packFile) throws IOException {
+		file = new RandomAccessFile(packFile, "r");
+		channel = file.getChannel();
+		try {
+			readTable();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void readTable() throws IOException {
+		long size = channel.size();
+		if (size < 8 + TRAILER_SIZE)
+			throw new IOException("Truncated book pack");
+		ByteBuffer header = ByteBuffer.allocate(8);
+		readFully(header, 0);
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a book pack");
+		if (header.getInt() != VERSION)
+			throw new IOException("Unknown book pack version");
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		readFully(trailer, size - TRAILER_SIZE);
+		long tableOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC || tableOffset < 8 || tableOffset > size - TRAILER_SIZE)
+			throw new IOException("Truncated book pack");
+		ByteBuffer table = ByteBuffer.allocate((int)(size - TRAILER_SIZE - tableOffset));
+		readFully(table, tableOffset);
+		DataInputStream in = new DataInputStream(new BufferInputStream(table));
+		int n = in.readInt();
+		for (int i=0; i<n; i++) {
+			Entry entry = new Entry(in);
+			if (entry.offset < 8 || entry.offset + entry.length > tableOffset)
+				throw new IOException("Invalid record in book pack");
+			entries.add(entry);
+			if (entry.type == INDEX)
+				index = entry;
+			else
+				byUUID.put(entry.uuid, entry);
+		}
+		if (index == null)
+			throw new IOException("Book pack without index");
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Truncated book pack");
+			position += n;
+		}
+		buffer.flip();
+	}
+
+	private DataInputStream open(Entry entry) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+		return new DataInputStream(new BufferInputStream(buffer));
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * @return The book index, as in the index file of a book directory
+	 */
+	protected DataInputStream openIndex() throws IOException {
+		return open(index);
+	}
+
+	/**
+	 * @param uuid
+	 * @return The page data, as in the page file of a book directory, or null
+	 */
+	protected InputStream openPage(UUID uuid) throws IOException {
+		Entry entry = byUUID.get(uuid);
+		if (entry == null || entry.type != PAGE)
+			return null;
+		return open(entry);
+	}
+
+	/**
+	 * Write the given blobs into files in a directory
+	 * @param uuids
+	 * @param dir
+	 * @throws IOException
+	 */
+	protected void extractBlobs(Collection<UUID> uuids, File dir) throws IOException {
+		for (UUID uuid : uuids) {
+			Entry entry = byUUID.get(uuid);
+			if (entry == null || entry.type != BLOB)
+				continue;
+			extract(entry, dir);
+		}
+	}
+
+	/**
+	 * Write all records into files in a directory. The result is a book directory.
+	 * @param dir
+	 * @throws IOException
+	 */
+	protected void extractAll(File dir) throws IOException {
+		for (Entry entry : entries)
+			extract(entry, dir);
+	}
+
+	private void extract(Entry entry, File dir) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+		FileOutputStream fos = new FileOutputStream(new File(dir, entry.name));
+		try {
+			FileChannel out = fos.getChannel();
+			while (buffer.hasRemaining())
+				out.write(buffer);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Pack a book. The file is first written under a temporary name, and then renamed.
+	 * @param book The book to pack
+	 * @param dir The book directory, containing the blobs
+	 * @param packFile The pack file to write
+	 * @throws IOException
+	 */
+	protected static void write(Book book, BookDirectory dir, File packFile) throws IOException {
+		Log.d(TAG, "Packing book "+book.getUUID());
+		File tmp = new File(packFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		LinkedList<Entry> table = new LinkedList<Entry>();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			book.saveIndex(new DataOutputStream(bytes));
+			table.add(writeRecord(out, INDEX, book.getUUID(), Book.INDEX_FILE, bytes));
+			for (Page page : book.getPages()) {
+				bytes.reset();
+				book.savePage(page, new DataOutputStream(bytes));
+				String name = Book.getPageFile(dir, page.getUUID()).getName();
+				table.add(writeRecord(out, PAGE, page.getUUID(), name, bytes));
+				for (GraphicsImage image : page.images) {
+					// blobs from the blob store keep their name and are added to the store again 
+					File blob = (image.getHash() != null) ? image.getFile() : dir.getFile(image.getUuid());
+					if (blob == null || !blob.exists()) continue;
+					table.add(writeRecord(out, BLOB, image.getUuid(), blob));
+				}
+			}
+			long tableOffset = out.size();
+			out.writeInt(table.size());
+			for (Entry entry : table)
+				entry.write(out);
+			out.writeLong(tableOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(packFile)) {
+			tmp.delete();
+			throw new IOException("Unable to rename book pack");
+		}
+	}
+
+	private static Entry writeRecord(DataOutputStream out, byte type, UUID uuid, String name,
+			ByteArrayOutputStream data) throws IOException {
+		out.writeInt(data.size());
+		Entry entry = new Entry(type, uuid, name, out.size(), data.size());
+		data.writeTo(out);
+		return entry;
+	}
+
+	private static Entry writeRecord(DataOutputStream out, byte type, UUID uuid, File file)
+			throws IOException {
+		int length = (int)file.length();
+		out.writeInt(length);
+		Entry entry = new Entry(type, uuid, file.getName(), out.size(), length);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte data[] = new byte[4096];
+			int count, remaining = length;
+			while (remaining > 0 && (count = fis.read(data, 0, Math.min(data.length, remaining))) != -1) {
+				out.write(data, 0, count);
+				remaining -= count;
+			}
+			if (remaining > 0)
+				throw new IOException("Blob changed while packing");
+		} finally {
+			fis.close();
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,310 @@
+package com.write.Quill.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import name.vbraun.view.write.Page;
+
+import com.write.Quill.data.Bookshelf.BookPreview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Writes books to the internal storage in the background
+ *
+ * Book.save() takes a snapshot on the UI thread: the serialized index and
+ * the serialized pages that need a new page file. The files are written on a single
+ * worker thread, each into a temporary file that is renamed once complete.
+ * If a book is saved again before the previous save of the same book has
+ * started, the two are merged into one. The pages are marked as saved right
+ * away; if writing fails, they are marked as modified again.
+ *
+ * Call {@link #flush()} before reading the files of a book directly, for
+ * example before exporting it. The changes that are only in the journal are
+ * folded into the page files by {@link #compact(UUID)}.
+ *
+ * @author vbraun
+ *
+ */
+public class BookSaver {
+	private static final String TAG = "BookSaver";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static class Task implements Runnable {
+		private final UUID uuid;
+		private final BookDirectory dir;
+		private final Journal journal;
+		private final Bookshelf bookshelf;
+		// the latest snapshot of every page
+		private final LinkedHashMap<UUID, Journal.PageSnapshot> pages = 
+				new LinkedHashMap<UUID, Journal.PageSnapshot>();
+		private byte[] index;
+		private long indexSeq;
+		private Set<UUID> used;
+		private Map<String, Integer> blobs;
+		private List<Page> allPages;
+		// for the bookshelf catalog
+		private String title;
+		private long ctime, mtime;
+		private Page firstPage;
+
+		private Task(UUID uuid, BookDirectory dir, Journal journal, Bookshelf bookshelf) {
+			this.uuid = uuid;
+			this.dir = dir;
+			this.journal = journal;
+			this.bookshelf = bookshelf;
+		}
+
+		private void merge(Book book, List<Journal.PageSnapshot> pages, byte[] index, long indexSeq, 
+				Set<UUID> used, Map<String, Integer> blobs, List<Page> allPages) {
+			for (Journal.PageSnapshot snapshot : pages)
+				this.pages.put(snapshot.page.getUUID(), snapshot);
+			this.index = index;
+			this.indexSeq = indexSeq;
+			this.used = used;
+			this.blobs = blobs;
+			this.allPages = allPages;
+			title = book.getTitle();
+			ctime = book.ctime.toMillis(false);
+			mtime = book.mtime.toMillis(false);
+			firstPage = allPages.get(0);
+		}
+
+		@Override
+		public void run() {
+			worker = Thread.currentThread();
+			synchronized (BookSaver.class) {
+				if (queued.get(uuid) == this)
+					queued.remove(uuid);
+				started.put(uuid, this);
+			}
+			Storage storage = Storage.getInstance();
+			try {
+				if (!dir.isDirectory() && !dir.mkdir())
+					throw new IOException("Error creating directory " + dir.toString());
+				long bytes = index.length;
+				for (Journal.PageSnapshot snapshot : pages.values())
+					bytes += journal.write(snapshot);
+				writeIndex();
+				Log.d(TAG, "Saved index and " + pages.size() + " pages, " + bytes + " bytes");
+				BlobStore blobStore = storage.getBlobStore();
+				blobStore.setReferences(uuid, blobs);
+				// only now the copies of adopted images are safe
+				deleteUnused();
+				blobStore.collect();
+				// the journal may be truncated only after removed pages were deleted
+				journal.indexSaved(indexSeq);
+				journal.compact(allPages, false);
+			} catch (IOException e) {
+				storage.LogError(TAG, e.getLocalizedMessage());
+				markAsUnsaved();
+				return;
+			}
+			// the thumbnail is usually in the cache already
+			BookCatalog catalog = bookshelf.getCatalog();
+			catalog.update(uuid, title, ctime, mtime, allPages.size(), firstPage);
+			catalog.save();
+			bookshelf.getThumbnailCache().save();
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					BookPreview preview = bookshelf.getPreview(uuid);
+					if (preview != null)
+						preview.refresh();
+				}
+			});
+		}
+
+		/**
+		 * The pages were marked as saved when the save was queued. Mark them 
+		 * as modified again, so they are written by the next save.
+		 */
+		private void markAsUnsaved() {
+			final LinkedList<Page> unsaved = new LinkedList<Page>();
+			for (Journal.PageSnapshot snapshot : pages.values())
+				unsaved.add(snapshot.page);
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					for (Page page : unsaved)
+						page.touch();
+				}
+			});
+		}
+
+		private void writeIndex() throws IOException {
+			File file = new File(dir, Book.INDEX_FILE);
+			File tmp = new File(dir, Book.INDEX_FILE + TEMP_SUFFIX);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(index);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("Unable to rename index file");
+		}
+
+		private void deleteUnused() {
+			LinkedList<UUID> unused = dir.listPages();
+			unused.removeAll(used);
+			for (UUID uuid : unused)
+				bookshelf.getThumbnailCache().delete(uuid);
+			unused.addAll(dir.listBlobs());
+			unused.removeAll(used);
+			for (UUID uuid : unused) {
+				File file = dir.getFile(uuid);
+				if (file == null) continue;
+				Log.d(TAG, "Deleteing unusued file: " + file.toString());
+				file.delete();
+			}
+		}
+	}
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private static final Handler handler = new Handler(Looper.getMainLooper());
+	private static volatile Thread worker;
+
+	// saves that did not start yet, guarded by the class lock
+	private static final HashMap<UUID, Task> queued = new HashMap<UUID, Task>();
+
+	// the last save of every book
+	private static final HashMap<UUID, Future<?>> latest = new HashMap<UUID, Future<?>>();
+
+	// the last save of every book that was started, for its journal and pages
+	private static final HashMap<UUID, Task> started = new HashMap<UUID, Task>();
+
+	/**
+	 * Queue a book for saving. The arguments must not be modified afterwards.
+	 *
+	 * @param book
+	 *            The book, its title and times are copied for the bookshelf catalog
+	 * @param bookshelf
+	 *            The bookshelf, its catalog and thumbnails are updated after saving
+	 * @param pages
+	 *            The serialized pages whose page file must be written
+	 * @param index
+	 *            The serialized index
+	 * @param indexSeq
+	 *            The journal sequence number when the index was serialized
+	 * @param used
+	 *            The UUIDs of all pages and blobs, other files are deleted
+	 * @param blobs
+	 *            The references to the blob store, see {@link BlobStore#countReferences(Iterable)}
+	 * @param allPages
+	 *            All pages of the book
+	 */
+	protected static synchronized void save(Book book, BookDirectory dir, Journal journal,
+			Bookshelf bookshelf, List<Journal.PageSnapshot> pages, byte[] index, long indexSeq, 
+			Set<UUID> used, Map<String, Integer> blobs, List<Page> allPages) {
+		UUID uuid = book.getUUID();
+		Task task = queued.get(uuid);
+		if (task != null) {
+			Log.d(TAG, "Merging with queued save");
+			task.merge(book, pages, index, indexSeq, used, blobs, allPages);
+			return;
+		}
+		task = new Task(uuid, dir, journal, bookshelf);
+		task.merge(book, pages, index, indexSeq, used, blobs, allPages);
+		queued.put(uuid, task);
+		latest.put(uuid, executor.submit(task));
+	}
+
+	/**
+	 * Wait until all queued saves are written
+	 */
+	public static void flush() {
+		if (Thread.currentThread() == worker)
+			return;
+		wait(executor.submit(new Runnable() {
+			@Override
+			public void run() {}
+		}));
+	}
+
+	/**
+	 * Wait until all queued saves of the given book are written
+	 */
+	public static void flush(UUID uuid) {
+		if (Thread.currentThread() == worker)
+			return;  // earlier saves are complete
+		Future<?> future;
+		synchronized (BookSaver.class) {
+			future = latest.get(uuid);
+		}
+		if (future != null)
+			wait(future);
+	}
+
+	/**
+	 * Wait until all queued saves of the given book are written, and then 
+	 * write the pages whose changes are only in the journal. Afterwards the 
+	 * page files contain the whole book as of the last save.
+	 */
+	public static void compact(final UUID uuid) {
+		Runnable compaction = new Runnable() {
+			@Override
+			public void run() {
+				Task task;
+				synchronized (BookSaver.class) {
+					task = started.get(uuid);
+				}
+				if (task != null)
+					task.journal.compact(task.allPages, true);
+			}
+		};
+		if (Thread.currentThread() == worker)
+			compaction.run();
+		else
+			wait(executor.submit(compaction));
+	}
+
+	/**
+	 * To be called when the book is closed. Once its queued saves are 
+	 * written, its journal is folded into the page files and the pages are
+	 * no longer referenced.
+	 * @param uuid The book
+	 * @param journal The journal of the book
+	 */
+	protected static void closed(final UUID uuid, final Journal journal) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Task task;
+				synchronized (BookSaver.class) {
+					task = started.get(uuid);
+					if (task == null || task.journal != journal)
+						return;
+					started.remove(uuid);
+				}
+				task.journal.compact(task.allPages, true);
+			}
+		});
+	}
+
+	private static void wait(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Saving failed: " + e.getCause());
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.UUID;
@@ -28,6 +30,7 @@ import junit.framework.Assert;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.os.Parcelable.Creator;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -50,7 +53,10 @@ public class Bookshelf {
 	
 	
 	/**
-	 * The book preview is a truncated version of the book where only the first page is loaded.
+	 * The book preview shows a book on the bookshelf. Its data comes from the 
+	 * {@link BookCatalog}, the book is only loaded (truncated to the first page)
+	 * if the catalog entry is missing or outdated. This happens on first use, 
+	 * or on the background thread after startup.
 	 * 
 	 * @author vbraun
 	 *
@@ -58,31 +64,85 @@ public class Bookshelf {
 	public class BookPreview {
 		@SuppressWarnings("unused")
 		private static final String TAG = "BookPreview";
-		private Book preview;
-		private UUID uuid;
+		private final UUID uuid;
+		private BookCatalog.Entry entry;
+		private Bitmap thumbnail;
 		private BookPreview(UUID uuid) {
 			this.uuid = uuid;
-			preview = new Book(storage, uuid, 1);
+			entry = catalog.get(uuid);
 		}
-		public UUID getUUID() { return preview.uuid; }
-		public String getTitle() { return preview.title; }
+		private synchronized BookCatalog.Entry getEntry() {
+			if (entry == null)
+				rebuild();
+			return entry;
+		}
+		public UUID getUUID() { return uuid; }
+		public String getTitle() { return getEntry().title; }
+		public int getPageCount() { return getEntry().pageCount; }
 		public String getSummary() {
+			BookCatalog.Entry entry = getEntry();
 			String s = "Created on ";
-			s += storage.formatDateTime(preview.ctime.toMillis(false)) + "\n";
+			s += storage.formatDateTime(entry.ctime) + "\n";
 			s += "Last modified on ";
-			s += storage.formatDateTime(preview.mtime.toMillis(false)) + "\n";
+			s += storage.formatDateTime(entry.mtime) + "\n";
 			return s;
 		}
 		public Time getLastModifiedTime() {
-			return preview.mtime;
+			Time mtime = new Time();
+			mtime.set(getEntry().mtime);
+			return mtime;
 		}
 		public Bitmap getThumbnail(int width, int height) {
-    		return preview.currentPage().renderBitmap(width, height, true);
+			if (width != BookCatalog.THUMBNAIL_SIZE || height != BookCatalog.THUMBNAIL_SIZE) {
+				Book preview = new Book(storage, uuid, 1);
+				Bitmap bitmap = thumbnails.render(preview.currentPage(), width, height);
+				preview.closePreview();
+				return bitmap;
+			}
+			BookCatalog.Entry entry = getEntry();
+			synchronized (this) {
+				if (thumbnail == null)
+					thumbnail = BitmapFactory.decodeByteArray(entry.thumbnail, 0, entry.thumbnail.length);
+				return thumbnail;
+			}
 		}
+		/**
+		 * Load the book and update the catalog
+		 */
 		public void reload() {
-			preview = new Book(storage, uuid, 1);
+			synchronized (this) {
+				rebuild();
+			}
+			catalog.save();
+		}
+		private void rebuild() {
+			Book preview = new Book(storage, uuid, 1);
+			entry = catalog.update(preview);
+			preview.closePreview();
+			thumbnail = null;
+		}
+		/**
+		 * Use the current catalog entry, after the BookSaver updated it
+		 */
+		protected synchronized void refresh() {
+			BookCatalog.Entry current = catalog.get(uuid);
+			if (current == null)
+				reload();
+			else if (current != entry) {
+				entry = current;
+				thumbnail = null;
+			}
+		}
+		public void deleteFromStorage() { 
+			catalog.remove(uuid);
+			catalog.save();
+			storage.getBookPackFile(uuid).delete();
+			BookDirectory dir = storage.getBookDirectory(uuid);
+			if (dir.isDirectory()) dir.deleteAll(); 
+			BlobStore blobs = storage.getBlobStore();
+			blobs.setReferences(uuid, null);
+			blobs.collect();
 		}
-		public void deleteFromStorage() { storage.getBookDirectory(uuid).deleteAll(); }
 	}
 	
 	public static class BookPreviewComparator implements Comparator<BookPreview> {
@@ -97,11 +157,7 @@ public class Bookshelf {
 	 * @return The BookPreview with matching UUID or null.
 	 */
 	public BookPreview getPreview(UUID uuid) {
-		for (BookPreview nb : data) {
-			if (nb.getUUID().equals(uuid))
-				return nb;
-		}
-		return null;
+		return previews.get(uuid);
 	}
 
 	/**
@@ -115,16 +171,22 @@ public class Bookshelf {
 	}
 
 	private static LinkedList<BookPreview> data = new LinkedList<BookPreview>();
+	private static HashMap<UUID, BookPreview> previews = new HashMap<UUID, BookPreview>();
 	private static Book currentBook;
 	private static Bookshelf instance;
 	private Storage storage;
+	private final ThumbnailCache thumbnails;
+	private final BookCatalog catalog;
 	
 	private Bookshelf(Storage storage) {
 		this.storage = storage;
+		thumbnails = new ThumbnailCache(storage);
+		catalog = new BookCatalog(storage, thumbnails);
 		LinkedList<UUID> bookUUIDs = storage.listBookUUIDs();
 		for (UUID uuid : bookUUIDs) {
 			BookPreview notebook = new BookPreview(uuid);
 			data.add(notebook);
+			previews.put(uuid, notebook);
 		}
 		if (!data.isEmpty()) {
 			UUID uuid = storage.loadCurrentBookUUID();
@@ -133,6 +195,23 @@ public class Bookshelf {
 			currentBook = new Book(storage, uuid);
 		} else 
 			currentBook = null;
+		updatePreviewsInBackground();
+	}
+	
+	/**
+	 * Rebuild the missing or outdated previews on the background thread
+	 */
+	private void updatePreviewsInBackground() {
+		final ArrayList<BookPreview> list = new ArrayList<BookPreview>(data);
+		Storage.getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (BookPreview nb : list)
+					nb.getEntry();
+				catalog.save();
+				StartupTrace.mark("Bookshelf previews updated");
+			}
+		});
 	}
 
 	private void createFirstNotebook() {
@@ -176,6 +255,12 @@ public class Bookshelf {
 		Assert.assertNull(currentBook);
 	}
 	
+	private static void closeCurrentBook() {
+		if (currentBook == null) return;
+		currentBook.close();
+		currentBook = null;
+	}
+	
 	public static BookPreview getCurrentBookPreview() {
 		Assert.assertNotNull(currentBook);
 		BookPreview nb = getBookshelf().getPreview(currentBook);
@@ -200,13 +285,26 @@ public class Bookshelf {
 		return data.size();
 	}
 	
-	protected void reloadPreview(Book book) {
-		BookPreview preview = getPreview(book);
+	private void addPreview(BookPreview nb) {
+		data.add(nb);
+		previews.put(nb.getUUID(), nb);
+		catalog.save();
+	}
+	
+	protected BookCatalog getCatalog() {
+		return catalog;
+	}
+	
+	public ThumbnailCache getThumbnailCache() {
+		return thumbnails;
+	}
+	
+	protected void reloadPreview(UUID uuid) {
+		BookPreview preview = getPreview(uuid);
 		if (preview != null) 
 			preview.reload();
 		else {
-			BookPreview nb = new BookPreview(book.getUUID());
-			data.add(nb);		
+			addPreview(new BookPreview(uuid));
 		}
 	}
 
@@ -225,8 +323,10 @@ public class Bookshelf {
 		}
 		BookPreview nb = getPreview(uuid);
 		if (nb == null) return;
+		BookSaver.flush(uuid);
 		nb.deleteFromStorage();
 		data.remove(nb);
+		previews.remove(uuid);
 	}
 	
 	/**
@@ -237,7 +337,8 @@ public class Bookshelf {
 	public void importBook(File file) throws BookIOException {
 		BookPreview nb = getCurrentBookPreview();
 		currentBook.save();
-		currentBook = null;
+		closeCurrentBook();
+		BookSaver.flush();
 		UUID uuid;
 		try {
 			uuid = storage.importArchive(file);
@@ -255,7 +356,7 @@ public class Bookshelf {
 			nb.reload();
 		else {
 			nb = new BookPreview(uuid);
-			data.add(nb);
+			addPreview(nb);
 		}
 		setCurrentBook(nb, false);
 		currentBook.save();
@@ -263,19 +364,23 @@ public class Bookshelf {
 	}
 	
 	/**
-	 * Import a notebook directory.
+	 * Import a notebook directory, replacing all files of the notebook with the same UUID.
 	 * The directory is deleted after importing it.
 	 * @param dir A quill notebook directory
 	 * @param uuid The uuid of the notebook
 	 * @throws BookIOException
 	 */
 	public void importBookDirectory(File dir, UUID uuid) {
-		BookPreview nb = getCurrentBookPreview();
+		BookPreview nb;
 		final boolean isCurrentBook = currentBook.getUUID().equals(uuid);
 		if (isCurrentBook)
-			currentBook = null;
+			closeCurrentBook();
+		// closing queues the compaction of the journal, which writes into the book directory
+		BookSaver.flush();
 	
-		File bookDir = storage.getBookDirectory(uuid);
+		storage.getBookPackFile(uuid).delete();
+		BookDirectory bookDir = storage.getBookDirectory(uuid);
+		if (bookDir.isDirectory()) bookDir.deleteAll();
 		bookDir.mkdir();
 		for (File src : dir.listFiles()) {
 			File dst = new File(bookDir, src.getName());
@@ -289,7 +394,7 @@ public class Bookshelf {
 			nb.reload();
 		else {
 			nb = new BookPreview(uuid);
-			data.add(nb);
+			addPreview(nb);
 		}
 		if (isCurrentBook)
 			setCurrentBook(nb, false);
@@ -303,6 +408,7 @@ public class Bookshelf {
 	public void exportBook(UUID uuid, File file) throws BookSaveException {
 		if (currentBook.getUUID().equals(uuid))
 			currentBook.save();
+		compactBook(uuid);
 		try {
 			storage.exportArchive(uuid, file);
 		} catch (StorageIOException e) {
@@ -310,8 +416,30 @@ public class Bookshelf {
 		}
 	}
 	
+	/**
+	 * Wait until the book is saved and its journal is folded into the page
+	 * files, so that the files in the book directory are complete. The 
+	 * current book must have been saved before. Other books are loaded if 
+	 * they still have a journal, for example after the app was killed.
+	 * @param uuid The book
+	 */
+	public void compactBook(UUID uuid) {
+		// also waits for the compaction of the book when it was closed
+		BookSaver.compact(uuid);
+		Book book = currentBook;
+		if (book != null && book.getUUID().equals(uuid))
+			return;
+		if (!Journal.exists(storage.getBookDirectory(uuid)))
+			return;
+		book = new Book(storage, uuid, false);
+		book.save(storage);
+		BookSaver.compact(uuid);
+		book.close();
+	}
+	
 	public void newBook(String title) {
 		getCurrentBook().save();
+		closeCurrentBook();
 		currentBook = new Book(title);
 		currentBook.save();
 		Assert.assertTrue(data.contains(getCurrentBookPreview()));
@@ -326,6 +454,7 @@ public class Bookshelf {
 			if (saveCurrent) getCurrentBook().save();
 			if (nb.getUUID().equals(currentBook.getUUID())) return;
 		}
+		closeCurrentBook();
 		currentBook = new Book(storage, nb.uuid);
 		UndoManager.getUndoManager().clearHistory();
 		currentBook.setOnBookModifiedListener(UndoManager.getUndoManager());
@@ -345,9 +474,24 @@ public class Bookshelf {
 		
 	/**
 	 * Backup all notebooks. Does not overwrite backup files that have the same or newer modification time.
+	 * Makes an {@link IncrementalBackup} instead if the user chose so.
 	 * @param dir The directory to save the backups in
 	 */
 	public void backup(File dir) {
+		BookSaver.flush();
+		if (storage.isBackupIncremental()) {
+			if (currentBook != null)
+				currentBook.save();
+			for (BookPreview nb : getBookPreviewList())
+				compactBook(nb.getUUID());
+			try {
+				new IncrementalBackup(storage, dir).backup(getBookPreviewList());
+			} catch (IOException e) {
+				storage.LogError(TAG, e.getLocalizedMessage());
+			}
+			backupDescription(dir);
+			return;
+		}
 		for (BookPreview nb : getBookPreviewList()) {
 			UUID uuid = nb.getUUID();
 			File file = new File(dir, uuid.toString() + QUILL_EXTENSION);
@@ -358,8 +502,28 @@ public class Bookshelf {
 			} catch (BookSaveException e) {
 				storage.LogError(TAG, e.getLocalizedMessage());
 			}
-			backupDescription(dir);
 		}
+		backupDescription(dir);
+	}
+	
+	/**
+	 * Restore all notebooks from a generation of an incremental backup. 
+	 * Replaces the notebooks with the same UUID.
+	 * @param manifest The manifest file of the backup generation
+	 * @throws BookIOException
+	 */
+	public void restoreBackup(File manifest) throws BookIOException {
+		currentBook.save();
+		BookSaver.flush();
+		LinkedHashMap<UUID, TemporaryDirectory> books;
+		try {
+			books = new IncrementalBackup(storage, manifest.getParentFile().getParentFile()).extract(manifest);
+		} catch (IOException e) {
+			throw new BookLoadException(e.getMessage());
+		}
+		// the backup replaces all files
+		for (UUID uuid : books.keySet())
+			importBookDirectory(books.get(uuid), uuid);
 	}
 	
 	/**
@@ -0,0 +1,346 @@
+package com.write.Quill.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import com.write.Quill.data.Bookshelf.BookPreview;
+
+import android.util.Log;
+
+/**
+ * Incremental backups of all books
+ *
+ * Every backup is a generation, described by a manifest file that lists the
+ * files of each book with the hash of their content. The file contents are
+ * stored in a chunk directory, named after the hash, so files that did not
+ * change since the previous backup are not copied again. Files whose length
+ * and modification time match the previous manifest are not even read.
+ *
+ * <pre>
+ * backup directory/incremental/chunks/(hash)
+ * backup directory/incremental/generation_(time).quill_manifest
+ * </pre>
+ *
+ * Any generation can be restored, see {@link #extract(File)}. Chunks are
+ * never deleted, so all generations stay complete.
+ *
+ * @author vbraun
+ *
+ */
+public class IncrementalBackup {
+	private static final String TAG = "IncrementalBackup";
+	private static final String DIRECTORY = "incremental";
+	private static final String CHUNK_DIRECTORY = "chunks";
+	private static final String GENERATION_PREFIX = "generation_";
+	public static final String MANIFEST_EXTENSION = ".quill_manifest";
+	private static final int VERSION = 1;
+
+	private static class FileEntry {
+		private final String name;
+		private final long length, mtime;
+		private final String hash;
+
+		private FileEntry(String name, long length, long mtime, String hash) {
+			this.name = name;
+			this.length = length;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+	}
+
+	private static class BookEntry {
+		private final UUID uuid;
+		private final String title;
+		private final boolean packed;  // the only file is a BookPack
+		private final LinkedList<FileEntry> files = new LinkedList<FileEntry>();
+
+		private BookEntry(UUID uuid, String title, boolean packed) {
+			this.uuid = uuid;
+			this.title = title;
+			this.packed = packed;
+		}
+
+		private FileEntry getFile(String name) {
+			for (FileEntry file : files)
+				if (file.name.equals(name))
+					return file;
+			return null;
+		}
+	}
+
+	private final Storage storage;
+	private final File dir, chunks;
+
+	/**
+	 * @param storage
+	 * @param backupDir The backup directory, the backups are in a subdirectory
+	 */
+	public IncrementalBackup(Storage storage, File backupDir) {
+		this.storage = storage;
+		dir = new File(backupDir, DIRECTORY);
+		chunks = new File(dir, CHUNK_DIRECTORY);
+	}
+
+	/**
+	 * Whether the file is the manifest of an incremental backup
+	 * @param file
+	 */
+	public static boolean isManifest(File file) {
+		return file.getName().endsWith(MANIFEST_EXTENSION);
+	}
+
+	/**
+	 * @return The manifests of all generations, the oldest first
+	 */
+	public LinkedList<File> listGenerations() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File directory, String name) {
+				return name.startsWith(GENERATION_PREFIX) && name.endsWith(MANIFEST_EXTENSION);
+			}});
+		LinkedList<File> generations = new LinkedList<File>();
+		if (files == null) return generations;
+		Arrays.sort(files);
+		generations.addAll(Arrays.asList(files));
+		return generations;
+	}
+
+	private File getChunk(String hash) {
+		return new File(chunks, hash);
+	}
+
+	/**
+	 * Back up all books. A new generation is only written if some file changed.
+	 * All books must be compacted, see {@link Bookshelf#compactBook(UUID)}.
+	 * @param books
+	 * @return Whether a new generation was written
+	 * @throws IOException
+	 */
+	protected boolean backup(List<BookPreview> books) throws IOException {
+		if (!chunks.isDirectory() && !chunks.mkdirs())
+			throw new IOException("Error creating backup directory " + chunks.toString());
+		LinkedList<File> generations = listGenerations();
+		HashMap<UUID, BookEntry> previous = new HashMap<UUID, BookEntry>();
+		if (!generations.isEmpty())
+			try {
+				for (BookEntry book : readManifest(generations.getLast()))
+					previous.put(book.uuid, book);
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading last backup, copying everything: "+e.getMessage());
+				previous.clear();
+			}
+		boolean changed = generations.isEmpty() || previous.size() != books.size();
+		LinkedList<BookEntry> manifest = new LinkedList<BookEntry>();
+		for (BookPreview nb : books) {
+			UUID uuid = nb.getUUID();
+			BookEntry last = previous.get(uuid);
+			BookEntry book;
+			String title = nb.getTitle();
+			synchronized (storage) {  // the book is not packed or unpacked meanwhile
+				if (storage.isBookPacked(uuid)) {
+					book = new BookEntry(uuid, title, true);
+					addFile(book, storage.getBookPackFile(uuid), last);
+				} else {
+					book = new BookEntry(uuid, title, false);
+					File[] files = storage.getBookDirectory(uuid).listFiles();
+					if (files == null) continue;
+					for (File file : files)
+						if (!file.getName().endsWith(".tmp"))
+							addFile(book, file, last);
+					for (File file : storage.listBlobFiles(uuid))
+						addFile(book, file, last);
+				}
+			}
+			changed |= isChanged(book, last);
+			manifest.add(book);
+		}
+		if (!changed) {
+			Log.d(TAG, "Nothing changed since the last backup");
+			return false;
+		}
+		writeManifest(manifest, new File(dir, GENERATION_PREFIX + System.currentTimeMillis() + MANIFEST_EXTENSION));
+		return true;
+	}
+
+	private static boolean isChanged(BookEntry book, BookEntry last) {
+		if (last == null || last.packed != book.packed || !last.title.equals(book.title)
+				|| last.files.size() != book.files.size())
+			return true;
+		for (FileEntry file : book.files) {
+			FileEntry old = last.getFile(file.name);
+			if (old == null || !old.hash.equals(file.hash))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add the file to the manifest of the book, and copy it into the chunk directory if necessary
+	 * @param book
+	 * @param file
+	 * @param last The book in the previous backup, or null
+	 */
+	private void addFile(BookEntry book, File file, BookEntry last) throws IOException {
+		String name = file.getName();
+		long length = file.length();
+		long mtime = file.lastModified();
+		FileEntry old = (last == null) ? null : last.getFile(name);
+		String hash = null;
+		if (old != null && old.length == length && old.mtime == mtime)
+			hash = old.hash;
+		else if (BlobStore.isBlobFileName(name))
+			hash = name.substring(0, name.indexOf('.'));
+		if (hash == null || !getChunk(hash).exists())
+			hash = copyToChunk(file);
+		book.files.add(new FileEntry(name, length, mtime, hash));
+	}
+
+	/**
+	 * Copy the file into the chunk directory
+	 * @return The hash of the content
+	 */
+	private String copyToChunk(File file) throws IOException {
+		MessageDigest digest = BlobStore.newDigest();
+		File tmp = new File(chunks, "chunk.tmp");
+		copy(file, tmp, digest);
+		String hash = BlobStore.toHex(digest);
+		File chunk = getChunk(hash);
+		if (chunk.exists())
+			tmp.delete();
+		else if (!tmp.renameTo(chunk)) {
+			tmp.delete();
+			throw new IOException("Unable to rename backup chunk");
+		}
+		return hash;
+	}
+
+	/**
+	 * Copy a file
+	 * @param digest Also computes the hash of the content, may be null
+	 */
+	protected static void copy(File source, File dest, MessageDigest digest) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(dest);
+			try {
+				byte data[] = new byte[8192];
+				int count;
+				while ((count = in.read(data)) != -1) {
+					if (digest != null)
+						digest.update(data, 0, count);
+					out.write(data, 0, count);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeManifest(LinkedList<BookEntry> books, File file) throws IOException {
+		Log.d(TAG, "Writing backup " + file.getName());
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(VERSION);
+			out.writeInt(books.size());
+			for (BookEntry book : books) {
+				out.writeUTF(book.uuid.toString());
+				out.writeUTF(book.title);
+				out.writeBoolean(book.packed);
+				out.writeInt(book.files.size());
+				for (FileEntry entry : book.files) {
+					out.writeUTF(entry.name);
+					out.writeLong(entry.length);
+					out.writeLong(entry.mtime);
+					out.writeUTF(entry.hash);
+				}
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename backup manifest");
+		}
+	}
+
+	private static LinkedList<BookEntry> readManifest(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		LinkedList<BookEntry> books = new LinkedList<BookEntry>();
+		try {
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown backup manifest version");
+			int nBooks = in.readInt();
+			for (int i=0; i<nBooks; i++) {
+				BookEntry book = new BookEntry(UUID.fromString(in.readUTF()), in.readUTF(), in.readBoolean());
+				int nFiles = in.readInt();
+				for (int j=0; j<nFiles; j++) {
+					String name = in.readUTF();
+					long length = in.readLong();
+					long mtime = in.readLong();
+					book.files.add(new FileEntry(name, length, mtime, in.readUTF()));
+				}
+				books.add(book);
+			}
+		} finally {
+			in.close();
+		}
+		return books;
+	}
+
+	/**
+	 * Restore the books of a backup generation into temporary book directories
+	 * @param manifest The manifest file of the generation, one of {@link #listGenerations()}
+	 * @return The book UUIDs and the directories with the restored files
+	 * @throws IOException
+	 */
+	protected LinkedHashMap<UUID, TemporaryDirectory> extract(File manifest) throws IOException {
+		LinkedHashMap<UUID, TemporaryDirectory> result = new LinkedHashMap<UUID, TemporaryDirectory>();
+		try {
+			for (BookEntry book : readManifest(manifest)) {
+				TemporaryDirectory tmp = storage.newTemporaryDirectory();
+				result.put(book.uuid, tmp);
+				for (FileEntry entry : book.files) {
+					File chunk = getChunk(entry.hash);
+					if (!chunk.exists())
+						throw new IOException("Backup is missing " + entry.name);
+					File file = new File(tmp, entry.name);
+					copy(chunk, file, null);
+					if (book.packed) {
+						BookPack pack = new BookPack(file);
+						try {
+							pack.extractAll(tmp);
+						} finally {
+							pack.close();
+						}
+						file.delete();
+					}
+				}
+			}
+		} catch (IOException e) {
+			for (TemporaryDirectory tmp : result.values())
+				tmp.deleteAll();
+			throw e;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,664 @@
+package com.write.Quill.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import name.vbraun.view.write.Graphics;
+import name.vbraun.view.write.GraphicsImage;
+import name.vbraun.view.write.GraphicsJournal;
+import name.vbraun.view.write.GraphicsLine;
+import name.vbraun.view.write.Page;
+import name.vbraun.view.write.Stroke;
+
+import junit.framework.Assert;
+
+import android.util.Log;
+
+/**
+ * Write-ahead journal of a {@link Book}
+ *
+ * Adding and removing graphics objects and pages is appended to the journal
+ * file in the book directory as soon as it happens. Saving the book then only
+ * writes the index and the pages that changed in some other way (paper, tags,
+ * new pages). Loading replays the journal on top of the page files.
+ *
+ * Every record has a sequence number. Whenever a page file is written, a
+ * snapshot record states that the page file contains all changes to the page
+ * with smaller sequence numbers. The page is first written to a temporary
+ * file that is only renamed after the snapshot record has been appended, so
+ * an interrupted write is either completed or discarded when loading.
+ *
+ * The journal is compacted by the {@link BookSaver} once it grows beyond
+ * COMPACT_SIZE, or before the book directory is read directly: the pages
+ * with changes are written again, and the journal is truncated if nothing
+ * remains to be replayed.
+ *
+ * Records are written without waiting for the storage, they survive the app
+ * but not necessarily a power loss.
+ *
+ * @author vbraun
+ *
+ */
+public class Journal implements GraphicsJournal {
+	private static final String TAG = "Journal";
+
+	protected static final String JOURNAL_FILE_PREFIX = "journal";
+	protected static final String JOURNAL_FILE = JOURNAL_FILE_PREFIX + ".quill_data";
+	// followed by the sequence number of the snapshot
+	private static final String SNAPSHOT_FILE_PREFIX = JOURNAL_FILE_PREFIX + "_";
+
+	private static final int VERSION = 1;
+
+	// journal size that triggers a compaction
+	private static final long COMPACT_SIZE = 512 * 1024;
+
+	// record types
+	private static final byte ADD_GRAPHICS = 1;
+	private static final byte REMOVE_GRAPHICS = 2;
+	private static final byte ADD_PAGE = 3;
+	private static final byte REMOVE_PAGE = 4;
+	private static final byte SNAPSHOT = 5;
+
+	// graphics types
+	private static final byte STROKE = 1;
+	private static final byte LINE = 2;
+	private static final byte IMAGE = 3;
+
+	/**
+	 * The serialized content of a page, see {@link Journal#snapshot(Page)}
+	 */
+	protected static class PageSnapshot {
+		protected final Page page;
+		private final long seq;
+		private final byte[] data;
+
+		private PageSnapshot(Page page, long seq, byte[] data) {
+			this.page = page;
+			this.seq = seq;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * A record read from the journal file
+	 */
+	protected static class Record {
+		private final byte type;
+		private final long seq;
+		private final UUID page;
+		private final byte[] data;
+
+		private Record(byte type, long seq, UUID page, byte[] data) {
+			this.type = type;
+			this.seq = seq;
+			this.page = page;
+			this.data = data;
+		}
+
+		private DataInputStream getData() {
+			return new DataInputStream(new ByteArrayInputStream(data));
+		}
+	}
+
+	private final File dir;
+	private final File file;
+
+	// the length of the journal file
+	private long size = 0;
+
+	// the next sequence number
+	private long nextSeq = 0;
+
+	// last record of every page with changes that are not in the page file
+	private final HashMap<UUID, Long> unsaved = new HashMap<UUID, Long>();
+
+	// the page files contain the records with smaller sequence numbers
+	private final HashMap<UUID, Long> saved = new HashMap<UUID, Long>();
+
+	// the snapshot of every page file written in this session, guarded by writeLock
+	private final HashMap<UUID, Long> written = new HashMap<UUID, Long>();
+
+	// pages whose last page record removed them from the book
+	private final HashSet<UUID> removed = new HashSet<UUID>();
+
+	// last record that changed the list of pages
+	private long lastPageRecord = -1;
+
+	// the index file contains the list of pages up to this sequence number
+	private long indexSeq = 0;
+
+	// held while a page file is written
+	private final Object writeLock = new Object();
+
+	public Journal(File dir) {
+		this.dir = dir;
+		file = new File(dir, JOURNAL_FILE);
+	}
+
+	/**
+	 * Read the journal file. Also completes or discards interrupted page
+	 * writes, so this must be called before loading the pages.
+	 * @param repair Whether to fix the files after an interruption. Must be 
+	 *               false unless the journal is going to be used for writing.
+	 * @return The records that are not in the page files
+	 */
+	protected synchronized LinkedList<Record> load(boolean repair) throws IOException {
+		LinkedList<Record> records = new LinkedList<Record>();
+		if (file.exists())
+			size = read(records, repair);
+		HashMap<Long, UUID> snapshots = new HashMap<Long, UUID>();
+		for (Record record : records) {
+			nextSeq = Math.max(nextSeq, record.seq + 1);
+			switch (record.type) {
+			case SNAPSHOT:
+				long seq = record.getData().readLong();
+				saved.put(record.page, seq);
+				snapshots.put(seq, record.page);
+				Long last = unsaved.get(record.page);
+				if (last != null && last < seq)
+					unsaved.remove(record.page);
+				break;
+			case REMOVE_PAGE:
+				unsaved.remove(record.page);
+				removed.add(record.page);
+				lastPageRecord = record.seq;
+				break;
+			case ADD_PAGE:
+				removed.remove(record.page);
+				lastPageRecord = record.seq;
+				break;
+			default:
+				unsaved.put(record.page, record.seq);
+			}
+		}
+		if (repair)
+			finishSnapshots(snapshots);
+		LinkedList<Record> result = new LinkedList<Record>();
+		for (Record record : records) {
+			if (record.type == SNAPSHOT)
+				continue;
+			Long seq = saved.get(record.page);
+			if (seq != null && record.seq < seq && record.type != ADD_PAGE && record.type != REMOVE_PAGE)
+				continue;
+			result.add(record);
+		}
+		return result;
+	}
+
+	/**
+	 * Read all complete records, a truncated or corrupt record at the end is cut off
+	 * @return The length of the valid part of the file
+	 */
+	private long read(LinkedList<Record> records, boolean repair) throws IOException {
+		long length = 0;
+		long fileLength = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown journal version");
+			length = 4;
+			while (true) {
+				byte type = in.readByte();
+				long seq = in.readLong();
+				UUID page = new UUID(in.readLong(), in.readLong());
+				int dataLength = in.readInt();
+				if (dataLength < 0 || length + 1 + 8 + 16 + 4 + dataLength > fileLength) {
+					Log.e(TAG, "Invalid journal record length " + dataLength);
+					break;
+				}
+				byte[] data = new byte[dataLength];
+				in.readFully(data);
+				records.add(new Record(type, seq, page, data));
+				length += 1 + 8 + 16 + 4 + data.length;
+			}
+		} catch (EOFException e) {
+			// end of the journal, possibly in the middle of a record
+		} finally {
+			in.close();
+		}
+		if (repair && length < file.length()) {
+			Log.e(TAG, "Truncated journal record");
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Rename the temporary page file whose snapshot record made it into the
+	 * journal, delete all other temporary page files
+	 */
+	private void finishSnapshots(HashMap<Long, UUID> snapshots) {
+		File[] entries = dir.listFiles();
+		if (entries == null) return;
+		for (File entry : entries) {
+			String name = entry.getName();
+			if (!name.startsWith(SNAPSHOT_FILE_PREFIX))
+				continue;
+			UUID page = null;
+			try {
+				page = snapshots.get(Long.parseLong(name.substring(SNAPSHOT_FILE_PREFIX.length())));
+			} catch (NumberFormatException e) {}
+			if (page == null) {
+				Log.e(TAG, "Discarding incomplete page file " + name);
+				entry.delete();
+			} else {
+				Log.e(TAG, "Completing page file " + name);
+				entry.renameTo(Book.getPageFile(dir, page));
+			}
+		}
+	}
+
+	/**
+	 * Split off the records of a single page
+	 * @param records The records returned by load(), the records of the page are removed
+	 * @param page The page UUID
+	 * @return The records of the page, or null (and nothing is removed) if the page was added or removed
+	 */
+	protected static LinkedList<Record> extractPage(LinkedList<Record> records, UUID page) {
+		for (Record record : records)
+			if (record.page.equals(page) && (record.type == ADD_PAGE || record.type == REMOVE_PAGE))
+				return null;
+		LinkedList<Record> result = new LinkedList<Record>();
+		Iterator<Record> iter = records.iterator();
+		while (iter.hasNext()) {
+			Record record = iter.next();
+			if (!record.page.equals(page))
+				continue;
+			result.add(record);
+			iter.remove();
+		}
+		return result;
+	}
+
+	/**
+	 * Apply the records to the book
+	 * @param book The book
+	 * @param bookPages The pages of the book, loaded from the page files
+	 * @param records The records returned by load()
+	 * @param addPages Whether to add and remove pages (false for truncated previews)
+	 */
+	protected void replay(Book book, List<Page> bookPages, LinkedList<Record> records, boolean addPages) 
+			throws IOException {
+		HashMap<UUID, Page> pages = new HashMap<UUID, Page>();
+		for (Page page : bookPages)
+			pages.put(page.getUUID(), page);
+		HashSet<Page> modified = new HashSet<Page>();
+		HashSet<Page> added = new HashSet<Page>();
+		for (Record record : records) {
+			Page page = pages.get(record.page);
+			DataInputStream in = record.getData();
+			switch (record.type) {
+			case ADD_GRAPHICS:
+				if (page == null) continue;
+				readGraphics(in, page);
+				modified.add(page);
+				break;
+			case REMOVE_GRAPHICS:
+				if (page == null) continue;
+				removeGraphics(in, page);
+				modified.add(page);
+				break;
+			case ADD_PAGE:
+				if (page != null || !addPages) continue;
+				int position = Math.min(in.readInt(), bookPages.size());
+				page = loadAddedPage(record.page, book);
+				if (page == null) {
+					page = new Page(in, book.tagManager, dir);
+					added.add(page);
+				}
+				bookPages.add(position, page);
+				pages.put(page.getUUID(), page);
+				break;
+			case REMOVE_PAGE:
+				if (page == null || !addPages) continue;
+				bookPages.remove(page);
+				pages.remove(page.getUUID());
+				break;
+			default:
+				Log.e(TAG, "Unknown journal record " + record.type);
+			}
+		}
+		for (Page page : modified)
+			page.markAsSaved();
+		for (Page page : added)
+			page.touch(); // the page file may be missing
+	}
+
+	/**
+	 * Load a page that was added but is missing in the index. If its page 
+	 * file was written, then the later records of the page have been
+	 * filtered out and the page file must be used instead of the record.
+	 * @return The page or null if there is no readable page file
+	 */
+	private Page loadAddedPage(UUID uuid, Book book) {
+		File pageFile = Book.getPageFile(dir, uuid);
+		if (!pageFile.exists())
+			return null;
+		try {
+			Page page = Page.load(pageFile, book.tagManager, dir);
+			if (page.getUUID().equals(uuid))
+				return page;
+			Log.e(TAG, "Page UUID mismatch in added page");
+		} catch (IOException e) {
+			Log.e(TAG, "Error loading added page: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private void readGraphics(DataInputStream in, Page page) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case STROKE:
+			page.addStroke(new Stroke(in));
+			break;
+		case LINE:
+			page.addLine(new GraphicsLine(in));
+			break;
+		case IMAGE:
+			page.addImage(new GraphicsImage(in, dir));
+			break;
+		default:
+			throw new IOException("Unknown graphics type in journal");
+		}
+	}
+
+	private void removeGraphics(DataInputStream in, Page page) throws IOException {
+		byte type = in.readByte();
+		int position = in.readInt();
+		List<? extends Graphics> graphics = (type == STROKE) ? page.getStrokes() : 
+			(type == LINE) ? page.getLineArt() : page.images;
+		if (position >= graphics.size()) {
+			Log.e(TAG, "Journal refers to missing graphics object");
+			return;
+		}
+		switch (type) {
+		case STROKE:
+			page.removeStroke((Stroke)graphics.get(position));
+			break;
+		case LINE:
+			page.removeLine((GraphicsLine)graphics.get(position));
+			break;
+		case IMAGE:
+			page.removeImage((GraphicsImage)graphics.get(position));
+			break;
+		default:
+			throw new IOException("Unknown graphics type in journal");
+		}
+	}
+
+	private static byte graphicsType(Graphics graphics) {
+		if (graphics instanceof Stroke)
+			return STROKE;
+		else if (graphics instanceof GraphicsLine)
+			return LINE;
+		else if (graphics instanceof GraphicsImage)
+			return IMAGE;
+		Assert.fail("Unknown graphics object");
+		return 0;
+	}
+
+	@Override
+	public boolean onGraphicsAdded(Page page, Graphics graphics) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(graphicsType(graphics));
+			graphics.writeToStream(out);
+		} catch (IOException e) {
+			return false;
+		}
+		return append(ADD_GRAPHICS, page.getUUID(), bytes.toByteArray());
+	}
+
+	@Override
+	public boolean onGraphicsRemoved(Page page, Graphics graphics, int position) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(graphicsType(graphics));
+			out.writeInt(position);
+		} catch (IOException e) {
+			return false;
+		}
+		return append(REMOVE_GRAPHICS, page.getUUID(), bytes.toByteArray());
+	}
+
+	/**
+	 * Record that a page was inserted into the book
+	 */
+	protected void pageAdded(Page page, int position) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(position);
+			synchronized (page) {
+				page.writeToStream(out);
+			}
+		} catch (IOException e) {
+			return;
+		}
+		append(ADD_PAGE, page.getUUID(), bytes.toByteArray());
+	}
+
+	/**
+	 * Record that a page was removed from the book
+	 */
+	protected void pageRemoved(Page page) {
+		append(REMOVE_PAGE, page.getUUID(), new byte[0]);
+	}
+
+	/**
+	 * Append a record to the journal file
+	 * @return Whether the record was written
+	 */
+	private synchronized boolean append(byte type, UUID page, byte[] data) {
+		if (!dir.isDirectory())
+			return false;
+		long seq = nextSeq++;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (size == 0)
+				out.writeInt(VERSION);
+			out.writeByte(type);
+			out.writeLong(seq);
+			out.writeLong(page.getMostSignificantBits());
+			out.writeLong(page.getLeastSignificantBits());
+			out.writeInt(data.length);
+			out.write(data);
+			FileOutputStream fos = new FileOutputStream(file, true);
+			try {
+				bytes.writeTo(fos);
+			} finally {
+				fos.close();
+			}
+			size += bytes.size();
+		} catch (IOException e) {
+			Storage.getInstance().LogError(TAG, e.getLocalizedMessage());
+			return false;
+		}
+		switch (type) {
+		case SNAPSHOT:
+			break;
+		case REMOVE_PAGE:
+			// the records of the page are obsolete once the index is saved
+			unsaved.remove(page);
+			removed.add(page);
+			lastPageRecord = seq;
+			break;
+		case ADD_PAGE:
+			removed.remove(page);
+			lastPageRecord = seq;
+			break;
+		default:
+			unsaved.put(page, seq);
+		}
+		return true;
+	}
+
+	/**
+	 * Reserve a sequence number that is not used by any record
+	 */
+	private synchronized long reserve() {
+		return nextSeq++;
+	}
+
+	/**
+	 * @return The sequence number of the next record
+	 */
+	protected synchronized long getSequence() {
+		return nextSeq;
+	}
+
+	/**
+	 * To be called after the index file was written
+	 * @param seq The sequence number at the time when the index was serialized
+	 */
+	protected synchronized void indexSaved(long seq) {
+		indexSeq = seq;
+		truncateIfSaved();
+	}
+
+	/**
+	 * Serialize the page. The page file can then be written on any thread,
+	 * see {@link #write(PageSnapshot)}.
+	 */
+	protected PageSnapshot snapshot(Page page) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long seq;
+		synchronized (page) {
+			seq = reserve();
+			page.writeToStream(new DataOutputStream(bytes));
+		}
+		return new PageSnapshot(page, seq, bytes.toByteArray());
+	}
+
+	/**
+	 * Write the page file. May be called from any thread. Nothing is written
+	 * if a later snapshot of the same page was written already.
+	 * @return The number of bytes written
+	 */
+	protected long write(PageSnapshot snapshot) throws IOException {
+		UUID uuid = snapshot.page.getUUID();
+		long seq = snapshot.seq;
+		synchronized (writeLock) {
+			Long last = written.get(uuid);
+			if (last != null && last > seq)
+				return 0;
+			Log.d(TAG, "Saving book page " + uuid);
+			File tmp = new File(dir, SNAPSHOT_FILE_PREFIX + seq);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(snapshot.data);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			ByteArrayOutputStream record = new ByteArrayOutputStream(8);
+			new DataOutputStream(record).writeLong(seq);
+			if (!append(SNAPSHOT, uuid, record.toByteArray())) {
+				tmp.delete();
+				throw new IOException("Unable to write journal");
+			}
+			if (!tmp.renameTo(Book.getPageFile(dir, uuid)))
+				throw new IOException("Unable to rename page file");
+			written.put(uuid, seq);
+			pageSaved(uuid, seq);
+		}
+		return snapshot.data.length;
+	}
+
+	/**
+	 * Serialize and write the page file. May be called from any thread.
+	 * @return The size of the page file
+	 */
+	protected long writePage(Page page) throws IOException {
+		return write(snapshot(page));
+	}
+
+	private synchronized void pageSaved(UUID page, long seq) {
+		saved.put(page, seq);
+		Long last = unsaved.get(page);
+		if (last != null && last < seq)
+			unsaved.remove(page);
+	}
+
+	/**
+	 * Write every page with changes that are only in the journal, and 
+	 * truncate the journal if nothing remains to be replayed. Runs on the 
+	 * calling thread, which must be the BookSaver worker: a page removed 
+	 * meanwhile may still get a page file, and only the next save deletes it.
+	 * @param pages All pages of the book at the time of the last save
+	 * @param force Whether to compact even if the journal is short
+	 */
+	protected void compact(List<Page> pages, boolean force) {
+		ArrayList<Page> toSave = new ArrayList<Page>();
+		synchronized (this) {
+			if (size == 0 || (!force && size < COMPACT_SIZE))
+				return;
+			for (Page page : pages)
+				if (unsaved.containsKey(page.getUUID()))
+					toSave.add(page);
+		}
+		for (Page page : toSave) {
+			synchronized (this) {
+				// the page list is from the last save, the page may have been deleted since
+				if (removed.contains(page.getUUID()))
+					continue;
+			}
+			try {
+				writePage(page);
+			} catch (IOException e) {
+				Log.e(TAG, "Compacting journal: " + e.getLocalizedMessage());
+			}
+		}
+		synchronized (this) {
+			truncateIfSaved();
+		}
+	}
+
+	/**
+	 * @param dir A book directory
+	 * @return Whether the book directory contains a journal file
+	 */
+	protected static boolean exists(File dir) {
+		return new File(dir, JOURNAL_FILE).exists();
+	}
+
+	/**
+	 * Delete the journal if the page and index files contain everything
+	 */
+	private void truncateIfSaved() {
+		if (size == 0 || !unsaved.isEmpty() || lastPageRecord >= indexSeq)
+			return;
+		if (!file.delete())
+			return;
+		Log.d(TAG, "Journal truncated");
+		size = 0;
+		saved.clear();
+		removed.clear();
+		lastPageRecord = -1;
+	}
+}
@@ -0,0 +1,89 @@
+package com.write.Quill.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import name.vbraun.view.write.Page;
+
+/**
+ * The ordered pages of a book
+ *
+ * An array of pages together with a map from the page UUID to its position,
+ * so looking up the position of a page does not scan the list. The map is
+ * rebuilt on the first lookup after the list was changed in any way, so a
+ * sequence of insertions or removals costs only one rebuild.
+ *
+ * @author vbraun
+ *
+ */
+public class PageList extends ArrayList<Page> {
+	private static final long serialVersionUID = -4046718405416914328L;
+
+	// page UUID -> position, valid if indexedModCount == modCount
+	private final HashMap<UUID, Integer> positions = new HashMap<UUID, Integer>();
+	private int indexedModCount = -1;
+
+	public PageList() {
+		super();
+	}
+
+	private void updatePositions() {
+		if (indexedModCount == modCount) return;
+		positions.clear();
+		for (int i=0; i<size(); i++)
+			positions.put(get(i).getUUID(), i);
+		indexedModCount = modCount;
+	}
+
+	/**
+	 * @param uuid The page UUID
+	 * @return The position of the page with the given UUID, or -1
+	 */
+	public int indexOf(UUID uuid) {
+		updatePositions();
+		Integer pos = positions.get(uuid);
+		return (pos == null) ? -1 : pos;
+	}
+
+	@Override
+	public int indexOf(Object object) {
+		if (!(object instanceof Page))
+			return -1;
+		Page page = (Page)object;
+		int pos = indexOf(page.getUUID());
+		if (pos >= 0 && get(pos) == page)
+			return pos;
+		if (positions.size() == size())
+			return -1;
+		// several pages with the same UUID, fall back to the list
+		return super.indexOf(page);
+	}
+
+	@Override
+	public boolean contains(Object object) {
+		return indexOf(object) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		int pos = indexOf(object);
+		if (pos < 0) return false;
+		remove(pos);
+		return true;
+	}
+
+	@Override
+	public Page set(int location, Page page) {
+		indexedModCount = -1;
+		return super.set(location, page);
+	}
+
+	public Page getFirst() {
+		return get(0);
+	}
+
+	public Page getLast() {
+		return get(size() - 1);
+	}
+}
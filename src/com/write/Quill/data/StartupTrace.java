@@ -0,0 +1,119 @@
+package com.write.Quill.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timing of the app startup
+ *
+ * Measures the time from the initialization of the storage until the current
+ * page is drawn and accepts pen input, the time to first ink. The stages in
+ * between, and those that finish in the background afterwards, are logged.
+ * Every measurement is also appended to a file in the app directory, together
+ * with the app version, so the startup time can be compared across releases.
+ * The file only keeps the most recent measurements.
+ *
+ * @author vbraun
+ *
+ */
+public class StartupTrace {
+	private static final String TAG = "StartupTrace";
+	private static final String FILE = "startup_times.txt";
+	private static final int MAX_ENTRIES = 100;
+
+	// uptime when the storage was initialized, or -1 if it was not yet
+	private static long begin = -1;
+
+	// whether the time to first ink was recorded since the beginning
+	private static boolean firstInk = false;
+
+	/**
+	 * Start the measurement. Called when the storage is initialized.
+	 */
+	protected static synchronized void begin() {
+		begin = SystemClock.uptimeMillis();
+		firstInk = false;
+	}
+
+	private static synchronized long elapsed() {
+		if (begin < 0)
+			return -1;
+		return SystemClock.uptimeMillis() - begin;
+	}
+
+	/**
+	 * Log the time since startup began
+	 * @param stage What was just completed
+	 */
+	public static void mark(String stage) {
+		long millis = elapsed();
+		if (millis >= 0)
+			Log.d(TAG, stage + " after " + millis + "ms");
+	}
+
+	/**
+	 * Record the time to first ink. Only the first call after startup has an effect.
+	 * @param version The app version name
+	 */
+	public static void firstInkReady(final String version) {
+		final long millis;
+		synchronized (StartupTrace.class) {
+			if (firstInk)
+				return;
+			millis = elapsed();
+			firstInk = true;
+		}
+		if (millis < 0)
+			return;
+		Log.i(TAG, "Time to first ink " + millis + "ms");
+		final File file = new File(Storage.getInstance().getFilesDir(), FILE);
+		Storage.getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					append(file, System.currentTimeMillis() + " " + version + " " + millis);
+				} catch (IOException e) {
+					Log.e(TAG, "Error writing startup time: "+e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Append a line to the file, dropping the oldest lines beyond MAX_ENTRIES
+	 */
+	private static void append(File file, String entry) throws IOException {
+		LinkedList<String> lines = new LinkedList<String>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					lines.add(line);
+					if (lines.size() >= MAX_ENTRIES)
+						lines.removeFirst();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// the first measurement
+		}
+		lines.add(entry);
+		FileWriter out = new FileWriter(file);
+		try {
+			for (String line : lines)
+				out.write(line + "\n");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,20 +1,20 @@
 package com.write.Quill.data;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.xeustechnologies.jtar.TarEntry;
-import org.xeustechnologies.jtar.TarInputStream;
-import org.xeustechnologies.jtar.TarOutputStream;
+
+import name.vbraun.view.write.GraphicsImage;
 
 import com.write.Quill.data.Book.BookLoadException;
 
@@ -36,12 +36,40 @@ public abstract class Storage {
 		return Storage.instance;
 	}
 	
+	// startup work that can wait until the current page is shown
+	private static ExecutorService background = null;
+	
+	/**
+	 * The background thread for startup work. Tasks run in the order they were submitted.
+	 */
+	protected static synchronized ExecutorService getBackgroundExecutor() {
+		if (background == null)
+			background = Executors.newSingleThreadExecutor();
+		return background;
+	}
+	
 	/**
 	 * Hook that runs after the instance singleton is initialized
+	 * 
+	 * Only the current page of the current book is loaded right away. The
+	 * remaining pages, the bookshelf previews, the removal of old temporary
+	 * directories, and the packing of unused books follow on the background thread.
 	 */
 	protected void postInitializaton() {
-		deleteAllTemporaryDirectories();
+		final LinkedList<TemporaryDirectory> stale = TemporaryDirectory.allTemporaryDirectories();
+		blobs = new BlobStore(this);
+		GraphicsImage.setBlobDirectory(blobs.getDirectory());
 		Bookshelf.initialize(this);
+		StartupTrace.mark("Bookshelf initialized");
+		getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (TemporaryDirectory tmp : stale)
+					tmp.deleteAll();
+				StartupTrace.mark("Temporary directories deleted");
+				packUnusedBooks();
+			}
+		});
 	}
 	
 	/**
@@ -77,6 +105,21 @@ public abstract class Storage {
 	}
 	
 	abstract public File getBackupDir();
+	
+	/**
+	 * @return Whether automatic backups are incremental, see {@link IncrementalBackup}
+	 */
+	abstract public boolean isBackupIncremental();
+
+	private BlobStore blobs;
+	
+	/**
+	 * The store for images, shared by all books
+	 * @return The BlobStore
+	 */
+	public BlobStore getBlobStore() {
+		return blobs;
+	}
 
 
 	public static class StorageIOException extends IOException {
@@ -148,15 +191,125 @@ public abstract class Storage {
 		LinkedList<UUID> uuids = new LinkedList<UUID>();
 		if (entries == null) return uuids;
 		for (File bookdir : entries) {
+			// either a book directory or a packed book
 			String path = bookdir.getAbsolutePath();
 			int pos = path.lastIndexOf(NOTEBOOK_DIRECTORY_PREFIX);
 			pos += NOTEBOOK_DIRECTORY_PREFIX.length();
-			UUID uuid = UUID.fromString(path.substring(pos));
-			uuids.add(uuid);
+			UUID uuid = UUID.fromString(path.substring(pos, pos+36));
+			if (!uuids.contains(uuid))
+				uuids.add(uuid);
 		}
 		return uuids;
 	}
 
+	////////////////////////////////////////////////////
+	/// packed books
+
+	/**
+	 * The file of the packed book, see {@link BookPack}. 
+	 * Only used if there is no book directory for the same UUID.
+	 * @param uuid
+	 * @return A File that need not exist
+	 */
+	public File getBookPackFile(UUID uuid) {
+		return new File(getFilesDir(), NOTEBOOK_DIRECTORY_PREFIX + uuid.toString() + BookPack.FILE_EXTENSION);
+	}
+	
+	public boolean isBookPacked(UUID uuid) {
+		return !getBookDirectory(uuid).isDirectory() && getBookPackFile(uuid).exists();
+	}
+	
+	// books that were not opened or changed for this long are packed
+	private static final long PACK_UNUSED_MILLIS = 30L * 24 * 60 * 60 * 1000;
+	
+	/**
+	 * Pack all books that were not opened or changed for a month. Opening a 
+	 * book updates the modification time of its directory, so the current 
+	 * book is never packed.
+	 */
+	protected void packUnusedBooks() {
+		int count = 0;
+		for (UUID uuid : listBookUUIDs()) {
+			try {
+				if (packBookIfUnused(uuid))
+					count++;
+			} catch (StorageIOException e) {
+				LogError(TAG, e.getLocalizedMessage());
+			}
+		}
+		if (count > 0)
+			LogMessage(TAG, "Packed " + count + " unused books");
+	}
+	
+	private synchronized boolean packBookIfUnused(UUID uuid) throws StorageIOException {
+		BookDirectory dir = getBookDirectory(uuid);
+		if (!dir.isDirectory() || System.currentTimeMillis() - dir.lastModified() < PACK_UNUSED_MILLIS)
+			return false;
+		packBook(uuid);
+		return true;
+	}
+	
+	/**
+	 * Convert a book directory into a packed book. The book must not be open.
+	 * 
+	 * Packing and unpacking lock the storage. Books are opened while holding
+	 * the same lock, see {@link Book#Book(Storage, UUID)}.
+	 * @param uuid
+	 * @throws StorageIOException
+	 */
+	public synchronized void packBook(UUID uuid) throws StorageIOException {
+		BookSaver.flush(uuid);
+		BookDirectory dir = getBookDirectory(uuid);
+		if (!dir.isDirectory()) return;
+		Book book = new Book(this, uuid, false);
+		try {
+			BookPack.write(book, dir, getBookPackFile(uuid));
+		} catch (IOException e) {
+			throw new StorageIOException(e.getMessage());
+		} finally {
+			book.close();
+		}
+		// remove the directory in one step, the pack is only used without it
+		TemporaryDirectory tmp = newTemporaryDirectory();
+		tmp.delete();
+		if (!dir.renameTo(tmp))
+			throw new StorageIOException("Unable to remove book directory");
+		tmp.deleteAll();
+	}
+	
+	/**
+	 * Convert a packed book back into a book directory. Does nothing if the book is not packed.
+	 * @param uuid
+	 * @throws StorageIOException
+	 */
+	public synchronized void unpackBook(UUID uuid) throws StorageIOException {
+		File file = getBookPackFile(uuid);
+		if (!file.exists()) return;
+		BookDirectory dir = getBookDirectory(uuid);
+		if (dir.isDirectory()) {
+			// packing was interrupted before the directory was removed 
+			file.delete();
+			return;
+		}
+		TemporaryDirectory tmp = newTemporaryDirectory();
+		try {
+			BookPack pack = new BookPack(file);
+			try {
+				pack.extractAll(tmp);
+			} finally {
+				pack.close();
+			}
+		} catch (IOException e) {
+			tmp.deleteAll();
+			throw new StorageIOException(e.getMessage());
+		}
+		if (!tmp.renameTo(dir)) {
+			tmp.deleteAll();
+			throw new StorageIOException("Unable to create book directory");
+		}
+		file.delete();
+	}
+
 		
 	////////////////////////////////////////////////////
 	/// import/export archives
@@ -164,44 +317,34 @@ public abstract class Storage {
 	public UUID importArchive(File file) throws StorageIOException {
 		Bookshelf.assertNoCurrentBook();
 		File filesFolder = getFilesDir();
-		File notebookFile = null; 
-		TarInputStream tis = null;
 		UUID uuid = null;
+		long start = System.currentTimeMillis();
 		try {
-			tis = new TarInputStream(new BufferedInputStream(new FileInputStream(file)));
-			TarEntry entry;
-			while((entry = tis.getNextEntry()) != null) {
-				// LogMessage(TAG, "importArchive "+entry);
-				if (entry.getName() == null)
-					throw new StorageIOException("Incorrect book archive file");
-				if (uuid == null) {
-					uuid = getBookUUIDfromDirectoryName(entry.getName());
-					if (uuid == null)
+			TarArchive.Reader tar = new TarArchive.Reader(file);
+			try {
+				TarEntry entry;
+				while((entry = tar.next()) != null) {
+					// LogMessage(TAG, "importArchive "+entry);
+					if (entry.getName() == null)
+						throw new StorageIOException("Incorrect book archive file");
+					if (uuid == null) {
+						uuid = getBookUUIDfromDirectoryName(entry.getName());
+						if (uuid == null)
+							throw new StorageIOException("Incorrect book archive file");
+						File notebookDir = getBookDirectory(uuid);
+						if (!notebookDir.exists()) notebookDir.mkdir();
+					} else if (!uuid.equals(getBookUUIDfromDirectoryName(entry.getName())))
 						throw new StorageIOException("Incorrect book archive file");
-					File notebookDir = getBookDirectory(uuid);
-					if (!notebookDir.exists()) notebookDir.mkdir();
-				} else if (!uuid.equals(getBookUUIDfromDirectoryName(entry.getName())))
-					throw new StorageIOException("Incorrect book archive file");
-				notebookFile = new File(filesFolder, entry.getName());
-				int count;
-				byte data[] = new byte[2048];
-				FileOutputStream fos = new FileOutputStream(notebookFile);
-				BufferedOutputStream dest = new BufferedOutputStream(fos);
-				while((count = tis.read(data)) != -1) {
-					dest.write(data, 0, count);
-				}	
-				dest.flush();
-				dest.close();
-			}	
+					tar.extract(entry, new File(filesFolder, entry.getName()));
+				}
+				LogMessage(TAG, "Imported " + tar.getSize() + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+			} finally {
+				tar.close();
+			}
+		} catch (StorageIOException e) {
+			throw e;
 		} catch (IOException e) {
 			throw new StorageIOException(e.getMessage());
-		} finally {
-			try {
-				if (tis != null)
-					tis.close();
-			} catch (IOException e) {
-				throw new StorageIOException(e.getMessage());
-			}			
 		}
 		if (uuid == null)
 			throw new StorageIOException("No ID in book archive file.");
@@ -209,29 +352,57 @@ public abstract class Storage {
 	}
 	
 	public void exportArchive(UUID uuid, File dest) throws StorageIOException {
+		exportArchive(uuid, dest, false);
+	}
+	
+	/**
+	 * Write a book archive
+	 * @param uuid The book
+	 * @param dest The archive file
+	 * @param compress Whether to gzip the archive. Older versions can only import uncompressed archives.
+	 * @throws StorageIOException
+	 */
+	public void exportArchive(UUID uuid, File dest, boolean compress) throws StorageIOException {
+		unpackBook(uuid);
+		long start = System.currentTimeMillis();
 		try {
-			TarOutputStream out = new TarOutputStream( new BufferedOutputStream( new FileOutputStream(dest)));
-
-			File dir = getBookDirectory(uuid);
-			File[] filesToTar = dir.listFiles();
-			int count;
-			byte data[] = new byte[2048];
-			for(File f:filesToTar){
-				// LogMessage(TAG, "exportiArchive "+f);
-				String name = dir.getName() + File.separator + f.getName();
-				out.putNextEntry(new TarEntry(f, name));
-				BufferedInputStream origin = new BufferedInputStream(new FileInputStream(f));
-				while((count = origin.read(data)) != -1)
-					out.write(data, 0, count);
-		      out.flush();
-		      origin.close();
-		   }
-		   out.close();
+			TarArchive.Writer tar = new TarArchive.Writer(dest, compress);
+			try {
+				File dir = getBookDirectory(uuid);
+				LinkedList<File> filesToTar = new LinkedList<File>();
+				for (File f : dir.listFiles())
+					filesToTar.add(f);
+				// the images from the blob store go into the book directory of the archive
+				filesToTar.addAll(listBlobFiles(uuid));
+				for(File f:filesToTar){
+					// LogMessage(TAG, "exportiArchive "+f);
+					tar.add(f, dir.getName() + File.separator + f.getName());
+				}
+			} finally {
+				tar.close();
+			}
+			LogMessage(TAG, "Exported " + tar.getSize() + " bytes in " + (System.currentTimeMillis() - start) + "ms");
 		} catch (IOException e) {
 			throw new StorageIOException(e.getMessage());
 		}
 	}
 	
+	/**
+	 * The files in the blob store that are used by a saved book
+	 * @param uuid The book UUID
+	 * @return A list of existing files
+	 */
+	public LinkedList<File> listBlobFiles(UUID uuid) {
+		LinkedList<File> files = new LinkedList<File>();
+		Set<String> hashes = blobs.getReferences(uuid);
+		for (String hash : hashes) {
+			File file = blobs.getFile(hash);
+			if (file.exists())
+				files.add(file);
+		}
+		return files;
+	}
+	
 	////////////////////////////////////////////////////
 	/// import old version
 	
@@ -24,6 +24,7 @@ public class StorageAndroid extends Storage {
 	
 	public static void initialize(Context context) {
 		if (instance != null) return;
+		StartupTrace.begin();
 		instance = new StorageAndroid(context);
 		instance.postInitializaton();
 	}
@@ -97,6 +98,7 @@ public class StorageAndroid extends Storage {
 
 	public static final String KEY_AUTO_BACKUP = "backup_automatic";
 	public static final String KEY_BACKUP_DIR  = "backup_directory";
+	public static final String KEY_BACKUP_INCREMENTAL = "backup_incremental";
 	
 	/**
 	 * Return the backup directory 
@@ -113,5 +115,10 @@ public class StorageAndroid extends Storage {
 		return dir; 
 	}
 	
+	public boolean isBackupIncremental() {
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+		return settings.getBoolean(KEY_BACKUP_INCREMENTAL, false);
+	}
+	
 	
 }
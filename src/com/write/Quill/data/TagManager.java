@@ -3,31 +3,59 @@ package com.write.Quill.data;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Collections;
+import java.util.TreeSet;
 
 import junit.framework.Assert;
 
-import android.util.Log;
-
 /**
  * The tag manager keeps track of tags. Each Tag is a unique object. 
  * 
+ * The pages of a book are decoded in parallel, so the methods that create 
+ * tags and tag sets are synchronized. TagSets lock the tag manager, too, 
+ * since changes update the tag counts. Iterators and lists handed out are
+ * copies, they do not change when tags are added or removed later.
+ * 
+ * Tags are found by their case-folded name. The count of a tag is the number
+ * of TagSets containing it, it is updated whenever a TagSet changes. TagSets
+ * that were garbage collected are subtracted the next time the tag list is
+ * used.
+ * 
  * @author vbraun
  *
  */
 public class TagManager {
 	private static final String TAG = "TagManager";
-	private LinkedList<WeakReference<TagSet>> allTagSets = 
-			new LinkedList<WeakReference<TagSet>>();
-	private LinkedList<Tag> allTags = new LinkedList<Tag>();
-	private LinkedList<Tag> allTagsByCount = new LinkedList<Tag>();
+	private final HashSet<TagSetReference> allTagSets = new HashSet<TagSetReference>();
+	private final ReferenceQueue<TagSet> collectedTagSets = new ReferenceQueue<TagSet>();
+	private final HashMap<String, Tag> tagsByName = new HashMap<String, Tag>();
+	private final ArrayList<Tag> allTags = new ArrayList<Tag>();
+	private final TreeSet<Tag> allTagsByCount = new TreeSet<Tag>(new CompareCount());
+	private int nextSerial = 0;
 
-	
+	/**
+	 * Weak reference to a TagSet that still knows its tags after the TagSet 
+	 * is collected, so they can be counted down.
+	 */
+	private class TagSetReference extends WeakReference<TagSet> {
+		private final LinkedList<Tag> tags;
+		
+		private TagSetReference(TagSet ts) {
+			super(ts, collectedTagSets);
+			tags = ts.tags;
+		}
+	}
 	
 	/**
 	 * A single Tag. Use newTag() to construct them.
@@ -40,6 +68,8 @@ public class TagManager {
 		protected int count = 0;
 		protected boolean autogenerated = false;
 		protected long ctime;
+		// creation order, to sort tags with equal count
+		private final int serial = nextSerial++;
 		
 		private Tag(String tagName) {
 			name = new String(tagName);
@@ -89,20 +119,24 @@ public class TagManager {
 		
 		public TagSet copy() {
 			TagSet ts = newTagSet();
-			ts.tags.addAll(ts.tags);
+			ts.add(this);
 			return ts;
 		}
 		
 		public boolean contains(Tag tag) {
-			return tags.contains(tag);
+			synchronized (TagManager.this) {
+				return tags.contains(tag);
+			}
 		}
 		
 		public boolean add(Tag tag) {
-			if (!tags.contains(tag)) {
+			synchronized (TagManager.this) {
+				if (tags.contains(tag))
+					return false;
 				tags.add(tag);
+				changeCount(tag, +1);
 				return true;
 			}
-			return false;
 		}
 		
 		public boolean add(TagSet tagSet) {
@@ -117,30 +151,48 @@ public class TagManager {
 		}
 		
 		public boolean remove(Tag tag) {
-			return tags.remove(tag);
+			synchronized (TagManager.this) {
+				if (!tags.remove(tag))
+					return false;
+				changeCount(tag, -1);
+				return true;
+			}
 		}
 		
+		/**
+		 * @return An iterator over a copy of the tags
+		 */
 		public ListIterator<Tag> tagIterator() {
-			return tags.listIterator();
+			synchronized (TagManager.this) {
+				return new ArrayList<Tag>(tags).listIterator();
+			}
 		}
 		
-		public LinkedList<Tag> allTags() {
-			return allTags;
+		/**
+		 * @return A copy of the list of all tags of the tag manager
+		 */
+		public List<Tag> allTags() {
+			synchronized (TagManager.this) {
+				return new ArrayList<Tag>(allTags);
+			}
 		}
 		
 		public int size() {
-			return tags.size();
+			synchronized (TagManager.this) {
+				return tags.size();
+			}
 		}
 		
 		public void write_to_stream(DataOutputStream out) throws IOException {
+			ArrayList<Tag> copy;
+			synchronized (TagManager.this) {
+				copy = new ArrayList<Tag>(tags);
+			}
 			out.writeInt(1);  // protocol #1
-			out.writeInt(tags.size());
+			out.writeInt(copy.size());
 			// Log.d(TAG, "TagSet wrote n = "+tags.size());
-			ListIterator<Tag> iter = tags.listIterator();
-			while (iter.hasNext()) {
-				Tag t = iter.next();
+			for (Tag t : copy)
 				t.write_to_stream(out);
-			}
 			out.writeInt(0); // reserved1
 			out.writeInt(0); // reserved2
 		}
@@ -157,9 +209,8 @@ public class TagManager {
 				if (existing_tag != null) {
 					add(existing_tag);
 				} else {
+					addTag(tag);
 					add(tag);
-					allTags.add(tag);
-					allTagsByCount.add(tag);
 				}
 			}
 			in.readInt();  // reserved1
@@ -173,13 +224,44 @@ public class TagManager {
 	 * 
 	 * @return a new TagSet
 	 */
-	public TagSet newTagSet() {
+	public synchronized TagSet newTagSet() {
 		TagSet ts = new TagSet();
-		allTagSets.add(new WeakReference<TagSet>(ts));
+		addTagSet(ts);
 		// Log.d(TAG, "size = "+allTagSets.size()+" "+ts);
 		return ts;
 	}
 	
+	private void addTagSet(TagSet ts) {
+		expungeTagSets();
+		allTagSets.add(new TagSetReference(ts));
+	}
+	
+	private void addTag(Tag tag) {
+		allTags.add(tag);
+		allTagsByCount.add(tag);
+		tagsByName.put(fold(tag.name), tag);
+	}
+	
+	/**
+	 * Change the count of a tag and keep allTagsByCount in order
+	 */
+	private void changeCount(Tag tag, int delta) {
+		boolean tracked = allTagsByCount.remove(tag);
+		tag.count += delta;
+		if (tracked)
+			allTagsByCount.add(tag);
+	}
+	
+	/**
+	 * The key for case insensitive lookup, compares like String.equalsIgnoreCase()
+	 */
+	private static String fold(String name) {
+		char[] chars = name.toCharArray();
+		for (int i=0; i<chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		return new String(chars);
+	}
+	
 	/**
 	 * This static method is the only wa to construct a new Tag
 	 * 
@@ -187,20 +269,19 @@ public class TagManager {
 	 * @return a Tag with the given name. Might be an already 
 	 * 		   existing Tag if it carries the same name.
 	 */
-	public Tag newTag(String name) {
+	public synchronized Tag newTag(String name) {
 		Tag t = findTag(name);
 		if (t == null) {
 			t = new Tag(name);
-			allTags.add(t);
-			allTagsByCount.add(t);
+			addTag(t);
 		}
 		// Log.d(TAG, "Created new tag "+name+" "+allTags.size());
 		return t;
 	}
 	
-	public TagSet loadTagSet(DataInputStream in) throws IOException {
+	public synchronized TagSet loadTagSet(DataInputStream in) throws IOException {
 		TagSet ts = new TagSet(in);
-		allTagSets.add(new WeakReference<TagSet>(ts));
+		addTagSet(ts);
 		// Log.d(TAG, "size = "+allTagSets.size()+" "+ts);
 		return ts;
 	}
@@ -212,14 +293,10 @@ public class TagManager {
 	 * @param tag
 	 * @return null if no such tag exists
 	 */
-	public Tag findTagExcept(String name, Tag tag) {
-		ListIterator<Tag> iter = allTags.listIterator();
-		while (iter.hasNext()) {
-			Tag t = iter.next();
-			if (name.equalsIgnoreCase(t.name) && t != tag)
-				return t;
-		}
-		return null;
+	public synchronized Tag findTagExcept(String name, Tag tag) {
+		// there is at most one tag with the same name
+		Tag t = tagsByName.get(fold(name));
+		return (t == tag) ? null : t;
 	}
 
 	
@@ -233,22 +310,22 @@ public class TagManager {
 		return findTagExcept(name, null);
 	}
 		
-	public Tag get(int position) {
+	public synchronized Tag get(int position) {
 		return allTags.get(position);
 	}
 	
 	/**
-	 * Sort the tags. 
+	 * Sort the tags. The tags by count are always sorted.
 	 */
-	public void sort() {		
+	public synchronized void sort() {		
 		Assert.assertTrue(allTags.size() == allTagsByCount.size());
 		expungeTagSets();
-		countTags();
-		// Collections.sort(allTags, new CompareCount());
 		Collections.sort(allTags, new CompareLexicographic());
-		Collections.sort(allTagsByCount, new CompareCount());
 	}
 	
+	/**
+	 * Most used tags first, ties in order of creation
+	 */
 	public class CompareCount implements Comparator<Tag> {
 		@Override
 		public int compare(Tag t0, Tag t1) {
@@ -257,7 +334,7 @@ public class TagManager {
 			if(x > y) {
 				return -1;
 			} else if(x == y) {
-				return 0;
+				return (t0.serial < t1.serial) ? -1 : (t0.serial == t1.serial ? 0 : 1);
 			} else {
 				return 1;
 			}
@@ -272,45 +349,32 @@ public class TagManager {
 	}
 
 	/**
-	 * remove stale TagSets
+	 * remove collected TagSets and count down their tags
 	 */
 	private void expungeTagSets() {
-		ListIterator<WeakReference<TagSet>> iter = allTagSets.listIterator();
-		while (iter.hasNext())
-			if (iter.next().get() == null)
-				iter.remove();
+		TagSetReference ref;
+		while ((ref = (TagSetReference)collectedTagSets.poll()) != null) {
+			allTagSets.remove(ref);
+			for (Tag t : ref.tags)
+				changeCount(t, -1);
+		}
  	}
 	
 	/**
 	 * remove unused Tags
 	 */
-	public void expungeTags() {
-		countTags();
-		ListIterator<Tag> tag_iter = allTags.listIterator();
-		while (tag_iter.hasNext()) {
-			Tag t = tag_iter.next();
-			if (t.count == 0) {
-				tag_iter.remove();
-				allTagsByCount.remove(t);
-			}
+	public synchronized void expungeTags() {
+		expungeTagSets();
+		while (!allTagsByCount.isEmpty() && allTagsByCount.last().count == 0) {
+			Tag t = allTagsByCount.pollLast();
+			tagsByName.remove(fold(t.name));
 		}
-	}
-	
-	/**
-	 * update tag counts
-	 */
-	private void countTags() {
-		ListIterator<Tag> tag_iter = allTags.listIterator();
+		if (allTags.size() == allTagsByCount.size()) 
+			return;
+		Iterator<Tag> tag_iter = allTags.iterator();
 		while (tag_iter.hasNext())
-			tag_iter.next().count = 0;
-		ListIterator<WeakReference<TagSet>> tagSet_iter = allTagSets.listIterator();
-		while (tagSet_iter.hasNext()) {
-			TagSet ts = tagSet_iter.next().get();
-			if (ts == null) continue;
- 			tag_iter = ts.tagIterator();
-			while (tag_iter.hasNext())
-				tag_iter.next().count += 1;
-		}	
+			if (tag_iter.next().count == 0)
+				tag_iter.remove();
 	}
 	
 	/**
@@ -319,18 +383,21 @@ public class TagManager {
 	 * @param tag the tag you want to rename
 	 * @param name the new name for the tag
 	 */
-	public void renameTag(Tag tag, String name) {
-		if (name.isEmpty()) 
+	public synchronized void renameTag(Tag tag, String name) {
+		if (name.isEmpty()) {
 			deleteTag(tag);
+			return;
+		}
+		String key = fold(tag.name);
+		if (tagsByName.get(key) == tag)
+			tagsByName.remove(key);
 		tag.name = name;
 		// merge with other tag of the same name, if there is one
-		Tag other = findTagExcept(name, tag);
-		Log.d(TAG, "other = "+other+" "+allTagSets.size());
-		if (other == null) 
+		Tag other = tagsByName.put(fold(name), tag);
+		if (other == null || other == tag) 
 			return; 
-		ListIterator<WeakReference<TagSet>> tagSet_iter = allTagSets.listIterator();
-		while (tagSet_iter.hasNext()) {
-			TagSet ts = tagSet_iter.next().get();
+		for (TagSetReference ref : allTagSets) {
+			TagSet ts = ref.get();
 			if (ts == null) continue;
 			boolean removed = ts.remove(other);
 			if (removed && !ts.contains(tag))
@@ -338,17 +405,6 @@ public class TagManager {
 		}
 		allTags.remove(other);
 		allTagsByCount.remove(other);
-
-		tagSet_iter = allTagSets.listIterator();
-		while (tagSet_iter.hasNext()) {
-			TagSet ts = tagSet_iter.next().get();
-			if (ts == null) continue;
-			ListIterator<Tag> tag_iter = ts.tagIterator();
-			while (tag_iter.hasNext()) 
-				Assert.assertTrue(allTags.contains(tag_iter.next()));
-			Assert.assertFalse(ts.contains(other));
-		}
-					
 	}
 	
 	/**
@@ -356,12 +412,14 @@ public class TagManager {
 	 * 
 	 * @param tag
 	 */
-	public void deleteTag(Tag tag) {
+	public synchronized void deleteTag(Tag tag) {
 		allTags.remove(tag);
 		allTagsByCount.remove(tag);
-		ListIterator<WeakReference<TagSet>> tagSet_iter = allTagSets.listIterator();
-		while (tagSet_iter.hasNext()) {
-			TagSet ts = tagSet_iter.next().get();
+		String key = fold(tag.name);
+		if (tagsByName.get(key) == tag)
+			tagsByName.remove(key);
+		for (TagSetReference ref : allTagSets) {
+			TagSet ts = ref.get();
 			if (ts == null) continue;
 			ts.remove(tag);
 		}
@@ -0,0 +1,253 @@
+package com.write.Quill.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.xeustechnologies.jtar.TarConstants;
+import org.xeustechnologies.jtar.TarEntry;
+
+/**
+ * Tar archives read and written through channels
+ *
+ * The archive format is the same as that of the jtar streams, whose
+ * {@link TarEntry} is used for the headers. But the file contents are copied
+ * between the file channels with transferTo/transferFrom in large chunks,
+ * instead of through small byte arrays. Archives may be gzip compressed, the
+ * Reader detects this automatically.
+ *
+ * @author vbraun
+ *
+ */
+public class TarArchive {
+	private static final int BLOCK = TarConstants.DATA_BLOCK;
+
+	// size of the gzip buffers, and the largest chunk for transfers
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private static long padding(long size) {
+		long rest = size % BLOCK;
+		return rest == 0 ? 0 : BLOCK - rest;
+	}
+
+	/**
+	 * Write a tar archive
+	 */
+	public static class Writer {
+		private final FileOutputStream fos;
+		private final WritableByteChannel out;
+		private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+		private final ByteBuffer zeros = ByteBuffer.allocateDirect(TarConstants.EOF_BLOCK);
+		private long size = 0;
+
+		/**
+		 * @param file The archive file
+		 * @param compress Whether to gzip the archive
+		 * @throws IOException
+		 */
+		public Writer(File file, boolean compress) throws IOException {
+			fos = new FileOutputStream(file);
+			if (compress)
+				out = Channels.newChannel(new GZIPOutputStream(fos, BUFFER_SIZE));
+			else
+				out = fos.getChannel();
+		}
+
+		/**
+		 * Add a file to the archive
+		 * @param file
+		 * @param name The name in the archive
+		 * @throws IOException
+		 */
+		public void add(File file, String name) throws IOException {
+			TarEntry entry = new TarEntry(file, name);
+			entry.writeEntryHeader(header.array());
+			header.clear();
+			writeFully(header);
+			if (entry.isDirectory()) return;
+			long length = entry.getSize();
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				FileChannel in = fis.getChannel();
+				long position = 0;
+				while (position < length) {
+					long count = in.transferTo(position, Math.min(length - position, BUFFER_SIZE), out);
+					if (count <= 0)
+						throw new IOException("File changed while archiving: " + file.getName());
+					position += count;
+				}
+			} finally {
+				fis.close();
+			}
+			size += length;
+			writeZeros(padding(length));
+		}
+
+		/**
+		 * @return The total size of the archived files
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining())
+				out.write(buffer);
+		}
+
+		private void writeZeros(long n) throws IOException {
+			zeros.clear();
+			zeros.limit((int)n);
+			writeFully(zeros);
+		}
+
+		/**
+		 * Write the end of the archive and close the file
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			try {
+				writeZeros(TarConstants.EOF_BLOCK);
+				out.close();
+			} finally {
+				fos.close();
+			}
+		}
+	}
+
+	/**
+	 * Read a tar archive, possibly gzip compressed
+	 */
+	public static class Reader {
+		private final FileInputStream fis;
+		private final ReadableByteChannel in;
+		private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+		private final ByteBuffer skip = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private long remaining = 0;  // unread data and padding of the current entry
+		private long size = 0;
+
+		/**
+		 * @param file The archive file
+		 * @throws IOException
+		 */
+		public Reader(File file) throws IOException {
+			fis = new FileInputStream(file);
+			try {
+				if (isCompressed(fis.getChannel()))
+					in = Channels.newChannel(new GZIPInputStream(fis, BUFFER_SIZE));
+				else
+					in = fis.getChannel();
+			} catch (IOException e) {
+				fis.close();
+				throw e;
+			}
+		}
+
+		private static boolean isCompressed(FileChannel channel) throws IOException {
+			ByteBuffer magic = ByteBuffer.allocate(2);
+			channel.read(magic, 0);
+			if (magic.position() < 2) return false;
+			return ((magic.get(0) & 0xff) | ((magic.get(1) & 0xff) << 8)) == GZIP_MAGIC;
+		}
+
+		/**
+		 * Go to the next entry, skipping the data of the current entry if it was not extracted
+		 * @return The entry or null at the end of the archive
+		 * @throws IOException
+		 */
+		public TarEntry next() throws IOException {
+			skip(remaining);
+			header.clear();
+			if (!readFully(header))
+				return null;
+			boolean empty = true;
+			for (byte b : header.array())
+				if (b != 0) {
+					empty = false;
+					break;
+				}
+			if (empty)
+				return null;
+			TarEntry entry = new TarEntry(header.array());
+			remaining = entry.isDirectory() ? 0 : entry.getSize() + padding(entry.getSize());
+			return entry;
+		}
+
+		/**
+		 * Write the data of the current entry to a file
+		 * @param entry The entry returned by the last call to next()
+		 * @param dest
+		 * @throws IOException
+		 */
+		public void extract(TarEntry entry, File dest) throws IOException {
+			long length = entry.getSize();
+			FileOutputStream out = new FileOutputStream(dest);
+			try {
+				FileChannel channel = out.getChannel();
+				long position = 0;
+				while (position < length) {
+					long count = channel.transferFrom(in, position, Math.min(length - position, BUFFER_SIZE));
+					if (count <= 0)
+						throw new IOException("Truncated archive");
+					position += count;
+				}
+			} finally {
+				out.close();
+			}
+			size += length;
+			remaining -= length;
+		}
+
+		/**
+		 * @return The total size of the extracted files
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		private boolean readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining())
+				if (in.read(buffer) < 0) {
+					if (buffer.position() == 0)
+						return false;
+					throw new IOException("Truncated archive");
+				}
+			return true;
+		}
+
+		private void skip(long n) throws IOException {
+			if (n == 0) return;
+			if (in instanceof FileChannel) {
+				FileChannel channel = (FileChannel)in;
+				channel.position(channel.position() + n);
+				return;
+			}
+			while (n > 0) {
+				skip.clear();
+				skip.limit((int)Math.min(n, BUFFER_SIZE));
+				int count = in.read(skip);
+				if (count < 0)
+					throw new IOException("Truncated archive");
+				n -= count;
+			}
+		}
+
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				fis.close();
+			}
+		}
+	}
+}
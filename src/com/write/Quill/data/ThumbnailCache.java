@@ -0,0 +1,212 @@
+package com.write.Quill.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import name.vbraun.view.write.Page;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Cache for rendered page thumbnails
+ *
+ * Thumbnails are identified by the page UUID and size, and are valid for one
+ * content version of the page (see {@link Page#getContentVersion()}). Recently
+ * used thumbnails are kept in memory. New thumbnails are written to disk by
+ * the {@link BookSaver} when the book is saved, so they survive restarts.
+ *
+ * The memory cache is used on the UI thread, the disk is written on the
+ * BookSaver thread. Access to the memory cache is synchronized.
+ *
+ * @author vbraun
+ *
+ */
+public class ThumbnailCache {
+	private static final String TAG = "ThumbnailCache";
+	private static final String DIRECTORY = "thumbnails";
+	private static final String FILE_EXTENSION = ".thumb";
+
+	private static class Thumbnail {
+		private final long version;
+		private final Bitmap bitmap;
+		private boolean written;
+
+		private Thumbnail(long version, Bitmap bitmap, boolean written) {
+			this.version = version;
+			this.bitmap = bitmap;
+			this.written = written;
+		}
+
+		private int size() {
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	private final File dir;
+	private final long maxSize = Runtime.getRuntime().maxMemory() / 8;
+	private long size = 0;
+
+	// in access order, the least recently used thumbnail comes first
+	private final LinkedHashMap<String, Thumbnail> memory =
+			new LinkedHashMap<String, Thumbnail>(64, 0.75f, true);
+
+	protected ThumbnailCache(Storage storage) {
+		dir = new File(storage.getFilesDir(), DIRECTORY);
+	}
+
+	private static String key(UUID uuid, int width, int height) {
+		return uuid.toString() + "_" + width + "x" + height;
+	}
+
+	/**
+	 * Return the thumbnail from memory
+	 * @return The Bitmap or null if it is not in memory or outdated
+	 */
+	public synchronized Bitmap getCached(Page page, int width, int height) {
+		Thumbnail thumb = memory.get(key(page.getUUID(), width, height));
+		if (thumb == null || thumb.version != page.getContentVersion())
+			return null;
+		return thumb.bitmap;
+	}
+
+	/**
+	 * Return the thumbnail from memory or disk
+	 * @return The Bitmap or null if it is not cached or outdated
+	 */
+	public synchronized Bitmap get(Page page, int width, int height) {
+		Bitmap bitmap = getCached(page, width, height);
+		if (bitmap != null)
+			return bitmap;
+		String key = key(page.getUUID(), width, height);
+		File file = new File(dir, key + FILE_EXTENSION);
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				if (in.readLong() != page.getContentVersion())
+					return null;
+				bitmap = BitmapFactory.decodeStream(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading thumbnail: "+e.getMessage());
+			return null;
+		}
+		if (bitmap == null)
+			return null;
+		put(key, new Thumbnail(page.getContentVersion(), bitmap, true));
+		return bitmap;
+	}
+
+	/**
+	 * Return the thumbnail, render the page if necessary
+	 * @return The Bitmap, do not recycle it
+	 */
+	public Bitmap render(Page page, int width, int height) {
+		Bitmap bitmap = get(page, width, height);
+		if (bitmap != null)
+			return bitmap;
+		long version = page.getContentVersion();
+		bitmap = page.renderBitmap(width, height, true);
+		synchronized (this) {
+			put(key(page.getUUID(), width, height), new Thumbnail(version, bitmap, false));
+		}
+		return bitmap;
+	}
+
+	private void put(String key, Thumbnail thumb) {
+		Thumbnail old = memory.put(key, thumb);
+		if (old != null)
+			size -= old.size();
+		size += thumb.size();
+		Iterator<Thumbnail> iter = memory.values().iterator();
+		while (size > maxSize && iter.hasNext()) {
+			Thumbnail eldest = iter.next();
+			if (eldest == thumb) break;
+			size -= eldest.size();
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Write the thumbnails that are not on disk yet. Called on the BookSaver thread.
+	 */
+	protected void save() {
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Thumbnail> thumbs = new ArrayList<Thumbnail>();
+		synchronized (this) {
+			for (Map.Entry<String, Thumbnail> entry : memory.entrySet()) {
+				if (entry.getValue().written) continue;
+				keys.add(entry.getKey());
+				thumbs.add(entry.getValue());
+				entry.getValue().written = true;
+			}
+		}
+		if (thumbs.isEmpty())
+			return;
+		if (!dir.isDirectory() && !dir.mkdir()) {
+			Log.e(TAG, "Error creating thumbnail directory");
+			return;
+		}
+		for (int i=0; i<thumbs.size(); i++) {
+			Thumbnail thumb = thumbs.get(i);
+			File file = new File(dir, keys.get(i) + FILE_EXTENSION);
+			File tmp = new File(dir, keys.get(i) + ".tmp");
+			try {
+				FileOutputStream fos = new FileOutputStream(tmp);
+				try {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+					out.writeLong(thumb.version);
+					thumb.bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+					out.flush();
+				} finally {
+					fos.close();
+				}
+				if (!tmp.renameTo(file))
+					throw new IOException("Unable to rename thumbnail");
+			} catch (IOException e) {
+				Log.e(TAG, "Error writing thumbnail: "+e.getMessage());
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Delete all thumbnails of a page
+	 * @param uuid The page UUID
+	 */
+	protected void delete(UUID uuid) {
+		final String prefix = uuid.toString();
+		synchronized (this) {
+			Iterator<Map.Entry<String, Thumbnail>> iter = memory.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String, Thumbnail> entry = iter.next();
+				if (!entry.getKey().startsWith(prefix)) continue;
+				size -= entry.getValue().size();
+				iter.remove();
+			}
+		}
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File directory, String name) {
+				return name.startsWith(prefix);
+			}});
+		if (files == null) return;
+		for (File file : files)
+			file.delete();
+	}
+}
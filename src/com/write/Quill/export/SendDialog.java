@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Currency;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.UUID;
 
@@ -50,7 +51,7 @@ public abstract class SendDialog extends DialogFragment {
 	protected Book book;
 	protected final LinkedList<Page> pages = new LinkedList<Page>();
 
-	protected static Bundle storePages(Book book, LinkedList<Page> pages) {
+	protected static Bundle storePages(Book book, List<Page> pages) {
 		Bundle bundle = new Bundle();
 		bundle.putString("uuid", book.getUUID().toString());
 		bundle.putInt("n_pages", pages.size());
@@ -3,7 +3,8 @@ package com.write.Quill.export;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.UUID;
 
@@ -22,7 +23,7 @@ public class SendDialogEvernote extends SendDialogImage {
 	private final static String TAG = "SendDialogEvernote";
 
 	public static SendDialogEvernote newInstance(Book book,
-			LinkedList<Page> pages) {
+			List<Page> pages) {
 		SendDialogEvernote fragment = new SendDialogEvernote();
 		Bundle args = SendDialog.storePages(book, pages);
 		fragment.setArguments(args);
@@ -11,6 +11,7 @@ import org.json.JSONObject;
 import com.write.Quill.R;
 import com.write.Quill.data.Bookshelf;
 import com.write.Quill.data.Storage;
+import com.write.Quill.data.Storage.StorageIOException;
 import com.write.Quill.data.TemporaryDirectory;
 import com.write.Quill.sync.HttpPostBase.Response;
 import com.write.Quill.sync.SyncData.Action;
@@ -200,11 +201,22 @@ public class SyncTask extends AsyncTask<SyncData, SyncTask.Progress, Void> {
 		http.send("book_title", item.getTitle());
 		http.send("book_mtime", String.valueOf(item.getLastModTime().toMillis(false)));
 
+		// the current book was saved by the SyncActivity
+		Bookshelf.getBookshelf().compactBook(item.getUuid());
 		Storage storage = Storage.getInstance();
+		try {
+			storage.unpackBook(item.getUuid());
+		} catch (StorageIOException e) {
+			storage.LogError(TAG, e.getMessage());
+			return;
+		}
 		File dir = storage.getBookDirectory(item.getUuid());
 		for (File file : dir.listFiles()) {
 			http.send(file.getName(), file);
 		}
+		for (File file : storage.listBlobFiles(item.getUuid())) {
+			http.send(file.getName(), file);
+		}
 		
 		Response response = http.receive();
 		if (!response.isSuccess()) {
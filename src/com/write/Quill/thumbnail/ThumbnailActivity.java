@@ -1,6 +1,7 @@
 package com.write.Quill.thumbnail;
 
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 
 import name.vbraun.view.tag.TagEditDialog;
@@ -211,7 +212,7 @@ public class ThumbnailActivity extends ActivityBase implements
 			return true;
 		case R.id.send_to_evernote:
 			Book book = Bookshelf.getCurrentBook();
-			LinkedList<Page> pages = book.getFilteredPages();
+			List<Page> pages = book.getFilteredPages();
 			SendDialogEvernote dialog = SendDialogEvernote.newInstance(book, pages);
 			dialog.show(getFragmentManager(), "sendDialogEvernote");
 			return true;
@@ -353,7 +354,7 @@ public class ThumbnailActivity extends ActivityBase implements
 		private LinkedList<Page> getSelectedPages() {
 			LinkedList<Page> result = new LinkedList<Page>();
 			SparseBooleanArray isChecked = thumbnailGrid.getCheckedItemPositions();
-			LinkedList<Page> filtered = Bookshelf.getCurrentBook().getFilteredPages();
+			List<Page> filtered = Bookshelf.getCurrentBook().getFilteredPages();
 			int n = thumbnailGrid.getCount();
 			for (int i=0; i<n; i++)
 				if (isChecked.get(i)) {
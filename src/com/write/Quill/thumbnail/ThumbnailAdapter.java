@@ -3,12 +3,14 @@ package com.write.Quill.thumbnail;
 import java.util.Hashtable;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 
 import com.write.Quill.TagOverlay;
 import com.write.Quill.data.Book;
 import com.write.Quill.data.Bookshelf;
+import com.write.Quill.data.ThumbnailCache;
 
 import name.vbraun.view.write.Page;
 
@@ -34,6 +36,7 @@ public class ThumbnailAdapter extends BaseAdapter {
 	protected int thumbnail_width = MIN_THUMBNAIL_WIDTH;
 
 	private Context context;
+	private final ThumbnailCache thumbnails = Bookshelf.getBookshelf().getThumbnailCache();
 
 	
 	public ThumbnailAdapter(Context c) {
@@ -119,7 +122,7 @@ public class ThumbnailAdapter extends BaseAdapter {
     
     protected void computeItemHeights() {
     	Bookshelf.getCurrentBook().filterChanged();
-    	LinkedList<Page> pages = Bookshelf.getCurrentBook().getFilteredPages();
+    	List<Page> pages = Bookshelf.getCurrentBook().getFilteredPages();
     	heightOfItem = new int[pages.size()];
     	ListIterator<Page> iter = pages.listIterator();
     	int pos = pages.size()-1;
@@ -135,7 +138,7 @@ public class ThumbnailAdapter extends BaseAdapter {
     	if (unfinishedThumbnails.isEmpty()) return false;
     	Thumbnail thumb = unfinishedThumbnails.pop();
     	Page page = thumb.page;
-		thumb.bitmap = page.renderBitmap(thumbnail_width, 2*thumbnail_width, true);
+		thumb.bitmap = thumbnails.render(page, thumbnail_width, 2*thumbnail_width);
 		Assert.assertTrue(thumb.bitmap != null);
 		thumb.invalidate();
 		return true;
@@ -150,20 +153,22 @@ public class ThumbnailAdapter extends BaseAdapter {
             thumb = (Thumbnail) convertView;
             if (thumb.position == position)
             	return thumb;
-            if (thumb.bitmap != null)
-            	thumb.bitmap.recycle();
+            unfinishedThumbnails.remove(thumb);
         }
         Book book = Bookshelf.getCurrentBook();
         // Log.d(TAG, "getView "+position+" "+book.filteredPagesSize());
         Page page = book.getFilteredPage(book.filteredPagesSize() - 1 - position);
         thumb.page = page;
         thumb.position = position;
-        thumb.bitmap = null;
+        thumb.bitmap = thumbnails.getCached(page, thumbnail_width, 2*thumbnail_width);
         thumb.tagOverlay = new TagOverlay(context, page.tags, true);
         thumb.requestLayout();     
-        unfinishedThumbnails.add(thumb);
-        ThumbnailView grid = (ThumbnailView)parent;
-        grid.postIncrementalDraw();
+        if (thumb.bitmap == null) {
+        	// look on disk or render later
+        	unfinishedThumbnails.add(thumb);
+        	ThumbnailView grid = (ThumbnailView)parent;
+        	grid.postIncrementalDraw();
+        }
 		return thumb;
 	}
 	
@@ -50,7 +50,7 @@ public class TagListView extends RelativeLayout {
 	}
 	
 	public void notifyTagsChanged() {
-		adapter.notifyDataSetChanged();
+		adapter.refresh();
 	}
 	
 	public TagListView(Context mContext, AttributeSet attrs) {
@@ -37,6 +37,17 @@ public class TagSetAdapter extends ArrayAdapter {
 		
 	}
 
+	/**
+	 * Take a new copy of the tags, to be called when tags were added or removed
+	 */
+	@SuppressWarnings("unchecked")
+	public void refresh() {
+		setNotifyOnChange(false);
+		clear();
+		addAll(tags.allTags());
+		notifyDataSetChanged();
+	}
+
 	public void setHighlightColor(int color) {
 		highlight = color;
 	}
@@ -50,7 +61,7 @@ public class TagSetAdapter extends ArrayAdapter {
         } else {
             tv = (TextView) convertView;
         }
-        Tag t = tags.allTags().get(position);
+        Tag t = (Tag) getItem(position);
         tv.setText(t.toString());
         if (tags.contains(t)) {
         	tv.setShadowLayer(20, 0, 0, highlight);
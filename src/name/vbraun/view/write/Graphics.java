@@ -42,39 +42,81 @@ public abstract class Graphics {
 		return tool;
 	}
 
+	// the transformation page -> screen, shared with the page that contains us
 	protected Transformation transform = new Transformation();
-	protected float offset_x = 0f;
-	protected float offset_y = 0f;
-	protected float scale = 1.0f;
 
+	// the screen bounding box is valid for this epoch of the transformation
+	private int bBoxEpoch;
 	protected RectF bBoxFloat = new RectF();
 	protected Rect bBoxInt = new Rect();
 	protected boolean recompute_bounding_box = true;
 
 	public RectF getBoundingBox() {
-		if (recompute_bounding_box)
+		if (recompute_bounding_box || bBoxEpoch != transform.epoch)
 			computeBoundingBox();
 		return bBoxFloat;
 	}
 
 	public Rect getBoundingBoxRoundOut() {
-		if (recompute_bounding_box)
+		if (recompute_bounding_box || bBoxEpoch != transform.epoch)
 			computeBoundingBox();
 		return bBoxInt;
 	}
 
 	/**
-	 * An implementation of computeBoundingBox must set bBoxFloat and bBoxInt
+	 * Compute the bounding box in screen coordinates from the page bounding
+	 * box, with an extra pixel for anti-aliasing. This does not look at the
+	 * individual points, so changing the transformation is cheap.
 	 */
-	abstract protected void computeBoundingBox();
+	protected void computeBoundingBox() {
+		transform.apply(getPageBoundingBox(), bBoxFloat);
+		bBoxFloat.inset(-1, -1);
+		bBoxFloat.roundOut(bBoxInt);
+		bBoxEpoch = transform.epoch;
+		recompute_bounding_box = false;
+	}
+
+	protected RectF bBoxPage = new RectF();
+	protected boolean recompute_page_bounding_box = true;
+
+	/**
+	 * The bounding box in page coordinates. Unlike getBoundingBox(), this
+	 * does not depend on the transformation.
+	 */
+	public RectF getPageBoundingBox() {
+		if (recompute_page_bounding_box)
+			computePageBoundingBox();
+		return bBoxPage;
+	}
 
+	/**
+	 * An implementation of computePageBoundingBox must set bBoxPage
+	 */
+	abstract protected void computePageBoundingBox();
+
+	/**
+	 * To be called whenever the geometry of the graphics object changes
+	 */
+	protected void geometryChanged() {
+		recompute_bounding_box = true;
+		recompute_page_bounding_box = true;
+		if (index != null)
+			index.update(this);
+	}
+
+	// bookkeeping for the GraphicsIndex of the page that contains us
+	GraphicsIndex<?> index = null;
+	int indexSequence, indexStamp;
+	int indexLeft, indexTop, indexRight, indexBottom;
+
+	/**
+	 * Use the given transformation page -> screen. The transformation is not
+	 * copied, later changes to it apply to this object as well.
+	 */
 	protected void setTransform(Transformation transform) {
-		if (this.transform.equals(transform))
+		if (this.transform == transform)
 			return;
-		this.transform.set(transform);
-		offset_x = transform.offset_x;
-		offset_y = transform.offset_y;
-		scale = transform.scale;
+		this.transform = transform;
 		recompute_bounding_box = true;
 	}
 
@@ -82,7 +124,16 @@ public abstract class Graphics {
 
 	abstract public boolean intersects(RectF r_screen);
 
-	abstract public void draw(Canvas c, RectF bounding_box);
+	public void draw(Canvas c, RectF bounding_box) {
+		draw(c, bounding_box, transform);
+	}
+
+	/**
+	 * Draw with the given transformation page -> canvas instead of the one
+	 * shared with the page. This does not change the object, so it can be
+	 * used to render the page into a bitmap while it is shown on screen.
+	 */
+	abstract public void draw(Canvas c, RectF bounding_box, Transformation t);
 
 	abstract public void render(Artist artist);
 
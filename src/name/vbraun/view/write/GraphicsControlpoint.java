@@ -104,6 +104,7 @@ public abstract class GraphicsControlpoint extends Graphics {
 		ListIterator<Controlpoint> backup_iter = backupControlpoints.listIterator();
 		while (point_iter.hasNext())
 			point_iter.next().set(backup_iter.next());				
+		geometryChanged();
 	}
 	
 	/**
@@ -115,7 +116,7 @@ public abstract class GraphicsControlpoint extends Graphics {
 	}
 	
 	void controlpointMoved(Controlpoint point) {
-		recompute_bounding_box = true;
+		geometryChanged();
 	}
 	
 	protected GraphicsControlpoint(Tool mTool) {
@@ -133,11 +134,12 @@ public abstract class GraphicsControlpoint extends Graphics {
 	
 	/**
 	 * By default, the bounding box is the box containing the control points
-	 * inset by this much (which you can override in a derived class).
+	 * inset by this much in page coordinates (which you can override in a 
+	 * derived class).
 	 * @return
 	 */
-	protected float boundingBoxInset() { 
-		return -1;
+	protected float boundingBoxInsetPage() { 
+		return 0;
 	}
 	
 	protected final Paint fillPaint, outlinePaint;
@@ -160,27 +162,24 @@ public abstract class GraphicsControlpoint extends Graphics {
 	}
 	
 	@Override
-	protected void computeBoundingBox() {
+	protected void computePageBoundingBox() {
 		ListIterator<Controlpoint> iter = controlpoints.listIterator();
 		Assert.assertTrue(iter.hasNext()); // must have at least one control point
 		Controlpoint p = iter.next();
 		float xmin, xmax, ymin, ymax;
-		xmin = xmax = transform.applyX(p.x);
-		ymin = ymax = transform.applyY(p.y);
+		xmin = xmax = p.x;
+		ymin = ymax = p.y;
 		while (iter.hasNext()) {
 			p = iter.next();
-			float x = p.screenX();
-			xmin = Math.min(xmin, x);
-			xmax = Math.max(xmax, x);
-			float y = p.screenY();
-			ymin = Math.min(ymin, y);
-			ymax = Math.max(ymax, y);
+			xmin = Math.min(xmin, p.x);
+			xmax = Math.max(xmax, p.x);
+			ymin = Math.min(ymin, p.y);
+			ymax = Math.max(ymax, p.y);
 		}
-		bBoxFloat.set(xmin, ymin, xmax, ymax);
-		float extra = boundingBoxInset();
-		bBoxFloat.inset(extra, extra);		
-		bBoxFloat.roundOut(bBoxInt);
-		recompute_bounding_box = false;
+		bBoxPage.set(xmin, ymin, xmax, ymax);
+		float extra = boundingBoxInsetPage();
+		bBoxPage.inset(extra, extra);		
+		recompute_page_bounding_box = false;
 	}
 
 	@Override
@@ -37,7 +37,6 @@ public class GraphicsImage extends GraphicsControlpoint {
 			center;
 	private final Paint paint = new Paint();
 	private final Paint outline = new Paint();
-	private final Rect rect = new Rect();
 	private final RectF rectF = new RectF();
 
 	private Bitmap bitmap = null;
@@ -88,6 +87,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 	
 	// persistent data
 	protected UUID uuid = null;
+	protected String hash = null;  // content hash of the file in the blob store, or null
 	protected boolean constrainAspect = true;
 	protected Rect cropRect = new Rect();
 
@@ -107,6 +107,33 @@ public class GraphicsImage extends GraphicsControlpoint {
 	public File getFile() {
 		return file;
 	}
+	
+	/**
+	 * The content hash of the image file, see {@link #setBlobDirectory(File)}
+	 * @return The hash or null if the file is named after the image UUID
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	// images with a content hash are looked up here first, and then in the book directory
+	private static File blobDirectory = null;
+
+	/**
+	 * Set the directory for image files that are identified by their content hash
+	 * @param dir
+	 */
+	public static void setBlobDirectory(File dir) {
+		blobDirectory = dir;
+	}
+
+	/**
+	 * @param hash
+	 * @return The file name of the image with the given content hash
+	 */
+	public static String getBlobFileName(String hash) {
+		return hash + getImageFileExt(FileType.FILETYPE_JPG);
+	}
 
 	public boolean getConstrainAspect() {
 		return constrainAspect;
@@ -165,6 +192,12 @@ public class GraphicsImage extends GraphicsControlpoint {
 		init();
 		if (image.getFile() == null) 
 			return;
+		if (image.hash != null) {
+			// the file is shared
+			hash = image.hash;
+			file = image.file;
+			return;
+		}
 		final String fileName = getImageFileName(getUuid(), image.getFileType());
 		file = new File(dir, fileName);
 		com.write.Quill.image.Util.copyfile(image.getFile(), file);
@@ -194,7 +227,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 	}
 
 	@Override
-	public void draw(Canvas c, RectF bounding_box) {
+	public void draw(Canvas c, RectF bounding_box, Transformation t) {
 		if (file != null && bitmap == null)
 			try {
 				loadBitmap();
@@ -202,7 +235,8 @@ public class GraphicsImage extends GraphicsControlpoint {
 				Log.e(TAG, "loading bitmap: "+e.getMessage());
 			}
 		
-		computeScreenRect();
+		Rect rect = new Rect();
+		computeScreenRect(t, rect);
 		c.clipRect(0, 0, c.getWidth(), c.getHeight(), android.graphics.Region.Op.REPLACE);
 
 		if (bitmap == null) {
@@ -232,7 +266,6 @@ public class GraphicsImage extends GraphicsControlpoint {
 
 	@Override
 	void controlpointMoved(Controlpoint point) {
-		super.controlpointMoved(point);
 		if (point == center) {
 			float width2 = (bottom_right.x - bottom_left.x) / 2;
 			float height2 = (top_right.y - bottom_right.y) / 2;
@@ -244,7 +277,7 @@ public class GraphicsImage extends GraphicsControlpoint {
 			Controlpoint opposite = oppositeControlpoint(point);
 			float dx = opposite.x - point.x;
 			float dy = opposite.y - point.y;
-			float minDistance = minDistancePixel / scale;
+			float minDistance = minDistancePixel / transform.scale;
 			if (-minDistance <= dx && dx <= minDistance) {
 				float sgn = Math.signum(dx);
 				opposite.x = point.x + sgn * minDistance;
@@ -273,20 +306,20 @@ public class GraphicsImage extends GraphicsControlpoint {
 			center.x = rectF.left + (rectF.right - rectF.left) / 2;
 			center.y = rectF.bottom + (rectF.top - rectF.bottom) / 2;
 		}
+		super.controlpointMoved(point);
 	}
 
-	private void computeScreenRect() {
-		rectF.bottom = bottom_left.screenY();
-		rectF.top = top_left.screenY();
-		rectF.left = bottom_left.screenX();
-		rectF.right = bottom_right.screenX();
-		rectF.sort();
-		rectF.round(rect);
+	private void computeScreenRect(Transformation t, Rect rect) {
+		RectF r = new RectF(t.applyX(bottom_left.x), t.applyY(top_left.y), 
+				t.applyX(bottom_right.x), t.applyY(bottom_left.y));
+		r.sort();
+		r.round(rect);
 	}
 
 	public void writeToStream(DataOutputStream out) throws IOException {
-		out.writeInt(1);  // protocol #1
+		out.writeInt(2);  // protocol #2
 		out.writeUTF(uuid.toString());
+		out.writeUTF(hash == null ? "" : hash);
 		out.writeFloat(top_left.x);
 		out.writeFloat(top_right.x);
 		out.writeFloat(top_left.y);
@@ -297,10 +330,15 @@ public class GraphicsImage extends GraphicsControlpoint {
 	public GraphicsImage(DataInputStream in, File dir) throws IOException {
 		super(Tool.IMAGE);
 		int version = in.readInt();
-		if (version > 1)
+		if (version > 2)
 			throw new IOException("Unknown image version!");
 
 		uuid = UUID.fromString(in.readUTF());
+		if (version >= 2) {
+			hash = in.readUTF();
+			if (hash.length() == 0)
+				hash = null;
+		}
 		float left   = in.readFloat(); 
 		float right  = in.readFloat();
 		float top    = in.readFloat();
@@ -318,7 +356,15 @@ public class GraphicsImage extends GraphicsControlpoint {
 		controlpoints.add(top_right);
 		controlpoints.add(center);
 		init();
-		file = new File(dir, getImageFileName(uuid, FileType.FILETYPE_JPG));
+		if (hash == null) {
+			file = new File(dir, getImageFileName(uuid, FileType.FILETYPE_JPG));
+			return;
+		}
+		String fileName = getBlobFileName(hash);
+		if (blobDirectory != null && new File(blobDirectory, fileName).exists())
+			file = new File(blobDirectory, fileName);
+		else
+			file = new File(dir, fileName);  // not yet moved to the blob store
 	}
 
 	@Override
@@ -336,7 +382,18 @@ public class GraphicsImage extends GraphicsControlpoint {
 		if (!checkFileName(fileName)) {
 			Log.e(TAG, "filename must be uuid.ext");
 		}
-		file = new File(fileName);
+		setFile(new File(fileName), null, constrainAspect);
+	}
+
+	/**
+	 * Set the image file
+	 * @param file The image file
+	 * @param hash The content hash if the file is in the blob store, otherwise null
+	 * @param constrainAspect
+	 */
+	public void setFile(File file, String hash, boolean constrainAspect) {
+		this.file = file;
+		this.hash = hash;
 		try {
 			loadBitmap();
 		} catch (IOException e) {
@@ -354,6 +411,17 @@ public class GraphicsImage extends GraphicsControlpoint {
 			bottom_left.y = bottom_right.y = center.y + h/2;
 			top_left.y = top_right.y = center.y - h/2;
 		}
+		geometryChanged();
+	}
+
+	/**
+	 * The image file was moved, the content is unchanged 
+	 * @param file The new image file
+	 * @param hash The content hash if the file is in the blob store
+	 */
+	public void fileMoved(File file, String hash) {
+		this.file = file;
+		this.hash = hash;
 	}
 
 	private final int IMAGE_MAX_SIZE = 1024;
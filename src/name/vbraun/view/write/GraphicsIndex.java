@@ -0,0 +1,227 @@
+package name.vbraun.view.write;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.graphics.RectF;
+
+/**
+ * Spatial index for the graphics objects on a page
+ *
+ * A uniform grid in page coordinates. The page [0, aspect_ratio] x [0, 1] is
+ * divided into GRID_SIZE x GRID_SIZE cells, objects outside of the page end up
+ * in the border cells. Each object is stored in all cells that its (page)
+ * bounding box touches. Objects that are too large to be stored cell by cell
+ * (long lines across the page, background images) are kept in a separate list
+ * that is part of every query result.
+ *
+ * The index does not own the objects, it is kept in sync with the ordered list
+ * of the page by {@link Page}. Query results are always in the order of that
+ * list, so drawing the result is the same as drawing the full list.
+ *
+ * Objects update their own entry when they are modified on the UI thread,
+ * while the page may be drawn by the {@link TileCache} in the background.
+ * Hence all methods are synchronized.
+ *
+ * @author vbraun
+ *
+ * @param <T> the type of graphics objects in the index
+ */
+public class GraphicsIndex<T extends Graphics> {
+	@SuppressWarnings("unused")
+	private static final String TAG = "GraphicsIndex";
+
+	private static final int GRID_SIZE = 32;
+
+	// objects touching more cells are stored in the oversize list
+	private static final int MAX_CELLS = 64;
+
+	private final LinkedList<T> list;
+	private final ArrayList<Graphics>[] cells;
+	private final ArrayList<Graphics> oversize = new ArrayList<Graphics>();
+	private float cellWidth, cellHeight;
+
+	private int nextSequence = 0;
+	private int stamp = 0;
+	private final ArrayList<Graphics> candidates = new ArrayList<Graphics>();
+
+	/**
+	 * Construct a new index
+	 * @param list The ordered list of all objects (owned by the page)
+	 * @param aspect_ratio The page aspect ratio
+	 */
+	@SuppressWarnings("unchecked")
+	protected GraphicsIndex(LinkedList<T> list, float aspect_ratio) {
+		this.list = list;
+		cells = new ArrayList[GRID_SIZE * GRID_SIZE];
+		for (int i = 0; i < cells.length; i++)
+			cells[i] = new ArrayList<Graphics>();
+		setCellSize(aspect_ratio);
+	}
+
+	private void setCellSize(float aspect_ratio) {
+		cellWidth = aspect_ratio / GRID_SIZE;
+		cellHeight = 1f / GRID_SIZE;
+	}
+
+	/**
+	 * Change the grid to a new page aspect ratio and re-insert all objects
+	 * @param aspect_ratio
+	 */
+	protected synchronized void setAspectRatio(float aspect_ratio) {
+		setCellSize(aspect_ratio);
+		rebuild();
+	}
+
+	private int cellX(float x) {
+		int i = (int) Math.floor(x / cellWidth);
+		return Math.max(0, Math.min(GRID_SIZE - 1, i));
+	}
+
+	private int cellY(float y) {
+		int j = (int) Math.floor(y / cellHeight);
+		return Math.max(0, Math.min(GRID_SIZE - 1, j));
+	}
+
+	/**
+	 * Add an object. Must be called after it has been appended to the list.
+	 */
+	protected synchronized void add(T graphics) {
+		graphics.indexSequence = nextSequence++;
+		insert(graphics);
+	}
+
+	/**
+	 * Remove an object. Does nothing if the object is not in this index.
+	 */
+	protected synchronized void remove(Graphics graphics) {
+		if (graphics.index != this)
+			return;
+		erase(graphics);
+		graphics.index = null;
+	}
+
+	/**
+	 * Move the object to the cells matching its current bounding box.
+	 * Called by the object itself whenever its geometry changes.
+	 */
+	protected synchronized void update(Graphics graphics) {
+		if (graphics.index != this)
+			return;
+		erase(graphics);
+		insert(graphics);
+	}
+
+	/**
+	 * Remove all objects
+	 */
+	protected synchronized void clear() {
+		for (ArrayList<Graphics> cell : cells) {
+			for (Graphics graphics : cell)
+				graphics.index = null;
+			cell.clear();
+		}
+		for (Graphics graphics : oversize)
+			graphics.index = null;
+		oversize.clear();
+	}
+
+	/**
+	 * Re-insert all objects of the list, keeping their order
+	 */
+	protected synchronized void rebuild() {
+		clear();
+		nextSequence = 0;
+		for (T graphics : list)
+			add(graphics);
+	}
+
+	private void insert(Graphics graphics) {
+		RectF r = graphics.getPageBoundingBox();
+		int x0 = cellX(r.left);
+		int x1 = cellX(r.right);
+		int y0 = cellY(r.top);
+		int y1 = cellY(r.bottom);
+		graphics.index = this;
+		if ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS) {
+			graphics.indexLeft = -1;
+			oversize.add(graphics);
+			return;
+		}
+		graphics.indexLeft = x0;
+		graphics.indexRight = x1;
+		graphics.indexTop = y0;
+		graphics.indexBottom = y1;
+		for (int j = y0; j <= y1; j++)
+			for (int i = x0; i <= x1; i++)
+				cells[j * GRID_SIZE + i].add(graphics);
+	}
+
+	private void erase(Graphics graphics) {
+		if (graphics.indexLeft == -1) {
+			oversize.remove(graphics);
+			return;
+		}
+		for (int j = graphics.indexTop; j <= graphics.indexBottom; j++)
+			for (int i = graphics.indexLeft; i <= graphics.indexRight; i++)
+				cells[j * GRID_SIZE + i].remove(graphics);
+	}
+
+	private static final Comparator<Graphics> sequenceComparator = new Comparator<Graphics>() {
+		@Override
+		public int compare(Graphics lhs, Graphics rhs) {
+			return lhs.indexSequence - rhs.indexSequence;
+		}
+	};
+
+	/**
+	 * Find all objects whose page bounding box intersects the given rectangle.
+	 *
+	 * @param rect A rectangle in page coordinates
+	 * @param result The list to append the objects to, in drawing order
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void query(RectF rect, List<? super T> result) {
+		stamp++;
+		candidates.clear();
+		int x0 = cellX(rect.left);
+		int x1 = cellX(rect.right);
+		int y0 = cellY(rect.top);
+		int y1 = cellY(rect.bottom);
+		for (int j = y0; j <= y1; j++)
+			for (int i = x0; i <= x1; i++)
+				collect(cells[j * GRID_SIZE + i], rect);
+		collect(oversize, rect);
+		int n = candidates.size();
+		if (n == 0)
+			return;
+		if (n > list.size() / 8) {
+			// walking the list is cheaper than sorting
+			for (T graphics : list)
+				if (graphics.indexStamp == stamp)
+					result.add(graphics);
+		} else {
+			Collections.sort(candidates, sequenceComparator);
+			for (Graphics graphics : candidates)
+				result.add((T) graphics);
+		}
+		candidates.clear();
+	}
+
+	private void collect(ArrayList<Graphics> cell, RectF rect) {
+		final int n = cell.size();
+		for (int k = 0; k < n; k++) {
+			Graphics graphics = cell.get(k);
+			if (graphics.indexStamp == stamp)
+				continue;
+			graphics.indexStamp = stamp;
+			if (RectF.intersects(rect, graphics.getPageBoundingBox()))
+				candidates.add(graphics);
+			else
+				graphics.indexStamp = stamp - 1;
+		}
+	}
+}
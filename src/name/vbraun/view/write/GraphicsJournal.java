@@ -0,0 +1,25 @@
+package name.vbraun.view.write;
+
+/**
+ * Receives every change to the graphics objects of a page, see Page.setJournal()
+ * 
+ * The page does not need to be saved again if all changes since it was last 
+ * saved have been recorded.
+ * 
+ * @author vbraun
+ *
+ */
+public interface GraphicsJournal {
+	/**
+	 * The graphics object was appended to the page
+	 * @return Whether the change was recorded
+	 */
+	public boolean onGraphicsAdded(Page page, Graphics graphics);
+	
+	/**
+	 * The graphics object was removed from the page
+	 * @param position The former position in the list of graphics objects of the same type
+	 * @return Whether the change was recorded
+	 */
+	public boolean onGraphicsRemoved(Page page, Graphics graphics, int position);
+}
@@ -68,20 +68,20 @@ public class GraphicsLine extends GraphicsControlpoint {
 					 Color.green(pen_color), Color.blue(pen_color));
 		pen.setAntiAlias(true);
 		pen.setStrokeCap(Paint.Cap.ROUND);
-		recompute_bounding_box = true;
+		geometryChanged();
 	}
 	
 	// this computes the argument to Paint.setStrokeWidth()
 	public float getScaledPenThickness() {
-		return Stroke.getScaledPenThickness(scale, pen_thickness);
+		return Stroke.getScaledPenThickness(transform.scale, pen_thickness);
 	}
 	
 	public float getScaledPenThickness(float scale) {
 		return Stroke.getScaledPenThickness(scale, pen_thickness);
 	}
 
-	protected float boundingBoxInset() { 
-		return -getScaledPenThickness()/2 - 1;
+	protected float boundingBoxInsetPage() { 
+		return -getScaledPenThickness(1f)/2;
 	}
 	
 	
@@ -119,17 +119,19 @@ public class GraphicsLine extends GraphicsControlpoint {
 	}
 
 	@Override
-	public void draw(Canvas c, RectF bounding_box) {
-		final float scaled_pen_thickness = getScaledPenThickness();
-		pen.setStrokeWidth(scaled_pen_thickness);
+	public void draw(Canvas c, RectF bounding_box, Transformation t) {
+		final float scaled_pen_thickness = getScaledPenThickness(t.scale);
 		float x0, x1, y0, y1;
 		// note: we offset the first point by 1/10 pixel since android does not draw lines with start=end
-		x0 = p0.screenX() + 0.1f;
-		x1 = p1.screenX();
-		y0 = p0.screenY();
-		y1 = p1.screenY();
+		x0 = t.applyX(p0.x) + 0.1f;
+		x1 = t.applyX(p1.x);
+		y0 = t.applyY(p0.y);
+		y1 = t.applyY(p1.y);
 		// Log.v(TAG, "Line ("+x0+","+y0+") -> ("+x1+","+y1+"), thickness="+scaled_pen_thickness);
-		c.drawLine(x0, y0, x1, y1, pen);
+		synchronized (pen) {
+			pen.setStrokeWidth(scaled_pen_thickness);
+			c.drawLine(x0, y0, x1, y1, pen);
+		}
 	}
 
 	
@@ -1,6 +1,7 @@
 package name.vbraun.view.write;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.UUID;
 
@@ -77,6 +78,10 @@ public class HandwriterView
 
 	private Bitmap bitmap;
 	protected Canvas canvas;
+	private final TileCache tileCache;
+	
+	// shared by the pen touch handlers so the sample buffers survive tool changes
+	protected final StrokeBuilder strokeBuilder = new StrokeBuilder();
 	private Toast toast;
 	
 	private boolean palmShield = false;
@@ -168,7 +173,8 @@ public class HandwriterView
 			page.addImage(img);
 		} else
 			Assert.fail("Unknown graphics object");
-		page.draw(canvas, graphics.getBoundingBox());
+		tileCache.invalidate(page, graphics.getPageBoundingBox());
+		tileCache.draw(page, canvas, graphics.getBoundingBox());
 		invalidate(graphics.getBoundingBoxRoundOut());
 	}
 	
@@ -184,22 +190,56 @@ public class HandwriterView
 			page.removeImage(img);
 		} else
 			Assert.fail("Unknown graphics object");
-		page.draw(canvas, graphics.getBoundingBox());
+		tileCache.invalidate(page, graphics.getPageBoundingBox());
+		tileCache.draw(page, canvas, graphics.getBoundingBox());
 		invalidate(graphics.getBoundingBoxRoundOut());
 	}
 	
     public void add(LinkedList<Stroke> penStrokes) {
-    	getPage().strokes.addAll(penStrokes);
-		page.draw(canvas);
-    	invalidate();
+    	for (Stroke s : penStrokes)
+    		page.addStroke(s);
+    	invalidateTiles(penStrokes);
+    	redraw();
     }
     
     public void remove(LinkedList<Stroke> penStrokes) {
-    	getPage().strokes.removeAll(penStrokes);
-		page.draw(canvas);
-    	invalidate();
+    	for (Stroke s : penStrokes)
+    		page.removeStroke(s);
+    	invalidateTiles(penStrokes);
+    	redraw();
    }
     
+    private final RectF mDirtyRectF = new RectF();
+    
+    private void invalidateTiles(LinkedList<Stroke> penStrokes) {
+    	if (penStrokes.isEmpty())
+    		return;
+    	mDirtyRectF.set(penStrokes.getFirst().getPageBoundingBox());
+    	for (Stroke s : penStrokes)
+    		mDirtyRectF.union(s.getPageBoundingBox());
+    	tileCache.invalidate(page, mDirtyRectF);
+    }
+    
+    /**
+     * Discard the cached tiles of the current page in the given area. To be called
+     * when the page content is modified without going through add/remove.
+     * @param screenRect The dirty rectangle in screen coordinates
+     */
+    protected void invalidateTiles(RectF screenRect) {
+    	page.getTransform().inverse(screenRect, mDirtyRectF);
+    	tileCache.invalidate(page, mDirtyRectF);
+    }
+    
+    /**
+     * Redraw the page from the tile cache
+     */
+    protected void redraw() {
+    	if (page == null || canvas == null)
+    		return;
+    	tileCache.draw(page, canvas);
+    	invalidate();
+    }
+    
     /**
      * Set the image
      * @param uuid The UUID
@@ -209,17 +249,36 @@ public class HandwriterView
     	for (GraphicsImage image : getPage().images)
     		if (image.getUuid().equals(uuid)) {
     			if (name==null)
-    				getPage().images.remove(image);
+    				getPage().removeImage(image);
     			else { 
     				if (image.checkFileName(name)) {
         				image.setFile(name, constrainAspect);
+        				getPage().touch();
     				} else {
     					Log.e(TAG, "incorrect image file name");
-        				getPage().images.remove(image);
+        				getPage().removeImage(image);
     				}
     			}
-    			page.draw(canvas);
-    			invalidate();
+    			tileCache.invalidate(page);
+    			redraw();
+    			return;
+    		}
+    	Log.e(TAG, "setImage(): Image does not exist");
+    }
+
+    /**
+     * Set the image to a file in the blob store
+     * @param uuid The UUID
+     * @param file The image file
+     * @param hash The content hash of the file
+     */
+    public void setImage(UUID uuid, File file, String hash, boolean constrainAspect) {
+    	for (GraphicsImage image : getPage().images)
+    		if (image.getUuid().equals(uuid)) {
+    			image.setFile(file, hash, constrainAspect);
+    			getPage().touch();
+    			tileCache.invalidate(page);
+    			redraw();
     			return;
     		}
     	Log.e(TAG, "setImage(): Image does not exist");
@@ -239,8 +298,7 @@ public class HandwriterView
 		Log.d(TAG, "Interrupting current interaction");
 		if (touchHandler != null) 
 			touchHandler.interrupt();
-		page.draw(canvas);
-		invalidate();
+		redraw();
 	}
 	
 	public void setToolType(Tool tool) {
@@ -324,8 +382,8 @@ public class HandwriterView
 	
 	public void setPagePaperType(Paper.Type paper_type) {
 		page.setPaperType(paper_type);
-		page.draw(canvas);
-		invalidate();
+		tileCache.invalidate(page);
+		redraw();
 	}
 
 	public float getPageAspectRatio() {
@@ -334,6 +392,7 @@ public class HandwriterView
 	
 	public void setPageAspectRatio(float aspect_ratio) {
 		page.setAspectRatio(aspect_ratio);
+		tileCache.invalidate(page);
 		setPageAndZoomOut(page);
 		invalidate();
 	}
@@ -426,6 +485,9 @@ public class HandwriterView
         DisplayMetrics metrics = new DisplayMetrics();
         display.getMetrics(metrics);
         screenDensity = metrics.density;
+        
+        long tileCacheBudget = Math.min(16*1024*1024, Runtime.getRuntime().maxMemory()/8);
+        tileCache = new TileCache(tileCacheBudget);
 
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(getContext());
     	boolean left = settings.getBoolean(KEY_TOOLBOX_IS_ON_LEFT, true);
@@ -559,14 +621,15 @@ public class HandwriterView
 	
 	public void setPageAndZoomOut(Page new_page) {
 		if (new_page == null) return;
+		if (page != null && page != new_page)
+			page.releaseDrawingCache();
 		page = new_page;
 		if (canvas == null) return;
 		if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE)
 			zoomFitWidth();
 		else
 			zoomOutOverview();
-		page.draw(canvas);
-		invalidate();
+		redraw();
 	}
 	
 	private void zoomOutOverview() {
@@ -630,15 +693,13 @@ public class HandwriterView
 			dy = H/2-y;// + (-scale)/2;
 		}
 		page.setTransform(dx, dy, scale, canvas);
-		page.draw(canvas);
-		invalidate();
+		redraw();
 	}
 
 	
 	public void clear() {
 		graphicsListener.onPageClearListener(page);
-		page.draw(canvas);
-		invalidate();
+		redraw();
 	}
 	
 	@Override protected void onSizeChanged(int w, int h, int oldw, int oldh) {
@@ -662,6 +723,12 @@ public class HandwriterView
 		setPageAndZoomOut(page);
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		tileCache.clear();
+	}
+
 	@Override 
 	protected void onDraw(Canvas canvas) {
 		if (bitmap == null) return;
@@ -707,14 +774,22 @@ public class HandwriterView
 	   	toast.show();
 	}
 
+	private final RectF mPageRectF = new RectF();
+	private final ArrayList<Stroke> mStrokes = new ArrayList<Stroke>();
+	private final ArrayList<GraphicsLine> mLineArt = new ArrayList<GraphicsLine>();
+
 	public boolean eraseStrokesIn(RectF r) {
 		LinkedList<Stroke> toRemove = new LinkedList<Stroke>();
-	    for (Stroke s: page.strokes) {	
+		page.getTransform().inverse(r, mPageRectF);
+		mStrokes.clear();
+		page.findStrokesIn(mPageRectF, mStrokes);
+	    for (Stroke s: mStrokes) {	
 			if (!RectF.intersects(r, s.getBoundingBox())) continue;
 			if (s.intersects(r)) {
 				toRemove.add(s);
 			}
 		}
+	    mStrokes.clear();
 	    for (Stroke s : toRemove)
 	    	graphicsListener.onGraphicsEraseListener(page, s);
 		if (toRemove.isEmpty())
@@ -727,12 +802,16 @@ public class HandwriterView
 	
 	public boolean eraseLineArtIn(RectF r) {
 		LinkedList<GraphicsControlpoint> toRemove = new LinkedList<GraphicsControlpoint>();
-	    for (GraphicsControlpoint graphics: page.lineArt) {	
+		page.getTransform().inverse(r, mPageRectF);
+		mLineArt.clear();
+		page.findLineArtIn(mPageRectF, mLineArt);
+	    for (GraphicsControlpoint graphics: mLineArt) {	
 			if (!RectF.intersects(r, graphics.getBoundingBox())) continue;
 			if (graphics.intersects(r)) {
 				toRemove.add(graphics);
 			}
 		}
+	    mLineArt.clear();
 	    for (GraphicsControlpoint graphics : toRemove)
 	    	graphicsListener.onGraphicsEraseListener(page, graphics);
 		if (toRemove.isEmpty())
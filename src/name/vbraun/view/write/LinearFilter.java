@@ -107,8 +107,22 @@ public class LinearFilter {
 	public void apply(float[] x) {
 		if (kernel == Filter.KERNEL_NONE)
 			return;
-		final int N = x.length;
 		float[] raw_x = x.clone();
+		apply(raw_x, x, x.length, 0, x.length);
+	}
+	
+	/**
+	 * Apply the filter to a part of a signal of length N. The result is the 
+	 * same as the corresponding entries of apply(float[]) on the first N entries.
+	 * @param raw_x the unfiltered signal, at least N entries
+	 * @param x the output array. Entries outside of [from, to) are not changed. 
+	 * @param N the length of the signal
+	 * @param from the first entry to compute
+	 * @param to one past the last entry to compute
+	 */
+	public void apply(float[] raw_x, float[] x, int N, int from, int to) {
+		if (kernel == Filter.KERNEL_NONE)
+			return;
 		int i;
 		float sum, norm;
 
@@ -117,7 +131,7 @@ public class LinearFilter {
 		int i_pre  = Math.min(length-1, N/2);
 		int i_post = Math.max(N-length, N/2);
 		
-		for (i=0; i<i_pre; i++) {
+		for (i=from; i<Math.min(i_pre, to); i++) {
 			norm = weight[0];
 			sum = raw_x[i] * weight[0];
 			for (int n=1; n<=i; n++) {
@@ -127,14 +141,9 @@ public class LinearFilter {
 			//x[i] = sum / norm;
 		}
 		
-		for (i=i_pre; i<i_post; i++) {
-			sum = raw_x[i] * weight[0];
-			for (int n=1; n<length; n++)
-				sum += (raw_x[i-n] + raw_x[i+n]) * weight[n];
-			x[i] = sum;
-		}
+		applyInterior(raw_x, x, Math.max(i_pre, from), Math.min(i_post, to));
 		
-		for (i=i_post; i<N; i++) {
+		for (i=Math.max(i_post, from); i<to; i++) {
 			norm = weight[0];
 			sum = raw_x[i] * weight[0];
 			for (int n=1; n<N-i; n++) {
@@ -144,7 +153,27 @@ public class LinearFilter {
 			x[i] = sum / norm;
 		}
 	}
+	
+	/**
+	 * Apply the filter away from the boundary, that is, for entries i such that 
+	 * the whole window [i-length+1, i+length-1] is part of the signal.
+	 */
+	public void applyInterior(float[] raw_x, float[] x, int from, int to) {
+		if (kernel == Filter.KERNEL_NONE)
+			return;
+		float sum;
+		for (int i=from; i<to; i++) {
+			sum = raw_x[i] * weight[0];
+			for (int n=1; n<length; n++)
+				sum += (raw_x[i-n] + raw_x[i+n]) * weight[n];
+			x[i] = sum;
+		}
+	}
+	
+	/**
+	 * The number of neighbors on either side that contribute to a filtered value, plus one.
+	 */
+	public int getLength() {
+		return length;
+	}
 }
-
-
-
@@ -1,10 +1,17 @@
 package name.vbraun.view.write;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.TreeMap;
@@ -37,21 +44,61 @@ public class Page {
 	// persistent data
 	protected UUID uuid;  // unique identifier
 	public final LinkedList<GraphicsImage> images = new LinkedList<GraphicsImage>();
-	public final LinkedList<Stroke> strokes = new LinkedList<Stroke>();
+	// strokes and lineArt are loaded on demand, see loadContent()
+	protected final LinkedList<Stroke> strokes = new LinkedList<Stroke>();
 	// lineArt contains straight lines, arrows, etc.
-	public final LinkedList<GraphicsLine> lineArt = new LinkedList<GraphicsLine>();
+	protected final LinkedList<GraphicsLine> lineArt = new LinkedList<GraphicsLine>();
 	public final TagManager.TagSet tags;
 	protected float aspect_ratio = AspectRatio.Table[0].ratio;
 	protected boolean is_readonly = false;
 	protected Paper.Type paper_type = Paper.Type.RULED;
 	protected TextBox backgroundText = new TextBox(Tool.TEXT);
 	
+	// spatial indices, must be kept in sync with the lists above
+	private final GraphicsIndex<GraphicsImage> imageIndex = 
+			new GraphicsIndex<GraphicsImage>(images, aspect_ratio);
+	private final GraphicsIndex<Stroke> strokeIndex = 
+			new GraphicsIndex<Stroke>(strokes, aspect_ratio);
+	private final GraphicsIndex<GraphicsLine> lineArtIndex = 
+			new GraphicsIndex<GraphicsLine>(lineArt, aspect_ratio);
+	
 	// coordinate transformation Stroke -> screen
-	protected Transformation transformation = new Transformation();
+	protected final Transformation transformation = new Transformation();
 	
+	// changed since the last save
 	protected boolean modified = false;
+	
+	// the page file must be rewritten, the change is not in the journal
+	protected boolean snapshotRequired = false;
+	
+	// records the changes to the graphics objects, may be null
+	private GraphicsJournal journal = null;
+	
+	// incremented with every modification and stored in the page file, 
+	// identifies the page content for cached thumbnails
+	private long contentVersion = 0;
+	
+	// the page file that the strokes and line art can be read from, or null
+	private File contentFile = null;
+	private long contentOffset, contentFileLength, contentFileTime;
+	private int contentFileVersion;
+	// the content version when the page was read, the content can be unloaded while it is unchanged
+	private long contentFileContentVersion;
+	// whether the strokes and line art are in memory
+	private boolean contentLoaded = true;
+	// whether the page file has neither strokes nor line art
+	private boolean contentFileEmpty;
+	// the content could not be read from the page file, the page must never be written
+	private boolean contentFailed = false;
+	// the book whose PageContentCache entries include this page, or null
+	private Object cacheOwner = null;
 
+	// scratch space for drawing, guarded by the page lock since the 
+	// TileCache renders pages from a background thread
 	private final RectF mRectF = new RectF();
+	private final RectF mPageRectF = new RectF();
+	private final ArrayList<Stroke> mStrokes = new ArrayList<Stroke>();
+	private final Visible mVisible = new Visible();
 	
 	public TagSet getTags() {
 		return tags;
@@ -68,26 +115,97 @@ public class Page {
 		return blobs;
 	}
 	
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
+		if (contentFailed)
+			return false;  // must not be removed as empty
+		if (!contentLoaded)
+			return contentFileEmpty && images.isEmpty();
 		return strokes.isEmpty() && lineArt.isEmpty() && images.isEmpty();
 	}
 	
 	/** Get the smallest rectangle containing the most recent stroke in page coordinates. 
 	 *  @return A RectF or null if the page is empty.
 	 */
-	public RectF getLastStrokeRect() {
+	public synchronized RectF getLastStrokeRect() {
+		loadContent();
 		if (strokes.isEmpty()) 
 			return null;
 		return strokes.getLast().getEnvelopingRect();
 	}
 	
+	/**
+	 * @return A copy of the strokes in drawing order
+	 */
+	public synchronized LinkedList<Stroke> getStrokes() {
+		loadContent();
+		return new LinkedList<Stroke>(strokes);
+	}
+	
+	/**
+	 * @return A copy of the line art in drawing order
+	 */
+	public synchronized LinkedList<GraphicsLine> getLineArt() {
+		loadContent();
+		return new LinkedList<GraphicsLine>(lineArt);
+	}
+	
 	public void touch() {
 		modified = true;
+		snapshotRequired = true;
+		contentVersion++;
 	}
 	
 	public boolean isModified() {
 		return modified;
 	}
+	
+	/**
+	 * The content version is incremented whenever the page is modified. 
+	 * 
+	 * It is written to the page file, and replaying the journal increments it
+	 * again for every change, so it stays the same across restarts as long as
+	 * the page is not changed. Page files written by older versions do not 
+	 * contain it, the loader makes it from their size and modification time.
+	 */
+	public long getContentVersion() {
+		return contentVersion;
+	}
+	
+	public void setContentVersion(long version) {
+		contentVersion = version;
+	}
+	
+	/**
+	 * Whether the page file must be written when saving. This is not
+	 * necessary if the page is only modified by adding and removing graphics
+	 * objects, and all changes have been recorded in the journal. Never true
+	 * if the content of the page could not be loaded.
+	 */
+	public boolean isSnapshotRequired() {
+		return snapshotRequired && !contentFailed;
+	}
+	
+	/**
+	 * Set the journal that records all changes to the graphics objects
+	 * @param journal The journal or null
+	 */
+	public synchronized void setJournal(GraphicsJournal journal) {
+		this.journal = journal;
+	}
+	
+	private void graphicsAdded(Graphics graphics) {
+		modified = true;
+		contentVersion++;
+		if (journal == null || !journal.onGraphicsAdded(this, graphics))
+			snapshotRequired = true;
+	}
+
+	private void graphicsRemoved(Graphics graphics, int position) {
+		modified = true;
+		contentVersion++;
+		if (journal == null || !journal.onGraphicsRemoved(this, graphics, position))
+			snapshotRequired = true;
+	}
 
 	public float getAspectRatio() {
 		return aspect_ratio;
@@ -103,45 +221,46 @@ public class Page {
 	
 	public void setReadonly(boolean ro) {
 		is_readonly = ro;
-		modified = true;
+		touch();
 	}
 	
-	public void setPaperType(Paper.Type type) {
+	public synchronized void setPaperType(Paper.Type type) {
 		paper_type = type;
-		modified = true;
-		background.setPaperType(paper_type);
+		touch();
+		synchronized (background) {
+			background.setPaperType(paper_type);
+		}
 	}
 	
-	public void setAspectRatio(float aspect) {
+	public synchronized void setAspectRatio(float aspect) {
 		aspect_ratio = aspect;
-		modified = true;
-		background.setAspectRatio(aspect_ratio);
+		touch();
+		synchronized (background) {
+			background.setAspectRatio(aspect_ratio);
+		}
+		rebuildIndex();
 	}
 	
-	protected void setTransform(float dx, float dy, float s) {
-		transformation.offset_x = dx;
-		transformation.offset_y = dy;
-		transformation.scale = s;
-		setTransformApply();
+	/**
+	 * Re-insert all graphics objects into the spatial indices 
+	 */
+	private void rebuildIndex() {
+		imageIndex.setAspectRatio(aspect_ratio);
+		strokeIndex.setAspectRatio(aspect_ratio);
+		lineArtIndex.setAspectRatio(aspect_ratio);
 	}
 	
-	protected void setTransform(Transformation newTrans) {
-		transformation.offset_x = newTrans.offset_x;
-		transformation.offset_y = newTrans.offset_y;
-		transformation.scale = newTrans.scale;
-		setTransformApply();
-	}
-		
 	/**
-	 * the common code of the setTransform(...) methods
+	 * Change the transformation. All graphics objects on the page share the
+	 * transformation instance, so this does not need to visit them. Their 
+	 * screen bounding boxes are updated lazily, see Graphics.getBoundingBox().
 	 */
-	private void setTransformApply() { 
-	    for (Stroke stroke : strokes)
-	    	stroke.setTransform(transformation);
-	    for (GraphicsControlpoint line : lineArt)
-	    	line.setTransform(transformation);
-	    for (GraphicsImage image : images)
-	    	image.setTransform(transformation);
+	protected synchronized void setTransform(float dx, float dy, float s) {
+		transformation.set(dx, dy, s);
+	}
+	
+	protected synchronized void setTransform(Transformation newTrans) {
+		transformation.set(newTrans);
 	}
 
 	// set transform but clamp the offset such that the page stays visible
@@ -164,89 +283,223 @@ public class Page {
 		return transformation;
 	}
 	
-	public void addStroke(Stroke s) {
+	public synchronized void addStroke(Stroke s) {
+		loadContent();
 		strokes.add(s);
+		strokeIndex.add(s);
 		s.setTransform(getTransform());
-		modified = true;
+		graphicsAdded(s);
 	}
 	
-	public void removeStroke(Stroke s) {
-		strokes.remove(s);
-		modified = true;
+	public synchronized void removeStroke(Stroke s) {
+		loadContent();
+		int position = strokes.indexOf(s);
+		if (position < 0) return;
+		strokes.remove(position);
+		strokeIndex.remove(s);
+		graphicsRemoved(s, position);
 	}
 
-	public void addLine(GraphicsLine line) {
+	public synchronized void addLine(GraphicsLine line) {
+		loadContent();
 		lineArt.add(line);
+		lineArtIndex.add(line);
 		line.setTransform(getTransform());
-		modified = true;
+		graphicsAdded(line);
 	}
 	
-	public void removeLine(GraphicsLine line) {
-		lineArt.remove(line);
-		modified = true;
+	public synchronized void removeLine(GraphicsLine line) {
+		loadContent();
+		int position = lineArt.indexOf(line);
+		if (position < 0) return;
+		lineArt.remove(position);
+		lineArtIndex.remove(line);
+		graphicsRemoved(line, position);
 	}
 
-	public void addImage(GraphicsImage image) {
+	public synchronized void addImage(GraphicsImage image) {
 		images.add(image);
+		imageIndex.add(image);
 		image.setTransform(getTransform());
-		modified = true;
+		graphicsAdded(image);
 	}
 	
-	public void removeImage(GraphicsImage image) {
-		images.remove(image);
-		modified = true;
+	public synchronized void removeImage(GraphicsImage image) {
+		int position = images.indexOf(image);
+		if (position < 0) return;
+		images.remove(position);
+		imageIndex.remove(image);
+		graphicsRemoved(image, position);
+	}
+	
+	/**
+	 * Find the strokes whose bounding box intersects the given rectangle
+	 * @param rect A rectangle in page coordinates
+	 * @param result The list to append the strokes to (in drawing order)
+	 */
+	public synchronized void findStrokesIn(RectF rect, List<? super Stroke> result) {
+		loadContent();
+		strokeIndex.query(rect, result);
+	}
+
+	/**
+	 * Find the line art whose bounding box intersects the given rectangle
+	 * @param rect A rectangle in page coordinates
+	 * @param result The list to append the lines to (in drawing order)
+	 */
+	public synchronized void findLineArtIn(RectF rect, List<? super GraphicsLine> result) {
+		loadContent();
+		lineArtIndex.query(rect, result);
+	}
+
+	/**
+	 * Find the images whose bounding box intersects the given rectangle
+	 * @param rect A rectangle in page coordinates
+	 * @param result The list to append the images to (in drawing order)
+	 */
+	public synchronized void findImagesIn(RectF rect, List<? super GraphicsImage> result) {
+		imageIndex.query(rect, result);
 	}
 
 	public void draw(Canvas canvas, RectF bounding_box) {
 		draw(canvas, bounding_box, true);
 	}
 	
-	public void draw(Canvas canvas, RectF bounding_box, boolean drawBackgroundLines) {
-		canvas.save();
-		canvas.clipRect(bounding_box);
-		if (drawBackgroundLines)
-			background.draw(canvas, bounding_box, transformation);
-		else
-			background.drawEmptyBackground(canvas, bounding_box, transformation);
-		backgroundText.draw(canvas, bounding_box);
-		for (GraphicsImage graphics: images) {
-		   	if (!canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA))
-		   		graphics.draw(canvas, bounding_box);
-	    }
-		for (Stroke s: strokes) {
-		   	if (!canvas.quickReject(s.getBoundingBox(), Canvas.EdgeType.AA))
-		   		s.draw(canvas, bounding_box);
-	    }
-		for (GraphicsControlpoint graphics: lineArt) {
-		   	if (!canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA))
-		   		graphics.draw(canvas, bounding_box);
-	    }
-		canvas.restore();
+	public synchronized void draw(Canvas canvas, RectF bounding_box, boolean drawBackgroundLines) {
+		draw(canvas, bounding_box, drawBackgroundLines, transformation);
+	}
+	
+	/**
+	 * Draw with the given transformation page -> canvas. The transformation
+	 * of the page and its graphics objects is not touched.
+	 */
+	private void draw(Canvas canvas, RectF bounding_box, boolean drawBackgroundLines, Transformation t) {
+		mVisible.collect(bounding_box, t);
+		mVisible.draw(canvas, drawBackgroundLines);
+		mVisible.clear();
 	}
 	
-	public Stroke findStrokeAt(float x, float y, float radius) {
-	    ListIterator<Stroke> siter = strokes.listIterator();
-		while(siter.hasNext()) {	
-			Stroke s = siter.next();	    	
+	/**
+	 * Collect the graphics objects in a rectangle of the screen, to draw them
+	 * without holding the page lock. 
+	 * @param bounding_box The rectangle in screen coordinates
+	 * @return The objects, drawn with a copy of the current transformation
+	 */
+	public synchronized Visible getVisible(RectF bounding_box) {
+		Visible visible = new Visible();
+		visible.collect(bounding_box, new Transformation(transformation));
+		return visible;
+	}
+	
+	/**
+	 * The graphics objects of the page in a rectangle of the screen
+	 * 
+	 * They are collected while holding the page lock. Strokes are not changed 
+	 * once they are on the page, so they can be drawn afterwards from any 
+	 * thread. The background is drawn while holding its own lock.
+	 */
+	public class Visible {
+		private Transformation t;
+		private final RectF boundingBox = new RectF();
+		private final RectF pageRect = new RectF();
+		private final RectF screenRect = new RectF();
+		private final ArrayList<GraphicsImage> visibleImages = new ArrayList<GraphicsImage>();
+		private final ArrayList<Stroke> visibleStrokes = new ArrayList<Stroke>();
+		private final ArrayList<GraphicsLine> visibleLineArt = new ArrayList<GraphicsLine>();
+		
+		private Visible() {}
+		
+		// must hold the page lock
+		private void collect(RectF bounding_box, Transformation t) {
+			loadContent();
+			this.t = t;
+			boundingBox.set(bounding_box);
+			// the screen bounding boxes are one pixel larger than the page bounding boxes
+			t.inverse(bounding_box, pageRect);
+			float extra = -1f / t.scale;
+			pageRect.inset(extra, extra);
+			imageIndex.query(pageRect, visibleImages);
+			strokeIndex.query(pageRect, visibleStrokes);
+			lineArtIndex.query(pageRect, visibleLineArt);
+		}
+		
+		private void clear() {
+			t = null;
+			visibleImages.clear();
+			visibleStrokes.clear();
+			visibleLineArt.clear();
+		}
+		
+		public void draw(Canvas canvas, boolean drawBackgroundLines) {
+			canvas.save();
+			canvas.clipRect(boundingBox);
+			synchronized (background) {
+				if (drawBackgroundLines)
+					background.draw(canvas, boundingBox, t);
+				else
+					background.drawEmptyBackground(canvas, boundingBox, t);
+			}
+			synchronized (backgroundText) {
+				backgroundText.draw(canvas, boundingBox);
+			}
+			for (GraphicsImage graphics: visibleImages) {
+			   	if (!quickReject(canvas, graphics))
+			   		graphics.draw(canvas, boundingBox, t);
+		    }
+			for (Stroke s: visibleStrokes) {
+			   	if (!quickReject(canvas, s))
+			   		s.draw(canvas, boundingBox, t);
+		    }
+			for (GraphicsControlpoint graphics: visibleLineArt) {
+			   	if (!quickReject(canvas, graphics))
+			   		graphics.draw(canvas, boundingBox, t);
+		    }
+			canvas.restore();
+		}
+		
+		private boolean quickReject(Canvas canvas, Graphics graphics) {
+			// the cached screen bounding box is only valid while holding the page lock
+			if (t == transformation)
+				return canvas.quickReject(graphics.getBoundingBox(), Canvas.EdgeType.AA);
+			t.apply(graphics.getPageBoundingBox(), screenRect);
+			screenRect.inset(-1, -1);
+			return canvas.quickReject(screenRect, Canvas.EdgeType.AA);
+		}
+	}
+	
+	public synchronized Stroke findStrokeAt(float x, float y, float radius) {
+		loadContent();
+		mRectF.set(x-radius, y-radius, x+radius, y+radius);
+		transformation.inverse(mRectF, mPageRectF);
+		mStrokes.clear();
+		strokeIndex.query(mPageRectF, mStrokes);
+		Stroke result = null;
+		for (Stroke s : mStrokes) {
 			if (!s.getBoundingBox().contains(x,y)) continue;
-			if (s.distance(x,y) < radius)
-				return s;
+			if (s.distance(x,y) < radius) {
+				result = s;
+				break;
+			}
 		}
-		return null;
+		mStrokes.clear();
+		return result;
 	}
 	
 	public void draw(Canvas canvas) {
 		draw(canvas, true);
 	}
 
-	public void draw(Canvas canvas, boolean background) {
+	public synchronized void draw(Canvas canvas, boolean background) {
 		mRectF.set(0,0,canvas.getWidth(), canvas.getHeight());
 		draw(canvas, mRectF, background);
 	}
 	
 	
-	public void writeToStream(DataOutputStream out) throws IOException {
-		out.writeInt(6);  // protocol version number
+	public synchronized void writeToStream(DataOutputStream out) throws IOException {
+		loadContent();
+		if (contentFailed)
+			throw new IOException("Refusing to write page whose content could not be loaded");
+		out.writeInt(7);  // protocol version number
 		out.writeUTF(uuid.toString());
 		tags.write_to_stream(out);
 		out.writeInt(paper_type.ordinal());
@@ -258,10 +511,16 @@ public class Page {
 		out.writeInt(0); // reserved2
 		out.writeBoolean(is_readonly);
 		out.writeFloat(aspect_ratio);
+		out.writeLong(contentVersion);
 		
 		out.writeInt(strokes.size());
-		for (Stroke stroke : strokes)
-			stroke.writeToStream(out);
+		Stroke.Encoder encoder = new Stroke.Encoder();
+		try {
+			for (Stroke stroke : strokes)
+				stroke.writeToStream(out, encoder);
+		} finally {
+			encoder.end();
+		}
 		
 		out.writeInt(lineArt.size());
 		for (GraphicsControlpoint line : lineArt)
@@ -276,6 +535,7 @@ public class Page {
 	 */
 	public void markAsSaved() {
 		modified = false;
+		snapshotRequired = false;
 	}
 	
 	public Page(TagManager tagMgr) {
@@ -285,7 +545,7 @@ public class Page {
 		setPaperType(paper_type);
 		setAspectRatio(aspect_ratio);
 		setTransform(transformation);
-		modified = true;
+		touch();
 	}
 
 
@@ -305,12 +565,22 @@ public class Page {
 	public Page(Page template, File dir) {
 		tags = template.tags.copy();
 		initPageStyle(template);
-		for (Stroke stroke: template.strokes) 
-			strokes.add(new Stroke(stroke));
-		for (GraphicsLine line: template.lineArt)
-			lineArt.add(new GraphicsLine(line));
-		for (GraphicsImage image: template.images)
-			images.add(new GraphicsImage(image, dir));
+		for (Stroke stroke: template.getStrokes()) {
+			Stroke copy = new Stroke(stroke);
+			copy.setTransform(transformation);
+			strokes.add(copy);
+		}
+		for (GraphicsLine line: template.getLineArt()) {
+			GraphicsLine copy = new GraphicsLine(line);
+			copy.setTransform(transformation);
+			lineArt.add(copy);
+		}
+		for (GraphicsImage image: template.images) {
+			GraphicsImage copy = new GraphicsImage(image, dir);
+			copy.setTransform(transformation);
+			images.add(copy);
+		}
+		rebuildIndex();
 	}
 	
 	/**
@@ -327,12 +597,24 @@ public class Page {
 		setPaperType(template.paper_type);
 		setAspectRatio(template.aspect_ratio);
 		setTransform(template.transformation);
-		modified = true;
+		touch();
 	}
 	
 	
 
 	public Page(DataInputStream in, TagManager tagMgr, File dir) throws IOException {
+		this(in, tagMgr, dir, true);
+	}
+	
+	/**
+	 * Read a page
+	 * @param in
+	 * @param tagMgr
+	 * @param dir The directory of the image files
+	 * @param readContent Whether to read the strokes and line art. If not, the 
+	 *                    stream is left at the number of strokes.
+	 */
+	private Page(DataInputStream in, TagManager tagMgr, File dir, boolean readContent) throws IOException {
 		tagManager = tagMgr;
 		int version = in.readInt();
 		if (version == 1) {
@@ -357,52 +639,207 @@ public class Page {
 			paper_type = Paper.Type.values()[in.readInt()];
 			in.readInt();
 			in.readInt();
-		} else if (version == 6) {
+		} else if (version == 6 || version == 7) {
 			uuid = UUID.fromString(in.readUTF());
 			tags = tagManager.loadTagSet(in);
 			paper_type = Paper.Type.values()[in.readInt()];			
 			int nImages= in.readInt();
-			for (int i=0; i<nImages; i++)
-				images.add(new GraphicsImage(in, dir));
+			for (int i=0; i<nImages; i++) {
+				GraphicsImage image = new GraphicsImage(in, dir);
+				image.setTransform(transformation);
+				images.add(image);
+			}
 			int dummy = in.readInt();    Assert.assertTrue(dummy == 0);
 		} else 	
 			throw new IOException("Unknown page version!");
 		is_readonly = in.readBoolean();
 		aspect_ratio = in.readFloat();
-
+		if (version >= 7)
+			contentVersion = in.readLong();
+		contentFileVersion = version;
+		if (readContent)
+			readContent(in);
+		synchronized (background) {
+			background.setAspectRatio(aspect_ratio);
+			background.setPaperType(paper_type);
+		}
+		rebuildIndex();
+	}
+	
+	private void readContent(DataInputStream in) throws IOException {
 		int nStrokes = in.readInt();
 		for (int i=0; i<nStrokes; i++) {
-			strokes.add(new Stroke(in));
+			Stroke stroke = new Stroke(in);
+			stroke.setTransform(transformation);
+			strokes.add(stroke);
 		}
 		
-		if (version >= 5) {
+		if (contentFileVersion >= 5) {
 			int nLines = in.readInt();
 			for (int i=0; i<nLines; i++) {
-				lineArt.add(new GraphicsLine(in));
+				GraphicsLine line = new GraphicsLine(in);
+				line.setTransform(transformation);
+				lineArt.add(line);
 			}
 			in.readInt(); // dummy
 			int nText = in.readInt();  // TODO
 		}
-		
-		background.setAspectRatio(aspect_ratio);
-		background.setPaperType(paper_type);
 	}
 	
-	public Bitmap renderBitmap(int width, int height, boolean background) {
-		Transformation backup = new Transformation(getTransform());
+	// the beginning of the page file that is read for the metadata, enough unless there are many tags or images 
+	private static final int METADATA_READ_SIZE = 16 * 1024;
+	
+	/**
+	 * Read a page file, but only the metadata and the image records. The 
+	 * strokes and line art are read from the file when they are first needed, 
+	 * and are unloaded again by the {@link PageContentCache} as long as the 
+	 * page is not changed. The content version is read from the file, or made
+	 * from its size and modification time if the file is older.
+	 * @param file The page file
+	 * @param tagMgr
+	 * @param dir The directory of the image files
+	 * @return The page
+	 * @throws IOException
+	 */
+	public static Page load(File file, TagManager tagMgr, File dir) throws IOException {
+		long length = file.length();
+		long time = file.lastModified();
+		if (length <= METADATA_READ_SIZE)
+			return load(file, tagMgr, dir, length, time, (int)length);
+		try {
+			return load(file, tagMgr, dir, length, time, METADATA_READ_SIZE);
+		} catch (EOFException e) {
+			// the metadata is longer
+			return load(file, tagMgr, dir, length, time, (int)length);
+		}
+	}
+	
+	/**
+	 * Implementation of load()
+	 * @param size The number of bytes to read from the beginning of the file
+	 */
+	private static Page load(File file, TagManager tagMgr, File dir, long length, long time, int size) 
+			throws IOException {
+		byte[] data = new byte[size];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		Page page = new Page(in, tagMgr, dir, false);
+		page.contentFile = file;
+		page.contentFileLength = length;
+		page.contentFileTime = time;
+		page.contentOffset = size - bytes.available();
+		int nStrokes = in.readInt();
+		int nLines = (nStrokes == 0 && page.contentFileVersion >= 5) ? in.readInt() : 0;
+		page.contentFileEmpty = (nStrokes == 0 && nLines == 0);
+		page.contentLoaded = false;
+		if (page.contentFileVersion < 7)
+			page.setContentVersion(31 * time + length);
+		page.contentFileContentVersion = page.contentVersion;
+		return page;
+	}
+	
+	/**
+	 * Read the strokes and line art from the page file if they are not in memory.
+	 * The caller must hold the page lock.
+	 */
+	private void loadContent() {
+		if (contentFile == null)
+			return;
+		if (contentLoaded) {
+			PageContentCache.used(this);
+			return;
+		}
+		contentLoaded = true;
+		try {
+			if (contentFile.length() != contentFileLength || contentFile.lastModified() != contentFileTime)
+				throw new IOException("Page file changed");
+			FileInputStream fis = new FileInputStream(contentFile);
+			try {
+				fis.getChannel().position(contentOffset);
+				readContent(new DataInputStream(new BufferedInputStream(fis)));
+			} finally {
+				fis.close();
+			}
+			if (cacheOwner != null)
+				PageContentCache.loaded(this, cacheOwner, contentFileLength);
+		} catch (IOException e) {
+			// the page file is kept as it is, the page is shown empty
+			Log.e(TAG, "Error loading page content: "+e.getMessage());
+			strokes.clear();
+			lineArt.clear();
+			contentFile = null;
+			contentFailed = true;
+		}
+		rebuildIndex();
+	}
+	
+	/**
+	 * Free the Paths and the coarser levels of detail of the strokes, for 
+	 * example when the page is no longer shown. The strokes stay in memory.
+	 */
+	public synchronized void releaseDrawingCache() {
+		for (Stroke stroke : strokes)
+			stroke.releaseDrawingCache();
+	}
+	
+	/**
+	 * Drop the strokes and line art from memory if they can be read again from 
+	 * the page file, that is, if the page was not changed since it was loaded.
+	 * Called by the {@link PageContentCache}.
+	 * @return Whether the content was unloaded
+	 */
+	protected synchronized boolean unloadContent() {
+		if (!contentLoaded || contentFile == null || modified
+				|| contentVersion != contentFileContentVersion)
+			return false;
+		releaseDrawingCache();
+		strokes.clear();
+		lineArt.clear();
+		rebuildIndex();
+		contentLoaded = false;
+		PageContentCache.removed(this);
+		return true;
+	}
+	
+	/**
+	 * Let the {@link PageContentCache} unload the strokes and line art of
+	 * this page when memory is short. Only the pages of the open book are
+	 * registered, the book unregisters them when it is closed.
+	 * @param owner The book, or null to unregister the page
+	 */
+	public synchronized void setCacheOwner(Object owner) {
+		if (owner == cacheOwner)
+			return;
+		PageContentCache.removed(this);
+		cacheOwner = owner;
+		if (owner != null && contentLoaded && contentFile != null)
+			PageContentCache.loaded(this, owner, contentFileLength);
+	}
+	
+	/**
+	 * Render the page into a new bitmap. The page may be shown on screen at
+	 * the same time, its transformation is not changed.
+	 */
+	public synchronized Bitmap renderBitmap(int width, int height, boolean background) {
 		float scale = Math.min(height, width/aspect_ratio);
-		setTransform(0, 0, scale);
 		int actual_width  = (int)Math.rint(scale*aspect_ratio);
 		int actual_height = (int)Math.rint(scale);
 		Bitmap bitmap = Bitmap.createBitmap
 			(actual_width, actual_height, Config.ARGB_8888);
 		Canvas c = new Canvas(bitmap);
-		draw(c, background);
-		setTransform(backup);
+		mRectF.set(0, 0, actual_width, actual_height);
+		draw(c, mRectF, background, new Transformation(0, 0, scale));
 		return bitmap;
 	}
 	
-	public void render(Artist artist) {
+	public synchronized void render(Artist artist) {
+		loadContent();
 		background.render(artist);
 		for (GraphicsImage image: images) {
 		   	image.render(artist);
@@ -0,0 +1,132 @@
+package name.vbraun.view.write;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the pages whose strokes and line art were read from their page file
+ *
+ * Pages read with {@link Page#load(java.io.File, com.write.Quill.data.TagManager, java.io.File)}
+ * only load their graphics when they are drawn or edited. Only the pages of
+ * an open book take part, see {@link Page#setCacheOwner(Object)}; the pages
+ * of previews are never tracked. Once the loaded pages exceed the memory
+ * budget, the least recently used ones are unloaded again on a background
+ * thread. Pages that were changed since they were loaded cannot be unloaded,
+ * they stay in the cache and count towards the budget.
+ *
+ * The pages lock the cache, but the cache never holds its lock while
+ * unloading a page.
+ *
+ * @author vbraun
+ *
+ */
+public class PageContentCache {
+	private static final String TAG = "PageContentCache";
+
+	// the decoded graphics take several times the size of the page file
+	private static final int DECODED_SIZE_FACTOR = 4;
+
+	private static final long maxSize = Runtime.getRuntime().maxMemory() / 4;
+	private static long size = 0;
+
+	private static class Entry {
+		private final Object owner;
+		private final long size;
+		private Entry(Object owner, long size) {
+			this.owner = owner;
+			this.size = size;
+		}
+	}
+
+	// in access order, the least recently used page comes first; guarded by the class lock
+	private static final LinkedHashMap<Page, Entry> pages = new LinkedHashMap<Page, Entry>(64, 0.75f, true);
+
+	private static ExecutorService trimmer = null;
+	private static boolean trimming = false;
+
+	/**
+	 * Called by the page after its content was read
+	 * @param page
+	 * @param owner The book that the page belongs to
+	 * @param fileSize The size of the page file
+	 */
+	protected static synchronized void loaded(Page page, Object owner, long fileSize) {
+		Entry entry = new Entry(owner, fileSize * DECODED_SIZE_FACTOR);
+		Entry old = pages.put(page, entry);
+		if (old != null)
+			size -= old.size;
+		size += entry.size;
+		if (size > maxSize && !trimming) {
+			trimming = true;
+			if (trimmer == null)
+				trimmer = Executors.newSingleThreadExecutor();
+			trimmer.execute(new Runnable() {
+				@Override
+				public void run() {
+					trim();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by the page whenever its content is accessed
+	 * @param page
+	 */
+	protected static synchronized void used(Page page) {
+		pages.get(page);
+	}
+
+	/**
+	 * Called by the page after its content was unloaded, or when it leaves the book
+	 * @param page
+	 */
+	protected static synchronized void removed(Page page) {
+		Entry entry = pages.remove(page);
+		if (entry != null)
+			size -= entry.size;
+	}
+
+	/**
+	 * Forget all pages of a book, to be called when the book is closed
+	 * @param owner The book
+	 */
+	public static synchronized void removeAll(Object owner) {
+		Iterator<Entry> iter = pages.values().iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (entry.owner != owner)
+				continue;
+			size -= entry.size;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Unload the least recently used pages until the rest fits into the memory
+	 * budget. The most recently used page is always kept. A page removes
+	 * itself from the cache when it is unloaded.
+	 */
+	private static void trim() {
+		ArrayList<Page> candidates;
+		synchronized (PageContentCache.class) {
+			trimming = false;
+			candidates = new ArrayList<Page>(pages.keySet());
+		}
+		int count = 0;
+		for (int i = 0; i < candidates.size() - 1; i++) {
+			synchronized (PageContentCache.class) {
+				if (size <= maxSize)
+					break;
+			}
+			if (candidates.get(i).unloadContent())
+				count++;
+		}
+		Log.d(TAG, "Unloaded " + count + " pages");
+	}
+}
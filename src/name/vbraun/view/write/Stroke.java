@@ -1,6 +1,7 @@
 package name.vbraun.view.write;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Queue;
@@ -10,6 +11,9 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.Math;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.libharu.Page.LineCap;
 import org.libharu.Page.LineJoin;
@@ -40,12 +44,12 @@ public class Stroke extends Graphics {
 	protected float[] position_y;
 	protected float[] pressure;
 
-	private final Paint mPen = new Paint();
+	private Ink ink;
 	protected int pen_thickness = 0;
 	protected int pen_color = Color.BLACK;
 
 	// subsampling tolerance
-	private static final float EPSILON = 2e-4f;
+	protected static final float EPSILON = 2e-4f;
 
 	/**
 	 * Constructor for pen stroke objects
@@ -77,6 +81,7 @@ public class Stroke extends Graphics {
 		pressure = Arrays.copyOfRange(p, from, to);
 		setPen(pen_thickness, pen_color);
 		setTransform(transform);
+		prepareDrawingCache();
 	}
 	
 	/**
@@ -89,6 +94,7 @@ public class Stroke extends Graphics {
 		position_y = stroke.position_y.clone();
 		pressure = stroke.pressure.clone();
 		setPen(stroke.pen_thickness, stroke.pen_color);
+		prepareDrawingCache();
 	}	
 
 	/**
@@ -111,19 +117,74 @@ public class Stroke extends Graphics {
 			float[] x, float[] y, float[] p, int N, LinearFilter.Filter filter) {
 		Stroke s = new Stroke(pen_type, pen_thickness, pen_color, transform, x, y, p, 0, N);
 		s.applyInverseTransform();
-		s.computeBoundingBox();
 		s.smooth(filter);
 		s.simplify();
+		s.prepareDrawingCache();
+		return s;
+	}
+
+	/**
+	 * Create a new Stroke object from points that are already smoothed and
+	 * simplified, see StrokeBuilder
+	 * 
+	 * @param x
+	 *            array of floats, the x coordinates (page coordinates)
+	 * @param y
+	 *            array of floats, the y coordinates (page coordinates)
+	 * @param p
+	 *            array of floats, the pressure (normalized 0..1)
+	 * @param N
+	 *            integer, the number of points to use from the arrays.
+	 */
+	protected static Stroke fromSimplified(Tool pen_type, int pen_thickness, int pen_color, Transformation transform,
+			float[] x, float[] y, float[] p, int N) {
+		Stroke s = new Stroke(pen_type, pen_thickness, pen_color, transform, x, y, p, 0, N);
 		return s;
 	}
 
 	private void setPen(int new_pen_thickness, int new_pen_color) {
 		pen_thickness = new_pen_thickness;
 		pen_color = new_pen_color;
-		mPen.setARGB(Color.alpha(pen_color), Color.red(pen_color), Color.green(pen_color), Color.blue(pen_color));
-		mPen.setAntiAlias(true);
-		mPen.setStrokeCap(Paint.Cap.ROUND);
-		recompute_bounding_box = true;
+		ink = Ink.get(pen_color, pen_thickness, tool);
+		geometryChanged();
+	}
+
+	/**
+	 * The paints for drawing a stroke in page coordinates
+	 * 
+	 * Strokes with the same color, thickness, and tool share a single instance,
+	 * so the paints must not be modified except while holding the lock on them.
+	 */
+	private static class Ink {
+		private static final HashMap<Long, Ink> inks = new HashMap<Long, Ink>();
+
+		// filled outline
+		private final Paint fill = new Paint();
+		// constant width line, the width is in page coordinates
+		private final Paint line = new Paint();
+		private final float width;
+
+		private Ink(int color, int thickness) {
+			width = getScaledPenThickness(1f, thickness);
+			fill.setARGB(Color.alpha(color), Color.red(color), Color.green(color), Color.blue(color));
+			fill.setAntiAlias(true);
+			fill.setStyle(Paint.Style.FILL);
+			line.setARGB(Color.alpha(color), Color.red(color), Color.green(color), Color.blue(color));
+			line.setAntiAlias(true);
+			line.setStrokeCap(Paint.Cap.ROUND);
+			line.setStyle(Paint.Style.STROKE);
+			line.setStrokeWidth(width);
+		}
+
+		private static synchronized Ink get(int color, int thickness, Tool tool) {
+			Long key = ((long) color << 32) | ((long) thickness << 8) | tool.ordinal();
+			Ink ink = inks.get(key);
+			if (ink == null) {
+				ink = new Ink(color, thickness);
+				inks.put(key, ink);
+			}
+			return ink;
+		}
 	}
 
 	// static method that exports the pen scaling algorithm
@@ -138,7 +199,7 @@ public class Stroke extends Graphics {
 
 	// this computes the argument to Paint.setStrokeWidth()
 	public float getScaledPenThickness() {
-		return getScaledPenThickness(scale, pen_thickness);
+		return getScaledPenThickness(transform.scale, pen_thickness);
 	}
 
 	// Get the scaled thickness for a different scale factor (i.e. printing)
@@ -165,24 +226,22 @@ public class Stroke extends Graphics {
 		return new RectF(xmin, ymin, xmax, ymax);
 	}
 
-	protected void computeBoundingBox() {
-		// Log.d(TAG, "computeBoundingBox, old=" + bBoxFloat);
+	protected void computePageBoundingBox() {
 		float x0, x1, y0, y1, x, y;
-		x0 = x1 = position_x[0] * scale + offset_x;
-		y0 = y1 = position_y[0] * scale + offset_y;
+		x0 = x1 = position_x[0];
+		y0 = y1 = position_y[0];
 		for (int i = 1; i < N; i++) {
-			x = position_x[i] * scale + offset_x;
-			y = position_y[i] * scale + offset_y;
+			x = position_x[i];
+			y = position_y[i];
 			x0 = Math.min(x0, x);
 			x1 = Math.max(x1, x);
 			y0 = Math.min(y0, y);
 			y1 = Math.max(y1, y);
 		}
-		bBoxFloat.set(x0, y0, x1, y1);
-		float extra = -getScaledPenThickness() / 2 - 1;
-		bBoxFloat.inset(extra, extra);
-		bBoxFloat.roundOut(bBoxInt);
-		recompute_bounding_box = false;
+		bBoxPage.set(x0, y0, x1, y1);
+		float extra = -getScaledPenThickness(1f) / 2;
+		bBoxPage.inset(extra, extra);
+		recompute_page_bounding_box = false;
 	}
 
 	/**
@@ -194,28 +253,28 @@ public class Stroke extends Graphics {
 		for (int i = 0; i < N; i++) {
 			x = position_x[i];
 			y = position_y[i];
-			position_x[i] = (x - offset_x) / scale;
-			position_y[i] = (y - offset_y) / scale;
+			position_x[i] = (x - transform.offset_x) / transform.scale;
+			position_y[i] = (y - transform.offset_y) / transform.scale;
 		}
-		recompute_bounding_box = true;
+		geometryChanged();
 	}
 
 	public float distance(float x_screen, float y_screen) {
-		float x = (x_screen - offset_x) / scale;
-		float y = (y_screen - offset_y) / scale;
+		float x = (x_screen - transform.offset_x) / transform.scale;
+		float y = (y_screen - transform.offset_y) / transform.scale;
 		float d = Math.abs(x - position_x[0]) + Math.abs(y - position_y[0]);
 		for (int i = 1; i < N; i++) {
 			float d_new = Math.abs(x - position_x[i]) + Math.abs(y - position_y[i]);
 			d = Math.min(d, d_new);
 		}
-		return d * scale;
+		return d * transform.scale;
 	}
 
 	public boolean intersects(RectF r_screen) {
 		// Log.v(TAG,
 		// ""+r_screen.left+" "+r_screen.bottom+" "+r_screen.right+" "+r_screen.top);
-		RectF r = new RectF((r_screen.left - offset_x) / scale, (r_screen.top - offset_y) / scale,
-				(r_screen.right - offset_x) / scale, (r_screen.bottom - offset_y) / scale);
+		RectF r = new RectF((r_screen.left - transform.offset_x) / transform.scale, (r_screen.top - transform.offset_y) / transform.scale,
+				(r_screen.right - transform.offset_x) / transform.scale, (r_screen.bottom - transform.offset_y) / transform.scale);
 		// Log.v(TAG, ""+r.left+" "+r.bottom+" "+r.right+" "+r.top);
 		for (int i = 0; i < N; i++)
 			if (r.contains(position_x[i], position_y[i]))
@@ -223,51 +282,170 @@ public class Stroke extends Graphics {
 		return false;
 	}
 
-	public void draw(Canvas c, RectF bounding_box) {
+	@Override
+	public void draw(Canvas c, RectF bounding_box, Transformation t) {
 		// Page.draw already checked the bounding box, we definitely need to
 		// draw
-		if (recompute_bounding_box)
-			computeBoundingBox();
 		// if we are zoomed in use higher-quality graphics
-		final boolean zoom = (scale > 1500f);
-		if (N <= 2 || (tool == Tool.PENCIL && !zoom))
-			drawWithStraightLine(c);
+		final boolean zoom = (t.scale > 1500f);
+		Detail d = getDetail(t.scale);
+		if (d.N <= 2 || (tool == Tool.PENCIL && !zoom))
+			drawWithStraightLine(c, t, d.position_x, d.position_y, d.pressure, d.N);
 		else if (tool == Tool.PENCIL)
-			drawPencilWithQuadraticBezier(c);
+			drawPencilWithQuadraticBezier(c, t, d.position_x, d.position_y, d.N);
 		else 
-			drawFountainpenWithCubicBezier(c);
+			drawFountainpenWithCubicBezier(c, t, d);
+	}
+	
+	// number of simplified versions of the stroke, in addition to the stored points
+	private static final int DETAIL_LEVELS = 3;
+	
+	// ratio of the simplification tolerance between successive levels
+	private static final float DETAIL_FACTOR = 4f;
+	
+	/**
+	 * A version of the stroke for drawing at a particular scale
+	 */
+	private static class Detail {
+		private final float[] position_x, position_y, pressure;
+		private final int N;
+		// maximal deviation from the stored points, in page coordinates
+		private final float error;
+		// the outline of a fountain pen stroke, null otherwise
+		private final Outline outline;
+		// the outline as a Path, created when it is first drawn; guarded by the stroke lock
+		private Path path = null;
+		
+		private Detail(float[] position_x, float[] position_y, float[] pressure, int N, float error, 
+				Outline outline) {
+			this.position_x = position_x;
+			this.position_y = position_y;
+			this.pressure = pressure;
+			this.N = N;
+			this.error = error;
+			this.outline = outline;
+		}
+	}
+	
+	// level of detail pyramid, guarded by the stroke lock. The first level
+	// holds the stored points and is built when the stroke is created or 
+	// loaded, the coarser levels are built when they are drawn.
+	private Detail[] details = null;
+	
+	private Detail newDetail(float[] x, float[] y, float[] p, int n, float error) {
+		Outline outline = null;
+		if (tool == Tool.FOUNTAINPEN && n >= 3)
+			outline = new Outline(x, y, n);
+		return new Detail(x, y, p, n, error, outline);
+	}
+	
+	/**
+	 * Build the level of detail with all stored points, including the outline
+	 * of a fountain pen stroke. To be called once the points are final.
+	 */
+	private synchronized Detail prepareDrawingCache() {
+		if (details == null) {
+			details = new Detail[DETAIL_LEVELS + 1];
+			details[0] = newDetail(position_x, position_y, pressure, N, 0f);
+		}
+		return details[0];
+	}
+	
+	/**
+	 * Return the coarsest level of detail that deviates by less than half a 
+	 * pixel from the stored points
+	 * @param scale The scale factor page -> screen
+	 */
+	private synchronized Detail getDetail(float scale) {
+		prepareDrawingCache();
+		int level = 0;
+		float tolerance = EPSILON;
+		while (level < DETAIL_LEVELS) {
+			tolerance *= DETAIL_FACTOR;
+			Detail d = details[level];
+			if ((d.error + tolerance) * scale >= 0.5f)
+				break;
+			if (details[level + 1] == null)
+				details[level + 1] = simplifyDetail(d, tolerance);
+			level++;
+		}
+		return details[level];
+	}
+	
+	/**
+	 * Simplify a level of detail further
+	 * @param tolerance The simplification tolerance
+	 * @return The next coarser level of detail, or the same if no point can be dropped
+	 */
+	private Detail simplifyDetail(Detail d, float tolerance) {
+		SimplifyScratch scratch = simplifyScratch.get();
+		if (scratch.keep.length < d.N)
+			scratch.keep = new boolean[Math.max(d.N, 2 * scratch.keep.length)];
+		boolean[] keep = scratch.keep;
+		int n = simplify(d.position_x, d.position_y, d.pressure, tool, 0, d.N - 1, keep, tolerance);
+		if (n == d.N)
+			return d;
+		float[] x = new float[n];
+		float[] y = new float[n];
+		float[] p = new float[n];
+		int j = 0;
+		for (int i = 0; i < d.N; i++) {
+			if (!keep[i]) continue;
+			x[j] = d.position_x[i];
+			y[j] = d.position_y[i];
+			p[j] = d.pressure[i];
+			j++;
+		}
+		return newDetail(x, y, p, n, d.error + tolerance);
 	}
 	
 	/**
 	 * The simplest way to render: use straight lines (ugly but fast)
 	 */
-	private void drawWithStraightLine(Canvas c) {
-		final float scaled_pen_thickness = getScaledPenThickness();
-		mPen.setStyle(Paint.Style.STROKE);
-		if (tool == Tool.PENCIL)
-			mPen.setStrokeWidth(scaled_pen_thickness);
+	private void drawWithStraightLine(Canvas c, Transformation t, float[] position_x, float[] position_y, float[] pressure, int N) {
+		final Paint paint = ink.line;
+		c.save();
+		c.translate(t.offset_x, t.offset_y);
+		c.scale(t.scale, t.scale);
 		float x0, x1, y0, y1, p0, p1;
-		// c.drawRect(left, top, right, bottom, paint)
 		// note: we offset the first point by 1/10 pixel since android does not
 		// draw lines with start=end
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
-		p0 = pressure[0];
-		for (int i = 1; i < N; i++) {
-			x1 = position_x[i] * scale + offset_x;
-			y1 = position_y[i] * scale + offset_y;
-			if (tool == Tool.FOUNTAINPEN) {
-				p1 = pressure[i];
-				mPen.setStrokeWidth((p0 + p1) / 2 * scaled_pen_thickness);
-				p0 = p1;
+		x0 = position_x[0] + 0.1f / t.scale;
+		y0 = position_y[0];
+		if (tool == Tool.FOUNTAINPEN) {
+			p0 = pressure[0];
+			synchronized (paint) {
+				for (int i = 1; i < N; i++) {
+					x1 = position_x[i];
+					y1 = position_y[i];
+					p1 = pressure[i];
+					paint.setStrokeWidth((p0 + p1) / 2 * ink.width);
+					c.drawLine(x0, y0, x1, y1, paint);
+					x0 = x1;
+					y0 = y1;
+					p0 = p1;
+				}
+				paint.setStrokeWidth(ink.width);
 			}
-			c.drawLine(x0, y0, x1, y1, mPen);
-			x0 = x1;
-			y0 = y1;
-		}		
+		} else {
+			for (int i = 1; i < N; i++) {
+				x1 = position_x[i];
+				y1 = position_y[i];
+				c.drawLine(x0, y0, x1, y1, paint);
+				x0 = x1;
+				y0 = y1;
+			}
+		}
+		c.restore();
 	}
 
-	private Path path = new Path();
+	// pencil strokes are cheap to re-create, so they share one Path per drawing thread
+	private static final ThreadLocal<Path> scratchPath = new ThreadLocal<Path>() {
+		@Override
+		protected Path initialValue() {
+			return new Path();
+		}
+	};
 
 	/**
 	 * Quadratic Bezier curve for constant width
@@ -275,24 +453,23 @@ public class Stroke extends Graphics {
 	 * The trick is to use midpoints as start/stop point of the Bezier, and
 	 * actual data points as the control point.
 	 */
-	private void drawPencilWithQuadraticBezier(Canvas c) {
+	private void drawPencilWithQuadraticBezier(Canvas c, Transformation t, float[] position_x, float[] position_y, int N) {
 		Assert.assertTrue(tool == Tool.PENCIL && N >= 3);
+		final Path path = scratchPath.get();
 		path.rewind();
-		mPen.setStyle(Paint.Style.STROKE);
-		mPen.setStrokeWidth(getScaledPenThickness());
 		float x0, x1, x2, x3, y0, y1, y2, y3;
 		
 		// the first actual point is treated as a midpoint
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
+		x0 = position_x[0] + 0.1f / t.scale;
+		y0 = position_y[0];
 		path.moveTo(x0, y0);
 
-		x1 = position_x[1] * scale + offset_x + 0.1f;
-		y1 = position_y[1] * scale + offset_y;
+		x1 = position_x[1] + 0.1f / t.scale;
+		y1 = position_y[1];
 		for (int i = 2; i < N-1; i++) {
 			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i] * scale + offset_x;
-			y3 = position_y[i] * scale + offset_y;
+			x3 = position_x[i];
+			y3 = position_y[i];
 			x2 = (x1+x3)/2f;
 			y2 = (y1+y3)/2f;
 			path.quadTo(x1, y1, x2, y2);
@@ -301,139 +478,468 @@ public class Stroke extends Graphics {
 		}
 
 		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1] * scale + offset_x;
-		y2 = position_y[N-1] * scale + offset_y;
+		x2 = position_x[N-1];
+		y2 = position_y[N-1];
 		path.quadTo(x1, y1, x2, y2);
 
-		c.drawPath(path, mPen);
+		c.save();
+		c.translate(t.offset_x, t.offset_y);
+		c.scale(t.scale, t.scale);
+		c.drawPath(path, ink.line);
+		c.restore();
 	}
 
 	/**
 	 * Cubic Bezier for variable-width curves
 	 * 
+	 * The outline of each level of detail is computed in page coordinates 
+	 * when the level is built, see Outline. The Path is created when the level 
+	 * is first drawn, and the page transformation is applied by the canvas.
+	 */
+	private void drawFountainpenWithCubicBezier(Canvas c, Transformation t, Detail d) {
+		Assert.assertTrue(tool == Tool.FOUNTAINPEN && d.N >= 3);
+		Path path;
+		synchronized (this) {
+			if (d.path == null) {
+				final Path outline = new Path();
+				d.outline.emit(d.position_x, d.position_y, d.pressure, getScaledPenThickness(1f), new OutlineSink() {
+					public void moveTo(float x, float y) {
+						outline.moveTo(x, y);
+					}
+					public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+						outline.cubicTo(x1, y1, x2, y2, x3, y3);
+					}
+					public void close() {
+						outline.close();
+					}
+				});
+				d.path = outline;
+			}
+			path = d.path;
+		}
+		// the Path is not modified any more, so it can be drawn outside of the lock
+		c.save();
+		c.translate(t.offset_x, t.offset_y);
+		c.scale(t.scale, t.scale);
+		c.drawPath(path, ink.fill);
+		c.restore();
+	}
+
+	@Override
+	protected void geometryChanged() {
+		super.geometryChanged();
+		synchronized (this) {
+			details = null;
+		}
+	}
+	
+	/**
+	 * Free the Paths and the coarser levels of detail. The stored points and
+	 * their outline are kept, the rest is built again when the stroke is
+	 * drawn the next time.
+	 */
+	protected synchronized void releaseDrawingCache() {
+		if (details == null)
+			return;
+		// no Path.reset(), another thread may still be drawing them
+		for (int level = 1; level <= DETAIL_LEVELS; level++)
+			details[level] = null;
+		details[0].path = null;
+	}
+
+	/**
+	 * Receives the outline of a fountain pen stroke, see Outline
+	 */
+	private interface OutlineSink {
+		public void moveTo(float x, float y);
+		public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3);
+		public void close();
+	}
+	
+	// regularizes the tangent of very short segments, in page units squared. This is 
+	// the former 0.0001 pixels squared at a scale of 1000 pixels per page height
+	private static final float NORM_EPSILON = 1e-10f;
+
+	/**
+	 * The outline of a fountain pen stroke in page coordinates
+	 * 
 	 * This works similar to drawPencilWithQuadraticBezier, midpoints are
 	 * start/stop point and the actual data point is used as control. Only now
 	 * we draw as a filled shape instead of a stroke along the Bezier path. The
 	 * start/end point are displaced in the normal direction. The data point is
 	 * translated in the two distinct normal directions, yielding two control
 	 * points for the cubic Bezier.
+	 * 
+	 * The + boundaries of all segments join up, as do the - boundaries. So a
+	 * piece of the stroke is one closed curve: Along the + boundary, around 
+	 * the end cap, back along the - boundary, and around the start cap.
+	 * 
+	 * Where the pen reverses direction the two boundaries would cross and the
+	 * retraced part would cancel out in the fill. So the stroke is cut into
+	 * separate pieces at such cusps, each piece is a closed curve with the 
+	 * same orientation. Their union is filled with the nonzero winding rule 
+	 * both on the screen and in the PDF.
+	 * 
+	 * Only the directions of the normals are stored, quantized to a byte.
+	 * The points and the pressure are those of the level of detail.
 	 */
-	private void drawFountainpenWithCubicBezier(Canvas c) {
-		Assert.assertTrue(tool == Tool.FOUNTAINPEN && N >= 3);
-		path.rewind();		
-		mPen.setStyle(Paint.Style.FILL);
+	private static class Outline {
+		// the first point of each piece, and the last point of the stroke
+		private final int[] pieces;
+		// x, y of the unit normals at the start of each piece and at the end of each 
+		// segment, times DIRECTION_SCALE
+		private final byte[] directions;
+		// where computeDirections() puts the next normal
+		private int next = 0;
+
+		private static final float DIRECTION_SCALE = 127f;
+
+		private Outline(float[] x, float[] y, int N) {
+			int cusps = 0;
+			for (int i = 1; i < N - 1; i++)
+				if (isCusp(x, y, i))
+					cusps++;
+			pieces = new int[cusps + 2];
+			int count = 0;
+			int n = 0;
+			for (int i = 1; i < N - 1; i++)
+				if (isCusp(x, y, i)) {
+					count += Math.max(2, i - pieces[n]);
+					pieces[++n] = i;
+				}
+			count += Math.max(2, N - 1 - pieces[n]);
+			pieces[++n] = N - 1;
+			directions = new byte[2 * count];
+			for (int k = 0; k + 1 < pieces.length; k++)
+				computeDirections(x, y, pieces[k], pieces[k + 1]);
+		}
 		
-		//Paint paint = new Paint();
-		//paint.setARGB(0xff, 0xff, 0x0, 0x0);
-		//paint.setStrokeWidth(0);
-//		mPen.setStyle(Paint.Style.STROKE);
+		// whether the pen reverses its direction at point i
+		private static boolean isCusp(float[] x, float[] y, int i) {
+			return (x[i] - x[i - 1]) * (x[i + 1] - x[i]) + (y[i] - y[i - 1]) * (y[i + 1] - y[i]) < 0;
+		}
 		
-		final float scaled_pen_thickness = getScaledPenThickness();
-		float x0, x1, x2, x3, y0, y1, y2, y3, p0, p1, p2, p3;
-		float vx01, vy01, vx21, vy21;  // unit tangent vectors 0->1 and 1<-2
-		float norm;
-		float n_x0, n_y0, n_x2, n_y2; // the normals 
+		private void putDirection(float dx, float dy) {
+			float norm = FloatMath.sqrt(dx*dx + dy*dy + NORM_EPSILON);
+			directions[next++] = (byte) Math.round( dy / norm * DIRECTION_SCALE);
+			directions[next++] = (byte) Math.round(-dx / norm * DIRECTION_SCALE);
+		}
 		
-		// the first actual point is treated as a midpoint
-		x0 = position_x[0] * scale + offset_x + 0.1f;
-		y0 = position_y[0] * scale + offset_y;
-		p0 = pressure[0];
-
-		x1 = position_x[1] * scale + offset_x + 0.1f;
-		y1 = position_y[1] * scale + offset_y;
-		p1 = pressure[1];
-		vx01 = x1 - x0;
-		vy01 = y1 - y0;
-		// instead of dividing tangent/norm by two, we multiply norm by 2
-		norm = FloatMath.sqrt(vx01*vx01 + vy01*vy01 + 0.0001f) * 2f;
-		vx01 = vx01 / norm * scaled_pen_thickness * p0;  
-		vy01 = vy01 / norm * scaled_pen_thickness * p0;
-		n_x0 =  vy01;
-		n_y0 = -vx01;
-		for (int i = 2; i < N-1; i++) {
-			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i] * scale + offset_x;
-			y3 = position_y[i] * scale + offset_y;
-			p3 = pressure[i];
-			x2 = (x1+x3)/2f;
-			y2 = (y1+y3)/2f;
-			p2 = (p1+p3)/2f;
-			vx21 = x1 - x2;
-			vy21 = y1 - y2;
-			norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0001f) * 2f;
-			vx21 = vx21 / norm * scaled_pen_thickness * p2;  
-			vy21 = vy21 / norm * scaled_pen_thickness * p2;
-			n_x2 = -vy21;
-			n_y2 =  vx21;
-
-			path.rewind();
-			path.moveTo (x0 + n_x0, y0 + n_y0);
-			// The + boundary of the stroke
-			path.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
-			// round out the cap
-			path.cubicTo(x2 + n_x2 - vx21, y2 + n_y2 - vy21, x2 - n_x2 - vx21, y2 - n_y2 - vy21, x2 - n_x2, y2 - n_y2);
-			// THe - boundary of the stroke
-			path.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
-			// round out the other cap
-			path.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
-			c.drawPath(path, mPen);
-
-			x0 = x2;   y0 = y2;  p0 = p2;
-			x1 = x3;   y1 = y3;  p1 = p3;
-			vx01 = -vx21;  vy01 = -vy21;
-			n_x0 = n_x2;   n_y0 = n_y2;
+		private void computeDirections(float[] x, float[] y, int a, int b) {
+			if (b - a == 1) {
+				float dx = x[b] - x[a], dy = y[b] - y[a];
+				putDirection(dx, dy);
+				putDirection(dx, dy);
+				return;
+			}
+			putDirection(x[a + 1] - x[a], y[a + 1] - y[a]);
+			for (int i = a + 1; i < b; i++) {
+				// the segment ends at the next midpoint, or the last point of the piece
+				float x2, y2;
+				if (i + 1 < b) {
+					x2 = (x[i] + x[i + 1]) / 2f;
+					y2 = (y[i] + y[i + 1]) / 2f;
+				} else {
+					x2 = x[b];
+					y2 = y[b];
+				}
+				putDirection(x2 - x[i], y2 - y[i]);
+			}
+		}
+		
+		private static int putNormal(float[] n, byte[] directions, int pos, float width) {
+			// half the width on either side
+			float scale = width / (2f * DIRECTION_SCALE);
+			n[pos] = directions[pos] * scale;
+			n[pos + 1] = directions[pos + 1] * scale;
+			return pos + 2;
 		}
+		
+		/**
+		 * The normals in the same order as the directions, scaled to half the
+		 * width of the stroke at the pressure of their point
+		 */
+		private float[] computeNormals(float[] p, float thickness) {
+			float[] n = new float[directions.length];
+			int pos = 0;
+			for (int k = 0; k + 1 < pieces.length; k++) {
+				int a = pieces[k], b = pieces[k + 1];
+				pos = putNormal(n, directions, pos, thickness * p[a]);
+				if (b - a == 1) {
+					pos = putNormal(n, directions, pos, thickness * p[b]);
+					continue;
+				}
+				for (int i = a + 1; i < b; i++) {
+					float p2 = (i + 1 < b) ? (p[i] + p[i + 1]) / 2f : p[b];
+					pos = putNormal(n, directions, pos, thickness * p2);
+				}
+			}
+			return n;
+		}
+		
+		/**
+		 * Send the outline to the sink
+		 * @param x The x coordinates of the points the outline was computed for
+		 * @param y The y coordinates of the points the outline was computed for
+		 * @param p The pressure at the points
+		 * @param thickness The stroke width at full pressure
+		 */
+		private void emit(float[] x, float[] y, float[] p, float thickness, OutlineSink sink) {
+			float[] n = computeNormals(p, thickness);
+			int pos = 0;
+			for (int k = 0; k + 1 < pieces.length; k++)
+				pos = emitPiece(x, y, n, pieces[k], pieces[k + 1], pos, sink);
+		}
+		
+		private static int emitPiece(float[] x, float[] y, float[] n, int a, int b, int pos, OutlineSink sink) {
+			final int last = pos + 2 * Math.max(1, b - a - 1);
+			float nx, ny;
+			
+			// The + boundary of the piece
+			sink.moveTo(x[a] + n[pos], y[a] + n[pos + 1]);
+			if (b - a == 1) 
+				sink.cubicTo(x[a] + n[pos], y[a] + n[pos + 1], x[b] + n[last], y[b] + n[last + 1], 
+						x[b] + n[last], y[b] + n[last + 1]);
+			for (int i = a + 1; i < b; i++) {
+				int k = pos + 2 * (i - a - 1);
+				float x2 = (i + 1 < b) ? (x[i] + x[i + 1]) / 2f : x[b];
+				float y2 = (i + 1 < b) ? (y[i] + y[i + 1]) / 2f : y[b];
+				sink.cubicTo(x[i] + n[k], y[i] + n[k + 1], x[i] + n[k + 2], y[i] + n[k + 3], 
+						x2 + n[k + 2], y2 + n[k + 3]);
+			}
+			// round out the end cap
+			nx = n[last];
+			ny = n[last + 1];
+			sink.cubicTo(x[b] + nx - ny, y[b] + ny + nx, x[b] - nx - ny, y[b] - ny + nx, x[b] - nx, y[b] - ny);
+			// The - boundary of the piece
+			if (b - a == 1)
+				sink.cubicTo(x[b] - n[last], y[b] - n[last + 1], x[a] - n[pos], y[a] - n[pos + 1], 
+						x[a] - n[pos], y[a] - n[pos + 1]);
+			for (int i = b - 1; i > a; i--) {
+				int k = pos + 2 * (i - a - 1);
+				float x0 = (i - 1 > a) ? (x[i - 1] + x[i]) / 2f : x[a];
+				float y0 = (i - 1 > a) ? (y[i - 1] + y[i]) / 2f : y[a];
+				sink.cubicTo(x[i] - n[k + 2], y[i] - n[k + 3], x[i] - n[k], y[i] - n[k + 1], 
+						x0 - n[k], y0 - n[k + 1]);
+			}
+			// round out the start cap
+			nx = n[pos];
+			ny = n[pos + 1];
+			sink.cubicTo(x[a] - nx + ny, y[a] - ny - nx, x[a] + nx + ny, y[a] + ny - nx, x[a] + nx, y[a] + ny);
+			sink.close();
+			return last + 2;
+		}
+	}
 
-		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1] * scale + offset_x;
-		y2 = position_y[N-1] * scale + offset_y;
-		p2 = pressure[N-1];
-		vx21 = x1 - x2;
-		vy21 = y1 - y2;
-		norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0001f) * 2f;
-		vx21 = vx21 / norm * scaled_pen_thickness * p2;  
-		vy21 = vy21 / norm * scaled_pen_thickness * p2;
-		n_x2 = -vy21;
-		n_y2 =  vx21;
+	// fixed-point resolution of the v3 stroke format, in units per page height. Half
+	// a unit is less than a third of the simplification tolerance EPSILON
+	private static final float FIXED_POINT_SCALE = 1 << 13;
 
-		path.rewind();
-		path.moveTo(x0 + n_x0, y0 + n_y0);
-		path.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
-		path.cubicTo(x2 + n_x2 - vx21, y2 + n_y2 - vy21, x2 - n_x2 - vx21, y2 - n_y2 - vy21, x2 - n_x2, y2 - n_y2);
-		path.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
-		path.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
-		c.drawPath(path, mPen);
-	}
+	// the point data of the v3 stroke format is deflated if larger than that
+	private static final int DEFLATE_THRESHOLD = 256;
+
+	private static final int ENCODING_PLAIN = 0;
+	private static final int ENCODING_DEFLATE = 1;
 
+	/**
+	 * Scratch space for writing strokes. Use one encoder for all strokes of a
+	 * page and call {@link #end()} when done, this frees the native memory of
+	 * the deflater.
+	 */
+	public static class Encoder {
+		private byte[] data = new byte[0];
+		private byte[] compressed = new byte[0];
+		private Deflater deflater = null;
+		
+		private byte[] getData(int size) {
+			if (data.length < size)
+				data = new byte[Math.max(size, 2 * data.length)];
+			return data;
+		}
+		
+		private byte[] getCompressed(int size) {
+			if (compressed.length < size)
+				compressed = new byte[Math.max(size, 2 * compressed.length)];
+			return compressed;
+		}
+		
+		private Deflater getDeflater() {
+			if (deflater == null)
+				// raw deflate, the stroke header already has the lengths
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			else
+				deflater.reset();
+			return deflater;
+		}
+		
+		public void end() {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+	}
+	
 	public void writeToStream(DataOutputStream out) throws IOException {
-		out.writeInt(2); // protocol #1
+		Encoder encoder = new Encoder();
+		try {
+			writeToStream(out, encoder);
+		} finally {
+			encoder.end();
+		}
+	}
+
+	/**
+	 * Write the stroke in the v3 format. After the version and the color, the
+	 * header fields and lengths are unsigned varints.
+	 * @param out
+	 * @param encoder The scratch space, can be shared by consecutive calls
+	 */
+	public void writeToStream(DataOutputStream out, Encoder encoder) throws IOException {
+		out.writeInt(3); // protocol version number
 		out.writeInt(pen_color);
-		out.writeInt(pen_thickness);
-		out.writeInt(tool.ordinal());
-		out.writeInt(N);
+		writeUnsignedVarInt(out, pen_thickness);
+		writeUnsignedVarInt(out, tool.ordinal());
+		writeUnsignedVarInt(out, N);
+		// at most 5 bytes per varint plus one byte for the pressure
+		byte[] data = encoder.getData(11 * N);
+		int length = encodePoints(data);
+		if (length > DEFLATE_THRESHOLD) {
+			Deflater deflater = encoder.getDeflater();
+			byte[] compressed = encoder.getCompressed(length);
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int compressedLength = deflater.deflate(compressed, 0, length);
+			if (deflater.finished() && compressedLength < length) {
+				out.writeByte(ENCODING_DEFLATE);
+				writeUnsignedVarInt(out, length);
+				writeUnsignedVarInt(out, compressedLength);
+				out.write(compressed, 0, compressedLength);
+				return;
+			}
+		}
+		out.writeByte(ENCODING_PLAIN);
+		writeUnsignedVarInt(out, length);
+		out.write(data, 0, length);
+	}
+
+	private static void writeUnsignedVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readUnsignedVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Corrupt stroke header.");
+	}
+
+	/**
+	 * Encode the points for the v3 stroke format. The coordinates are written
+	 * as differences to the previous point in fixed-point page units, 
+	 * zig-zag and varint encoded. The pressure follows as one byte per point.
+	 * @param data The output buffer, must hold at least 11*N bytes
+	 * @return The number of bytes used
+	 */
+	private int encodePoints(byte[] data) {
+		int pos = 0;
+		int x0 = 0, y0 = 0;
+		for (int i = 0; i < N; i++) {
+			int x = Math.round(position_x[i] * FIXED_POINT_SCALE);
+			int y = Math.round(position_y[i] * FIXED_POINT_SCALE);
+			pos = writeVarInt(data, pos, x - x0);
+			pos = writeVarInt(data, pos, y - y0);
+			x0 = x;
+			y0 = y;
+		}
 		for (int i = 0; i < N; i++) {
-			out.writeFloat(position_x[i]);
-			out.writeFloat(position_y[i]);
-			out.writeFloat(pressure[i]);
+			float p = Math.max(0f, Math.min(1f, pressure[i]));
+			data[pos++] = (byte) Math.round(p * 0xff);
 		}
+		return pos;
+	}
+	
+	private static int writeVarInt(byte[] data, int pos, int value) {
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7f) != 0) {
+			data[pos++] = (byte) ((zigzag & 0x7f) | 0x80);
+			zigzag >>>= 7;
+		}
+		data[pos++] = (byte) zigzag;
+		return pos;
 	}
 
+	/**
+	 * Decode the points of the v3 stroke format, see encodePoints()
+	 */
+	private void decodePoints(byte[] data, int length) throws IOException {
+		int pos = 0;
+		int x = 0, y = 0;
+		try {
+			for (int i = 0; i < N; i++) {
+				int value = 0, shift = 0, b;
+				do {
+					b = data[pos++];
+					value |= (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				x += (value >>> 1) ^ -(value & 1);
+				value = 0; shift = 0;
+				do {
+					b = data[pos++];
+					value |= (b & 0x7f) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				y += (value >>> 1) ^ -(value & 1);
+				position_x[i] = x / FIXED_POINT_SCALE;
+				position_y[i] = y / FIXED_POINT_SCALE;
+			}
+			for (int i = 0; i < N; i++)
+				pressure[i] = (data[pos++] & 0xff) / (float) 0xff;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated stroke data.");
+		}
+		if (pos != length)
+			throw new IOException("Corrupt stroke data.");
+	}
+	
 	public Stroke(DataInputStream in) throws IOException {
 		super(Tool.FOUNTAINPEN);
 		int version = in.readInt();
-		if (version < 1 || version > 2)
+		if (version < 1 || version > 3)
 			throw new IOException("Unknown stroke version!");
 		pen_color = in.readInt();
-		pen_thickness = in.readInt();
-		int toolInt = in.readInt();
+		int toolInt;
+		if (version >= 3) {
+			pen_thickness = readUnsignedVarInt(in);
+			toolInt = readUnsignedVarInt(in);
+		} else {
+			pen_thickness = in.readInt();
+			toolInt = in.readInt();
+		}
 		if (toolInt < 0 || toolInt >= Tool.values().length)
 			throw new IOException("Tool ID out of bounds.");
 		tool = Tool.values()[toolInt];
 		setPen(pen_thickness, pen_color);
-		N = in.readInt();
+		N = (version >= 3) ? readUnsignedVarInt(in) : in.readInt();
+		if (N < 0)
+			throw new IOException("Invalid number of points.");
 		position_x = new float[N];
 		position_y = new float[N];
 		pressure = new float[N];
+		if (version >= 3) {
+			readPoints(in);
+			prepareDrawingCache();
+			return;
+		}
 		for (int i = 0; i < N; i++) {
 			position_x[i] = in.readFloat();
 			position_y[i] = in.readFloat();
@@ -444,6 +950,37 @@ public class Stroke extends Graphics {
 			pen_thickness *= 2;
 			simplify();
 		}
+		prepareDrawingCache();
+	}
+	
+	private void readPoints(DataInputStream in) throws IOException {
+		int encoding = in.readByte();
+		int length = readUnsignedVarInt(in);
+		if (length < 0 || length > 11L * N)
+			throw new IOException("Invalid stroke data length.");
+		byte[] data = new byte[length];
+		if (encoding == ENCODING_PLAIN)
+			in.readFully(data);
+		else if (encoding == ENCODING_DEFLATE) {
+			int compressedLength = readUnsignedVarInt(in);
+			if (compressedLength < 0 || compressedLength > length)
+				throw new IOException("Invalid stroke data length.");
+			// with an extra zero byte, which the raw inflater may need as input
+			byte[] compressed = new byte[compressedLength + 1];
+			in.readFully(compressed, 0, compressedLength);
+			Inflater inflater = new Inflater(true);
+			inflater.setInput(compressed);
+			try {
+				if (inflater.inflate(data) != length)
+					throw new IOException("Truncated stroke data.");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt stroke data.");
+			} finally {
+				inflater.end();
+			}
+		} else
+			throw new IOException("Unknown stroke encoding.");
+		decodePoints(data, length);
 	}
 
 	/**
@@ -454,6 +991,7 @@ public class Stroke extends Graphics {
 		filter.apply(position_x);
 		filter.apply(position_y);
 		filter.apply(pressure);
+		geometryChanged();
 	}
 
 	/**
@@ -536,20 +1074,17 @@ public class Stroke extends Graphics {
 	// for example, using apply_inverse_transform
 	// non-standard metric for "perpendicular distance" for numerical stability
 	private void simplify() {
-		// points.add(0);
-		// points.add(N-1);
-		// ListIterator<Integer> point_iter = points.listIterator(1);
-		// simplifyRecursion(0, N-1, point_iter);
-		LinkedList<Integer> points = simplifyWithoutRecursion();
-
-		int new_N = points.size();
+		SimplifyScratch scratch = simplifyScratch.get();
+		if (scratch.keep.length < N)
+			scratch.keep = new boolean[Math.max(N, 2 * scratch.keep.length)];
+		boolean[] keep = scratch.keep;
+		int new_N = simplify(position_x, position_y, pressure, tool, 0, N - 1, keep, EPSILON);
 		float[] new_position_x = new float[new_N];
 		float[] new_position_y = new float[new_N];
 		float[] new_pressure = new float[new_N];
 		int n = 0;
-		ListIterator<Integer> point_iter = points.listIterator();
-		while (point_iter.hasNext()) {
-			int p = point_iter.next();
+		for (int p = 0; p < N; p++) {
+			if (!keep[p]) continue;
 			new_position_x[n] = position_x[p];
 			new_position_y[n] = position_y[p];
 			new_pressure[n] = pressure[p];
@@ -560,11 +1095,13 @@ public class Stroke extends Graphics {
 		position_x = new_position_x;
 		position_y = new_position_y;
 		pressure = new_pressure;
+		geometryChanged();
 	}
 
 	// find the mid point with the largest deviation from a straight line
-	// return -1 if there is none up to the desired precision EPSILON
-	private Integer simplifyFindMidPoint(Integer point0, Integer point1) {
+	// return -1 if there is none up to the desired precision epsilon
+	private static int simplifyFindMidPoint(float[] position_x, float[] position_y, float[] pressure, 
+			Tool tool, int point0, int point1, float epsilon) {
 		float x0 = position_x[point0];
 		float y0 = position_y[point0];
 		float p0 = pressure[point0];
@@ -616,7 +1153,7 @@ public class Stroke extends Graphics {
 			distance = Math.max(distance, distance_p1 - distance_01);
 
 			// perpendicular distance
-			if (distance_01 > EPSILON) {
+			if (distance_01 > epsilon) {
 				float d = Math.abs(a * x + b * y + c) / normal_abs;
 				distance = Math.max(distance, d);
 			}
@@ -626,31 +1163,66 @@ public class Stroke extends Graphics {
 				mid = i;
 			}
 		}
-		if (distance_max < EPSILON || mid == -1)
-			return null;
+		if (distance_max < epsilon)
+			return -1;
 		return mid;
 	}
 
-	// Implement Ramer-Douglas-Peucker without recursion since stack space is
-	// very limited
-	private LinkedList<Integer> simplifyWithoutRecursion() {
-		LinkedList<Integer> simplified_points = new LinkedList<Integer>();
-		simplified_points.add(0);
-		LinkedList<Integer> endpoint = new LinkedList<Integer>();
-		endpoint.addLast(N - 1);
-		Integer point0 = 0;
-		while (!endpoint.isEmpty()) {
-			Integer point1 = endpoint.getLast();
-			Integer mid = simplifyFindMidPoint(point0, point1);
+	/**
+	 * Scratch space for simplify(), re-used for all strokes simplified on the same thread 
+	 */
+	private static class SimplifyScratch {
+		private int[] endpoint = new int[64];
+		private boolean[] keep = new boolean[256];
+	}
+	
+	private static final ThreadLocal<SimplifyScratch> simplifyScratch = 
+			new ThreadLocal<SimplifyScratch>() {
+		@Override
+		protected SimplifyScratch initialValue() {
+			return new SimplifyScratch();
+		}
+	};
+
+	/**
+	 * Simplify the points in the range [from, to] of the given arrays. Marks the 
+	 * points to keep in keep[], including both endpoints. All removed points are
+	 * within epsilon of the simplified stroke.
+	 * 
+	 * Implements Ramer-Douglas-Peucker without recursion since stack space is
+	 * very limited.
+	 * @return The number of points kept
+	 */
+	protected static int simplify(float[] position_x, float[] position_y, float[] pressure, Tool tool, 
+			int from, int to, boolean[] keep, float epsilon) {
+		SimplifyScratch scratch = simplifyScratch.get();
+		Arrays.fill(keep, from, to + 1, false);
+		int[] endpoint = scratch.endpoint;
+		int top = 0;
+		keep[from] = true;
+		int count = 1;
+		if (to == from)
+			return count;
+		endpoint[top++] = to;
+		int point0 = from;
+		while (top > 0) {
+			int point1 = endpoint[top - 1];
+			int mid = simplifyFindMidPoint(position_x, position_y, pressure, tool, point0, point1, epsilon);
 			// Log.d(TAG, "Simplify "+point0+" - "+point1+" contains "+mid);
-			if (mid == null) {
-				simplified_points.add(point1);
+			if (mid == -1) {
+				keep[point1] = true;
+				count++;
 				point0 = point1;
-				endpoint.removeLast();
-			} else
-				endpoint.addLast(mid);
+				top--;
+			} else {
+				if (top == endpoint.length) {
+					endpoint = Arrays.copyOf(endpoint, 2 * top);
+					scratch.endpoint = endpoint;
+				}
+				endpoint[top++] = mid;
+			}
 		}
-		return simplified_points;
+		return count;
 	}
 
 	public void render(Artist artist) {
@@ -739,81 +1311,21 @@ public class Stroke extends Graphics {
 		artist.stroke();
 	}
 
-	private void renderFountainpenWithCubicBezier(Artist artist, FillStyle fill) {
-		float scaled_pen_thickness = getScaledPenThickness(1f);
+	private void renderFountainpenWithCubicBezier(final Artist artist, FillStyle fill) {
 		artist.setFillStyle(fill);
-		
-		float x0, x1, x2, x3, y0, y1, y2, y3, p0, p1, p2, p3;
-		float vx01, vy01, vx21, vy21;  // unit tangent vectors 0->1 and 1<-2
-		float norm;
-		float n_x0, n_y0, n_x2, n_y2; // the normals 
-		
-		// the first actual point is treated as a midpoint
-		x0 = position_x[0];
-		y0 = position_y[0];
-		p0 = pressure[0];
-
-		x1 = position_x[1];
-		y1 = position_y[1];
-		p1 = pressure[1];
-		vx01 = x1 - x0;
-		vy01 = y1 - y0;
-		// instead of dividing tangent/norm by two, we multiply norm by 2
-		norm = FloatMath.sqrt(vx01*vx01 + vy01*vy01 + 0.0000001f) * 2f;
-		vx01 = vx01 / norm * scaled_pen_thickness * p0;  
-		vy01 = vy01 / norm * scaled_pen_thickness * p0;
-		n_x0 =  vy01;
-		n_y0 = -vx01;
-		for (int i = 2; i < N-1; i++) {
-			// (x0,y0) and (x2,y2) are midpoints, (x1,y1) and (x3,y3) are actual points 
-			x3 = position_x[i];
-			y3 = position_y[i];
-			p3 = pressure[i];
-			x2 = (x1+x3)/2f;
-			y2 = (y1+y3)/2f;
-			p2 = (p1+p3)/2f;
-			vx21 = x1 - x2;
-			vy21 = y1 - y2;
-			norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0000001f) * 2f;
-			vx21 = vx21 / norm * scaled_pen_thickness * p2;  
-			vy21 = vy21 / norm * scaled_pen_thickness * p2;
-			n_x2 = -vy21;
-			n_y2 =  vx21;
-
-			artist.moveTo (x0 + n_x0, y0 + n_y0);
-			// The + boundary of the stroke
-			artist.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
-			// round out the cap
-			artist.cubicTo(x2 + n_x2 - vx21, y2 + n_y2 - vy21, x2 - n_x2 - vx21, y2 - n_y2 - vy21, x2 - n_x2, y2 - n_y2);
-			// THe - boundary of the stroke
-			artist.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
-			// round out the other cap
-			artist.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
-			artist.fill();
-
-			x0 = x2;   y0 = y2;  p0 = p2;
-			x1 = x3;   y1 = y3;  p1 = p3;
-			vx01 = -vx21;  vy01 = -vy21;
-			n_x0 = n_x2;   n_y0 = n_y2;
-		}
-
-		// the last actual point is treated as a midpoint
-		x2 = position_x[N-1];
-		y2 = position_y[N-1];
-		p2 = pressure[N-1];
-		vx21 = x1 - x2;
-		vy21 = y1 - y2;
-		norm = FloatMath.sqrt(vx21*vx21 + vy21*vy21 + 0.0000001f) * 2f;
-		vx21 = vx21 / norm * scaled_pen_thickness * p2;  
-		vy21 = vy21 / norm * scaled_pen_thickness * p2;
-		n_x2 = -vy21;
-		n_y2 =  vx21;
-
-		artist.moveTo(x0 + n_x0, y0 + n_y0);
-		artist.cubicTo(x1 + n_x0, y1 + n_y0, x1 + n_x2, y1 + n_y2, x2 + n_x2, y2 + n_y2);
-		artist.cubicTo(x2 + n_x2 - vx21, y2 + n_y2 - vy21, x2 - n_x2 - vx21, y2 - n_y2 - vy21, x2 - n_x2, y2 - n_y2);
-		artist.cubicTo(x1 - n_x2, y1 - n_y2, x1 - n_x0, y1 - n_y0, x0 - n_x0, y0 - n_y0);
-		artist.cubicTo(x0 - n_x0 - vx01, y0 - n_y0 - vy01, x0 + n_x0 - vx01, y0 + n_y0 - vy01, x0 + n_x0, y0 + n_y0);
+		// the same outline as on the screen
+		Detail d = prepareDrawingCache();
+		d.outline.emit(d.position_x, d.position_y, d.pressure, getScaledPenThickness(1f), new OutlineSink() {
+			public void moveTo(float x, float y) {
+				artist.moveTo(x, y);
+			}
+			public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+				artist.cubicTo(x1, y1, x2, y2, x3, y3);
+			}
+			public void close() {
+				// fill() closes all pieces
+			}
+		});
 		artist.fill();
 	}
 	
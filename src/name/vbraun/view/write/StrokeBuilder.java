@@ -0,0 +1,219 @@
+package name.vbraun.view.write;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+/**
+ * Build a Stroke incrementally while the pen is moving
+ *
+ * The batch path Stroke.fromInput() smoothens and simplifies all points when
+ * the pen is lifted. Here, every point is smoothed as soon as the filter window
+ * around it is complete. The simplification runs on chunks of the smoothed
+ * points, so only the last chunk remains to be done when the stroke is
+ * finished.
+ *
+ * The smoothed points are identical to the batch path. The simplification keeps
+ * the chunk boundaries, otherwise all removed points are within the same
+ * tolerance of the simplified stroke.
+ *
+ * There is no limit on the number of points. The buffers grow as needed and
+ * are kept for the next stroke, so the builder should be re-used. 
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeBuilder {
+	@SuppressWarnings("unused")
+	private static final String TAG = "StrokeBuilder";
+
+	// number of smoothed points that are simplified together
+	private static final int CHUNK = 128;
+
+	// initial buffer size, in points
+	private static final int CAPACITY = 1024;
+	
+	// buffers that grew larger than that are released after the stroke
+	private static final int MAX_RETAINED_CAPACITY = 16 * CAPACITY;
+
+	private Tool tool;
+	private int penThickness;
+	private int penColor;
+	private final Transformation transform = new Transformation();
+	private LinearFilter filter;
+
+	// the raw input in page coordinates
+	private int N = 0;
+	private float[] raw_x, raw_y, raw_p;
+
+	// the smoothed points, final for indices < settled
+	private float[] position_x, position_y, pressure;
+	private int settled = 0;
+
+	// the simplified points, up to and including the smoothed point with index anchor
+	private int simplifiedN = 0;
+	private float[] simplified_x, simplified_y, simplified_p;
+	private int anchor = 0;
+	private boolean[] keep;
+
+	public StrokeBuilder() {
+		allocate();
+	}
+	
+	private void allocate() {
+		raw_x = new float[CAPACITY];
+		raw_y = new float[CAPACITY];
+		raw_p = new float[CAPACITY];
+		position_x = new float[CAPACITY];
+		position_y = new float[CAPACITY];
+		pressure = new float[CAPACITY];
+		simplified_x = new float[CAPACITY / 4];
+		simplified_y = new float[CAPACITY / 4];
+		simplified_p = new float[CAPACITY / 4];
+		keep = new boolean[CAPACITY];
+	}
+
+	/**
+	 * Start a new stroke
+	 *
+	 * @param transform
+	 *            The page transformation, the input is in screen coordinates
+	 */
+	public void start(Tool tool, int penThickness, int penColor, Transformation transform,
+			LinearFilter.Filter filter) {
+		this.tool = tool;
+		this.penThickness = penThickness;
+		this.penColor = penColor;
+		this.transform.set(transform);
+		this.filter = LinearFilter.get(filter);
+		reset();
+	}
+
+	/**
+	 * Discard all points, but keep the pen settings
+	 */
+	public void reset() {
+		if (raw_x.length > MAX_RETAINED_CAPACITY)
+			allocate();
+		N = 0;
+		settled = 0;
+		simplifiedN = 0;
+		anchor = 0;
+	}
+
+	/**
+	 * The number of input points
+	 */
+	public int size() {
+		return N;
+	}
+
+	/**
+	 * Add a point
+	 *
+	 * @param x
+	 *            The x coordinate (screen coordinates)
+	 * @param y
+	 *            The y coordinate (screen coordinates)
+	 * @param p
+	 *            The pressure (normalized 0..1)
+	 */
+	public void add(float x, float y, float p) {
+		if (N == raw_x.length)
+			growRaw();
+		// same arithmetic as Stroke.applyInverseTransform()
+		raw_x[N] = position_x[N] = (x - transform.offset_x) / transform.scale;
+		raw_y[N] = position_y[N] = (y - transform.offset_y) / transform.scale;
+		raw_p[N] = pressure[N] = p;
+		N++;
+		smoothSettled();
+		if (settled - anchor > CHUNK)
+			simplifyUpTo(settled - 1);
+	}
+
+	/**
+	 * Finish the stroke. Afterwards, the builder is empty and can be used for
+	 * the next stroke with the same pen.
+	 *
+	 * @return The new Stroke or null if there are no points
+	 */
+	public Stroke finish() {
+		if (N == 0)
+			return null;
+		if (N == 1) { // need two points to draw a connecting line
+			// (the buffer always has room for at least two points)
+			raw_x[1] = position_x[1] = raw_x[0];
+			raw_y[1] = position_y[1] = raw_y[0];
+			raw_p[1] = pressure[1] = raw_p[0];
+			N = 2;
+		}
+		filter.apply(raw_x, position_x, N, settled, N);
+		filter.apply(raw_y, position_y, N, settled, N);
+		filter.apply(raw_p, pressure, N, settled, N);
+		settled = N;
+		simplifyUpTo(N - 1);
+		Stroke s = Stroke.fromSimplified(tool, penThickness, penColor, transform,
+				simplified_x, simplified_y, simplified_p, simplifiedN);
+		reset();
+		return s;
+	}
+
+	/**
+	 * Smooth all points whose filter window is complete. The boundary of the
+	 * stroke is treated differently by the filter, so we can only start once
+	 * the stroke is long enough that the final result is an interior point.
+	 */
+	private void smoothSettled() {
+		final int length = filter.getLength();
+		if (N < 2 * length)
+			return;
+		if (settled == 0)
+			settled = length - 1; // the filter does not change the first points
+		final int end = N - length;
+		if (end <= settled)
+			return;
+		filter.applyInterior(raw_x, position_x, settled, end);
+		filter.applyInterior(raw_y, position_y, settled, end);
+		filter.applyInterior(raw_p, pressure, settled, end);
+		settled = end;
+	}
+
+	/**
+	 * Simplify the smoothed points from the anchor up to and including last
+	 */
+	private void simplifyUpTo(int last) {
+		Assert.assertTrue(last < settled);
+		if (keep.length < last + 1)
+			keep = new boolean[Math.max(last + 1, 2 * keep.length)];
+		int n = Stroke.simplify(position_x, position_y, pressure, tool, anchor, last, keep, Stroke.EPSILON);
+		if (simplifiedN + n > simplified_x.length) {
+			int capacity = Math.max(simplifiedN + n, 2 * simplified_x.length);
+			simplified_x = Arrays.copyOf(simplified_x, capacity);
+			simplified_y = Arrays.copyOf(simplified_y, capacity);
+			simplified_p = Arrays.copyOf(simplified_p, capacity);
+		}
+		// the anchor is already there, unless this is the first chunk
+		int first = (simplifiedN == 0) ? anchor : anchor + 1;
+		for (int i = first; i <= last; i++) {
+			if (!keep[i])
+				continue;
+			simplified_x[simplifiedN] = position_x[i];
+			simplified_y[simplifiedN] = position_y[i];
+			simplified_p[simplifiedN] = pressure[i];
+			simplifiedN++;
+		}
+		anchor = last;
+	}
+
+	private void growRaw() {
+		int capacity = 2 * raw_x.length;
+		raw_x = Arrays.copyOf(raw_x, capacity);
+		raw_y = Arrays.copyOf(raw_y, capacity);
+		raw_p = Arrays.copyOf(raw_p, capacity);
+		position_x = Arrays.copyOf(position_x, capacity);
+		position_y = Arrays.copyOf(position_y, capacity);
+		pressure = Arrays.copyOf(pressure, capacity);
+	}
+}
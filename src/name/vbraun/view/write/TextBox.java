@@ -28,7 +28,7 @@ public class TextBox extends Graphics {
 	}
 
 	@Override
-	protected void computeBoundingBox() {
+	protected void computePageBoundingBox() {
 		// TODO Auto-generated method stub
 
 	}
@@ -46,7 +46,7 @@ public class TextBox extends Graphics {
 	}
 
 	@Override
-	public void draw(Canvas c, RectF bounding_box) {
+	public void draw(Canvas c, RectF bounding_box, Transformation t) {
 		if (textLayout == null) return;
 		c.save();
 		c.translate(10, 60);
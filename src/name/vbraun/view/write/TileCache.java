@@ -0,0 +1,411 @@
+package name.vbraun.view.write;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.os.Handler;
+
+/**
+ * Raster cache for the page on the screen
+ *
+ * The page, scaled by the current zoom level but without offset, is divided
+ * into square tiles of TILE_SIZE pixels. Tiles are keyed by (page UUID, scale,
+ * tile x, tile y), so panning only changes the position where the tiles are
+ * drawn and does not require re-rendering. Changes to the page content must be
+ * reported with one of the invalidate() methods, only the tiles touching the
+ * dirty rectangle are thrown away.
+ *
+ * Tiles that are visible but not cached are rendered right away, the ring of
+ * tiles around the visible area is rendered in the background by a small pool
+ * of worker threads. A background result is discarded if its tile was
+ * invalidated while it was rendered. The page is only locked while the
+ * graphics objects in a tile are looked up, they are drawn without the lock.
+ * So the workers do not block the UI thread while they rasterize.
+ *
+ * The cache itself must only be accessed from the UI thread. The least
+ * recently used tiles are evicted if the cache grows beyond its byte budget.
+ *
+ * @author vbraun
+ *
+ */
+public class TileCache {
+	@SuppressWarnings("unused")
+	private static final String TAG = "TileCache";
+
+	public static final int TILE_SIZE = 256;
+
+	// bytes per tile (RGB_565)
+	private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 2;
+
+	// number of evicted bitmaps that are kept for re-use
+	private static final int POOL_SIZE = 8;
+
+	// number of tiles around the visible area that are rendered in the background
+	private static final int PREFETCH_MARGIN = 1;
+
+	// number of background rendering threads, one core is left to the UI thread
+	private static final int WORKERS = 
+			Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+	private static class TileKey {
+		private final UUID uuid;
+		private final float scale;
+		private final int x, y;
+
+		private TileKey(UUID uuid, float scale, int x, int y) {
+			this.uuid = uuid;
+			this.scale = scale;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TileKey))
+				return false;
+			TileKey other = (TileKey) o;
+			return x == other.x && y == other.y && scale == other.scale
+					&& uuid.equals(other.uuid);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = uuid.hashCode();
+			hash = 31 * hash + Float.floatToIntBits(scale);
+			hash = 31 * hash + x;
+			hash = 31 * hash + y;
+			return hash;
+		}
+	}
+
+	private static class Tile {
+		private final Page page;
+		private final Bitmap bitmap;
+
+		private Tile(Page page, Bitmap bitmap) {
+			this.page = page;
+			this.bitmap = bitmap;
+		}
+	}
+
+	private final LinkedHashMap<TileKey, Tile> tiles =
+			new LinkedHashMap<TileKey, Tile>(64, 0.75f, true);
+	private final long budget;
+	private long bytes = 0;
+
+	private final ArrayList<Bitmap> pool = new ArrayList<Bitmap>();
+
+	/**
+	 * A tile that is rendered in the background
+	 */
+	private static class Pending {
+		private final Page page;
+		// set if the tile was invalidated, the result is discarded
+		private volatile boolean stale = false;
+
+		private Pending(Page page) {
+			this.page = page;
+		}
+	}
+
+	private final Handler handler = new Handler();
+	private ExecutorService workers = null;
+	private final HashMap<TileKey, Pending> pending = new HashMap<TileKey, Pending>();
+
+	private final Canvas tileCanvas = new Canvas();
+	private final RectF mRectF = new RectF();
+
+	/**
+	 * Construct a new tile cache. Must be called from the UI thread.
+	 *
+	 * @param budget
+	 *            The maximal size of all cached tiles in bytes
+	 */
+	public TileCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Draw the page to the canvas using the current page transformation.
+	 *
+	 * @param page
+	 *            The page to draw
+	 * @param canvas
+	 *            The canvas to draw on
+	 */
+	public void draw(Page page, Canvas canvas) {
+		Transformation t = page.getTransform();
+		int x0 = tileIndex(-t.offset_x);
+		int y0 = tileIndex(-t.offset_y);
+		int x1 = tileIndex(canvas.getWidth() - t.offset_x);
+		int y1 = tileIndex(canvas.getHeight() - t.offset_y);
+		drawTiles(page, canvas, x0, y0, x1, y1);
+		for (int j = y0 - PREFETCH_MARGIN; j <= y1 + PREFETCH_MARGIN; j++)
+			for (int i = x0 - PREFETCH_MARGIN; i <= x1 + PREFETCH_MARGIN; i++) {
+				if (i >= x0 && i <= x1 && j >= y0 && j <= y1)
+					continue;
+				TileKey key = new TileKey(page.getUUID(), t.scale, i, j);
+				if (get(key, page) == null)
+					schedule(page, key);
+			}
+	}
+
+	/**
+	 * Draw only the tiles that touch the given rectangle, for example after a
+	 * graphics object was added. Call invalidate() first, then only the tiles
+	 * touching the change are rendered again.
+	 *
+	 * @param page
+	 *            The page to draw
+	 * @param canvas
+	 *            The canvas to draw on
+	 * @param screenRect
+	 *            The rectangle in screen coordinates
+	 */
+	public void draw(Page page, Canvas canvas, RectF screenRect) {
+		Transformation t = page.getTransform();
+		int x0 = tileIndex(Math.max(screenRect.left, 0) - t.offset_x);
+		int y0 = tileIndex(Math.max(screenRect.top, 0) - t.offset_y);
+		int x1 = tileIndex(Math.min(screenRect.right, canvas.getWidth()) - t.offset_x);
+		int y1 = tileIndex(Math.min(screenRect.bottom, canvas.getHeight()) - t.offset_y);
+		drawTiles(page, canvas, x0, y0, x1, y1);
+	}
+
+	/**
+	 * Draw a block of tiles, rendering the missing ones on this thread
+	 */
+	private void drawTiles(Page page, Canvas canvas, int x0, int y0, int x1, int y1) {
+		Transformation t = page.getTransform();
+		for (int j = y0; j <= y1; j++)
+			for (int i = x0; i <= x1; i++) {
+				TileKey key = new TileKey(page.getUUID(), t.scale, i, j);
+				Tile tile = get(key, page);
+				if (tile == null) {
+					Bitmap bitmap = render(page, key, tileCanvas);
+					if (bitmap == null)
+						continue;
+					tile = new Tile(page, bitmap);
+					put(key, tile);
+				}
+				canvas.drawBitmap(tile.bitmap, i * TILE_SIZE + t.offset_x,
+						j * TILE_SIZE + t.offset_y, null);
+			}
+	}
+
+	/**
+	 * Throw away all tiles of the page that touch the given rectangle
+	 *
+	 * @param page
+	 *            The page whose content changed
+	 * @param pageRect
+	 *            The dirty rectangle in page coordinates
+	 */
+	public void invalidate(Page page, RectF pageRect) {
+		UUID uuid = page.getUUID();
+		Iterator<Map.Entry<TileKey, Tile>> iter = tiles.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<TileKey, Tile> entry = iter.next();
+			TileKey key = entry.getKey();
+			if (!key.uuid.equals(uuid) || !touches(key, pageRect))
+				continue;
+			iter.remove();
+			release(entry.getValue().bitmap);
+			bytes -= TILE_BYTES;
+		}
+		Iterator<Map.Entry<TileKey, Pending>> pendingIter = pending.entrySet().iterator();
+		while (pendingIter.hasNext()) {
+			Map.Entry<TileKey, Pending> entry = pendingIter.next();
+			TileKey key = entry.getKey();
+			if (!key.uuid.equals(uuid) || !touches(key, pageRect))
+				continue;
+			entry.getValue().stale = true;
+			pendingIter.remove();
+		}
+	}
+
+	/**
+	 * Whether the tile touches the rectangle
+	 * @param pageRect A rectangle in page coordinates
+	 */
+	private static boolean touches(TileKey key, RectF pageRect) {
+		// allow for anti-aliasing on either side
+		float left = pageRect.left * key.scale - 2;
+		float right = pageRect.right * key.scale + 2;
+		float top = pageRect.top * key.scale - 2;
+		float bottom = pageRect.bottom * key.scale + 2;
+		return !(right < key.x * TILE_SIZE || left > (key.x + 1) * TILE_SIZE
+				|| bottom < key.y * TILE_SIZE || top > (key.y + 1) * TILE_SIZE);
+	}
+
+	/**
+	 * Throw away all tiles of the page
+	 *
+	 * @param page
+	 *            The page whose content or appearance changed
+	 */
+	public void invalidate(Page page) {
+		UUID uuid = page.getUUID();
+		Iterator<Map.Entry<TileKey, Tile>> iter = tiles.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<TileKey, Tile> entry = iter.next();
+			if (!entry.getKey().uuid.equals(uuid))
+				continue;
+			iter.remove();
+			release(entry.getValue().bitmap);
+			bytes -= TILE_BYTES;
+		}
+		Iterator<Map.Entry<TileKey, Pending>> pendingIter = pending.entrySet().iterator();
+		while (pendingIter.hasNext()) {
+			Map.Entry<TileKey, Pending> entry = pendingIter.next();
+			if (!entry.getKey().uuid.equals(uuid))
+				continue;
+			entry.getValue().stale = true;
+			pendingIter.remove();
+		}
+	}
+
+	/**
+	 * Throw away all tiles and stop the background rendering
+	 */
+	public void clear() {
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+		for (Pending task : pending.values())
+			task.stale = true;
+		pending.clear();
+		for (Tile tile : tiles.values())
+			tile.bitmap.recycle();
+		tiles.clear();
+		bytes = 0;
+		synchronized (pool) {
+			for (Bitmap bitmap : pool)
+				bitmap.recycle();
+			pool.clear();
+		}
+	}
+
+	private static int tileIndex(float pixel) {
+		return (int) Math.floor(pixel / TILE_SIZE);
+	}
+
+	private Tile get(TileKey key, Page page) {
+		Tile tile = tiles.get(key);
+		if (tile == null)
+			return null;
+		if (tile.page != page) {
+			// a different instance of the page, for example after reloading the book
+			tiles.remove(key);
+			release(tile.bitmap);
+			bytes -= TILE_BYTES;
+			return null;
+		}
+		return tile;
+	}
+
+	private void put(TileKey key, Tile tile) {
+		Tile old = tiles.put(key, tile);
+		if (old != null)
+			release(old.bitmap);
+		else
+			bytes += TILE_BYTES;
+		Iterator<Tile> iter = tiles.values().iterator();
+		while (bytes > budget && iter.hasNext()) {
+			Tile eldest = iter.next();
+			iter.remove();
+			release(eldest.bitmap);
+			bytes -= TILE_BYTES;
+		}
+	}
+
+	/**
+	 * Return the bitmap of a tile that is no longer in the cache to the pool
+	 */
+	private void release(Bitmap bitmap) {
+		synchronized (pool) {
+			if (pool.size() < POOL_SIZE) {
+				pool.add(bitmap);
+				return;
+			}
+		}
+		bitmap.recycle();
+	}
+
+	private Bitmap obtain() {
+		synchronized (pool) {
+			if (!pool.isEmpty())
+				return pool.remove(pool.size() - 1);
+		}
+		return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+	}
+
+	/**
+	 * Render a single tile. May be called from any thread.
+	 *
+	 * @return The bitmap or null if the page zoom changed in the meantime
+	 */
+	private Bitmap render(Page page, TileKey key, Canvas c) {
+		float dx, dy;
+		Page.Visible visible;
+		synchronized (page) {
+			Transformation t = page.getTransform();
+			if (t.scale != key.scale)
+				return null;
+			dx = key.x * TILE_SIZE + t.offset_x;
+			dy = key.y * TILE_SIZE + t.offset_y;
+			RectF rect = (c == tileCanvas) ? mRectF : new RectF();
+			rect.set(dx, dy, dx + TILE_SIZE, dy + TILE_SIZE);
+			visible = page.getVisible(rect);
+		}
+		// only the lookup needs the page lock, rasterizing does not
+		Bitmap bitmap = obtain();
+		c.setBitmap(bitmap);
+		c.save();
+		c.translate(-dx, -dy);
+		visible.draw(c, true);
+		c.restore();
+		return bitmap;
+	}
+
+	private void schedule(final Page page, final TileKey key) {
+		if (pending.containsKey(key))
+			return;
+		final Pending task = new Pending(page);
+		pending.put(key, task);
+		if (workers == null)
+			workers = Executors.newFixedThreadPool(WORKERS);
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = null;
+				if (!task.stale)
+					bitmap = render(task.page, key, new Canvas());
+				final Bitmap result = bitmap;
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (pending.get(key) == task)
+							pending.remove(key);
+						if (result == null)
+							return;
+						if (task.stale || tiles.containsKey(key)) {
+							release(result);
+							return;
+						}
+						put(key, new Tile(task.page, result));
+					}
+				});
+			}
+		});
+	}
+}
@@ -59,8 +59,7 @@ public abstract class TouchHandlerABC {
 	 * Redraw the page
 	 */
 	protected void redraw() {
-		getPage().draw(view.canvas);
-		view.invalidate();
+		view.redraw();
 	}
 
 	/**
@@ -82,24 +82,16 @@ public class TouchHandlerActivePen
 				Log.v(TAG, "Timeout in ACTION_MOVE, "+(newT-oldT));
 				oldX = newX; oldY = newY;
 				saveStroke();
-				position_x[0] = newX;
-				position_y[0] = newY;
-				pressure[0] = newPressure;
-				N = 1;
+				startStroke(newX, newY, newPressure);
 			}
 			drawOutline(oldX, oldY, newX, newY, oldPressure, newPressure);
 			
 			int n = event.getHistorySize();
-			if (N+n+1 >= Nmax) saveStroke();
-			for (int i = 0; i < n; i++) {
-				position_x[N+i] = event.getHistoricalX(penIdx, i);
-				position_y[N+i] = event.getHistoricalY(penIdx, i);
-				pressure[N+i] = event.getHistoricalPressure(penIdx, i);
-			}
-			position_x[N+n] = newX;
-			position_y[N+n] = newY;
-			pressure[N+n] = newPressure;
-			N = N+n+1;
+			for (int i = 0; i < n; i++)
+				addPoint(event.getHistoricalX(penIdx, i), 
+						event.getHistoricalY(penIdx, i), 
+						event.getHistoricalPressure(penIdx, i));
+			addPoint(newX, newY, newPressure);
 			return true;
 		}		
 		else if (action == MotionEvent.ACTION_DOWN) {
@@ -126,10 +118,10 @@ public class TouchHandlerActivePen
 			// Log.v(TAG, "ACTION_DOWN");
 			if (!useForWriting(event)) 
 				return true;   // eat non-pen events
-			position_x[0] = newX = event.getX();
-			position_y[0] = newY = event.getY();
-			pressure[0] = newPressure = event.getPressure();
-			N = 1;
+			newX = event.getX();
+			newY = event.getY();
+			newPressure = event.getPressure();
+			startStroke(newX, newY, newPressure);
 			penID = event.getPointerId(0);
 			initPenStyle();
 			return true;
@@ -149,8 +141,7 @@ public class TouchHandlerActivePen
 				Transformation t = pinchZoomTransform(page.getTransform(), 
 						oldX1, newX1, oldX2, newX2, oldY1, newY1, oldY2, newY2);
 				page.setTransform(t, view.canvas);
-				page.draw(view.canvas);
-				view.invalidate();
+				view.redraw();
 			}
 			penID = fingerId1 = fingerId2 = -1;
 			return true;
@@ -161,8 +152,7 @@ public class TouchHandlerActivePen
 			Log.v(TAG, "ACTION_CANCEL");
 			N = 0;
 			penID = fingerId1 = fingerId2 = -1;
-			getPage().draw(view.canvas);
-			view.invalidate();
+			view.redraw();
 			return true;
 		}
 		else if (action == MotionEvent.ACTION_POINTER_DOWN) {  // start move gesture
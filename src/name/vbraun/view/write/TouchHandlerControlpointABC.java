@@ -1,7 +1,8 @@
 package name.vbraun.view.write;
 
+import java.util.ArrayList;
 import java.util.Currency;
-import java.util.LinkedList;
+import java.util.List;
 
 import name.vbraun.view.write.GraphicsControlpoint.Controlpoint;
 
@@ -164,8 +165,7 @@ public abstract class TouchHandlerControlpointABC
 			// if (event.getPointerId(0) != penID) return true;
 			Log.v(TAG, "ACTION_CANCEL");
 			abortMotion();
-			getPage().draw(view.canvas);
-			view.invalidate();
+			view.redraw();
 			return true;
 		}
 		else if (action == MotionEvent.ACTION_POINTER_DOWN) {  // start move gesture
@@ -193,9 +193,7 @@ public abstract class TouchHandlerControlpointABC
 				Transformation t = pinchZoomTransform(page.getTransform(), 
 						oldX1, newX1, oldX2, newX2, oldY1, newY1, oldY2, newY2);
 				page.setTransform(t, view.canvas);
-
-				page.draw(view.canvas);
-				view.invalidate();
+				view.redraw();
 				abortMotion();
 			}
 		}
@@ -218,8 +216,7 @@ public abstract class TouchHandlerControlpointABC
 		Log.d(TAG, "trash = "+trash);
 		if (trash) {
 			if (isNew) {
-				getPage().draw(view.canvas);
-			    view.invalidate();
+				view.redraw();
 			} else
 				removeGraphics(activeControlpoint.getGraphics());
 		} else if (gears) {
@@ -228,6 +225,9 @@ public abstract class TouchHandlerControlpointABC
 		} else {
 			if (isNew)
 				saveGraphics(newGraphicsObject);
+			else if (activeControlpoint != null)
+				// the object was changed in place, this is not in the journal
+				getPage().touch();
 		}
 		newGraphicsObject = null;
 		view.callOnStrokeFinishedListener();
@@ -250,17 +250,38 @@ public abstract class TouchHandlerControlpointABC
 		}
 	}
 	
+	private final RectF mScreenRectF = new RectF();
+	private final RectF mPageRectF = new RectF();
+	private final ArrayList<GraphicsControlpoint> mGraphics = new ArrayList<GraphicsControlpoint>();
+
 	protected void drawControlpoints(Canvas canvas) {
-		for (GraphicsControlpoint graphics : getGraphicsObjects()) {
+		final Transformation transform = getPage().getTransform();
+		final float r = controlpointRadius() / transform.scale;
+		mScreenRectF.set(0, 0, canvas.getWidth(), canvas.getHeight());
+		transform.inverse(mScreenRectF, mPageRectF);
+		mPageRectF.inset(-r, -r);
+		mGraphics.clear();
+		findGraphicsObjectsIn(mPageRectF, mGraphics);
+		for (GraphicsControlpoint graphics : mGraphics) {
 			graphics.drawControlpoints(canvas);
 		}
+		mGraphics.clear();
 		view.invalidate();
 	}
 
 	/**
-	 * @return all graphics objects of the given type (e.g. all images) on the page
+	 * The largest control point radius, see GraphicsControlpoint.controlpointRadius()
+	 */
+	protected float controlpointRadius() {
+		return 15f;
+	}
+	
+	/**
+	 * Find the graphics objects of the given type (e.g. images) on the page
+	 * @param rect A rectangle in page coordinates
+	 * @param result The list to append all graphics objects intersecting rect to
 	 */
-	protected abstract LinkedList<? extends GraphicsControlpoint> getGraphicsObjects();
+	protected abstract void findGraphicsObjectsIn(RectF rect, List<? super GraphicsControlpoint> result);
 	
 	/**
 	 * Create a new graphics object
@@ -304,6 +325,8 @@ public abstract class TouchHandlerControlpointABC
 		final float dr = graphics.controlpointRadius();
 		newBoundingBox.inset(-dr, -dr);
 		bBox.union(newBoundingBox);
+		if (newGraphicsObject == null)  // existing object is modified in place
+			view.invalidateTiles(bBox);
 		getPage().draw(view.canvas, bBox);
 		if (newGraphicsObject != null) 
 			newGraphicsObject.draw(view.canvas, newGraphicsObject.getBoundingBox());
@@ -343,7 +366,10 @@ public abstract class TouchHandlerControlpointABC
 				
 		float rMin2 = rMax * rMax;
 		Controlpoint closest = null;
-		for (GraphicsControlpoint graphics : getGraphicsObjects())
+		mPageRectF.set(x-rMax, y-rMax, x+rMax, y+rMax);
+		mGraphics.clear();
+		findGraphicsObjectsIn(mPageRectF, mGraphics);
+		for (GraphicsControlpoint graphics : mGraphics)
 			for (Controlpoint p : graphics.controlpoints) {
 				final float dx = x-p.x;
 				final float dy = y-p.y;
@@ -353,6 +379,7 @@ public abstract class TouchHandlerControlpointABC
 					closest = p;
 				}
 			}
+		mGraphics.clear();
 		return closest;
 	}	
 }
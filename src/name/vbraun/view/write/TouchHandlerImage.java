@@ -1,9 +1,10 @@
 package name.vbraun.view.write;
 
-import java.util.LinkedList;
+import java.util.List;
 
 import name.vbraun.view.write.GraphicsControlpoint.Controlpoint;
 
+import android.graphics.RectF;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.ViewGroup.LayoutParams;
@@ -28,8 +29,8 @@ public class TouchHandlerImage extends TouchHandlerControlpointABC {
 	}
 
 	@Override
-	protected LinkedList<? extends GraphicsControlpoint> getGraphicsObjects() {
-		return getPage().images;
+	protected void findGraphicsObjectsIn(RectF rect, List<? super GraphicsControlpoint> result) {
+		getPage().findImagesIn(rect, result);
 	}
 
 	protected float maxDistanceControlpointScreen() {
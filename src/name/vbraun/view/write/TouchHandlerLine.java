@@ -1,7 +1,8 @@
 package name.vbraun.view.write;
 
-import java.util.LinkedList;
+import java.util.List;
 
+import android.graphics.RectF;
 import android.util.Log;
 
 public class TouchHandlerLine extends TouchHandlerControlpointABC {
@@ -12,8 +13,8 @@ public class TouchHandlerLine extends TouchHandlerControlpointABC {
 	}
 
 	@Override
-	protected LinkedList<? extends GraphicsControlpoint> getGraphicsObjects() {
-		return getPage().lineArt;
+	protected void findGraphicsObjectsIn(RectF rect, List<? super GraphicsControlpoint> result) {
+		getPage().findLineArtIn(rect, result);
 	}
 
 	@Override
@@ -55,24 +55,16 @@ public class TouchHandlerPassivePen
 				Log.v(TAG, "Timeout in ACTION_MOVE, "+(newT-oldT));
 				oldX = newX; oldY = newY;
 				saveStroke();
-				position_x[0] = newX;
-				position_y[0] = newY;
-				pressure[0] = newPressure;
-				N = 1;
+				startStroke(newX, newY, newPressure);
 			}
 			drawOutline(oldX, oldY, newX, newY, oldPressure, newPressure);
 			
 			int n = event.getHistorySize();
-			if (N+n+1 >= Nmax) saveStroke();
-			for (int i = 0; i < n; i++) {
-				position_x[N+i] = event.getHistoricalX(penIdx, i);
-				position_y[N+i] = event.getHistoricalY(penIdx, i);
-				pressure[N+i] = event.getHistoricalPressure(penIdx, i);
-			}
-			position_x[N+n] = newX;
-			position_y[N+n] = newY;
-			pressure[N+n] = newPressure;
-			N = N+n+1;
+			for (int i = 0; i < n; i++)
+				addPoint(event.getHistoricalX(penIdx, i), 
+						event.getHistoricalY(penIdx, i), 
+						event.getHistoricalPressure(penIdx, i));
+			addPoint(newX, newY, newPressure);
 			return true;
 		}		
 		else if (action == MotionEvent.ACTION_DOWN) {
@@ -89,10 +81,10 @@ public class TouchHandlerPassivePen
 				view.toastIsReadonly();
 				return true;
 			}
-			position_x[0] = newX = event.getX();
-			position_y[0] = newY = event.getY();
-			pressure[0] = newPressure = event.getPressure();
-			N = 1;
+			newX = event.getX();
+			newY = event.getY();
+			newPressure = event.getPressure();
+			startStroke(newX, newY, newPressure);
 			penID = event.getPointerId(0);
 			initPenStyle();
 			return true;
@@ -125,10 +117,10 @@ public class TouchHandlerPassivePen
 			if (penID != -1)
 				return true;
 			int idx = event.getActionIndex();
-			position_x[0] = newX = event.getX(idx);
-			position_y[0] = newY = event.getY(idx);
-			pressure[0] = newPressure = event.getPressure(idx);
-			N = 1;
+			newX = event.getX(idx);
+			newY = event.getY(idx);
+			newPressure = event.getPressure(idx);
+			startStroke(newX, newY, newPressure);
 			penID = event.getPointerId(idx);
 			initPenStyle();
 			return true;
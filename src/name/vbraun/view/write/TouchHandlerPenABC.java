@@ -14,15 +14,13 @@ public abstract class TouchHandlerPenABC extends TouchHandlerABC {
 	private static final String TAG = "TouchHandlerABC";
 	
 	protected int N = 0;
-	protected static final int Nmax = 1024;
-	protected float[] position_x = new float[Nmax];
-	protected float[] position_y = new float[Nmax];
-	protected float[] pressure = new float[Nmax];
+	private final StrokeBuilder builder;
 
 	protected final Paint pen;
 
 	protected TouchHandlerPenABC(HandwriterView view) {
 		super(view);
+		builder = view.strokeBuilder;
 		pen = new Paint();
 		pen.setAntiAlias(true);
 		pen.setARGB(0xff, 0, 0, 0);
@@ -63,17 +61,34 @@ public abstract class TouchHandlerPenABC extends TouchHandlerABC {
 		view.invalidate(mRect);
 	}
 
+	/**
+	 * Start a new stroke with the current pen settings
+	 * @param x The x coordinate (screen coordinates)
+	 * @param y The y coordinate (screen coordinates)
+	 * @param p The pressure
+	 */
+	protected void startStroke(float x, float y, float p) {
+		builder.start(view.getToolType(), view.getPenThickness(), view.getPenColor(), 
+				getPage().getTransform(), view.getPenSmoothFilter());
+		builder.add(x, y, p);
+		N = 1;
+	}
+	
+	/**
+	 * Add a point to the current stroke
+	 * @param x The x coordinate (screen coordinates)
+	 * @param y The y coordinate (screen coordinates)
+	 * @param p The pressure
+	 */
+	protected void addPoint(float x, float y, float p) {
+		builder.add(x, y, p);
+		N++;
+	}
+	
 	protected void saveStroke() {
 		if (N == 0)
 			return;
-		if (N == 1) { // need two points to draw a connecting line
-			N = 2;
-			position_x[1] = position_x[0];
-			position_y[1] = position_y[0];
-			pressure[1] = pressure[0];
-		}
-		Stroke newStroke = Stroke.fromInput(view.getToolType(), view.getPenThickness(), view.getPenColor(), getPage()
-				.getTransform(), position_x, position_y, pressure, N, view.getPenSmoothFilter());
+		Stroke newStroke = builder.finish();
 		view.saveStroke(newStroke);
 		N = 0;
 	}
@@ -1,10 +1,15 @@
 package name.vbraun.view.write;
 
+import android.graphics.RectF;
+
 public class Transformation {
 
 	protected float offset_x;
 	protected float offset_y;
 	protected float scale;
+	
+	// incremented whenever the transformation changes, see Graphics.getBoundingBox()
+	protected int epoch = 0;
 
 	public Transformation() {
 		offset_x = 0.0f;
@@ -45,14 +50,37 @@ public class Transformation {
 		return (y - offset_y) / scale;
 	}
 
+	/**
+	 * Map a rectangle from page to screen coordinates
+	 * @param page The rectangle in page coordinates
+	 * @param screen Output: the rectangle in screen coordinates
+	 */
+	public void apply(RectF page, RectF screen) {
+		screen.set(applyX(page.left), applyY(page.top), applyX(page.right), applyY(page.bottom));
+	}
+
+	/**
+	 * Map a rectangle from screen to page coordinates
+	 * @param screen The rectangle in screen coordinates
+	 * @param page Output: the rectangle in page coordinates
+	 */
+	public void inverse(RectF screen, RectF page) {
+		page.set(inverseX(screen.left), inverseY(screen.top), inverseX(screen.right), inverseY(screen.bottom));
+	}
+
 	public Transformation offset(float dx, float dy) {
 		return new Transformation(offset_x + dx, offset_y + dy, scale);
 	}
 
 	protected void set(Transformation t) {
-		offset_x = t.offset_x;
-		offset_y = t.offset_y;
-		scale = t.scale;
+		set(t.offset_x, t.offset_y, t.scale);
+	}
+
+	protected void set(float offset_x, float offset_y, float scale) {
+		this.offset_x = offset_x;
+		this.offset_y = offset_y;
+		this.scale = scale;
+		epoch++;
 	}
 
 	public boolean equals(Transformation t) {
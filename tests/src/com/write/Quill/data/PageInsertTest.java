@@ -0,0 +1,141 @@
+package com.write.Quill.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import name.vbraun.view.write.Graphics.Tool;
+import name.vbraun.view.write.Page;
+import name.vbraun.view.write.Stroke;
+import name.vbraun.view.write.Transformation;
+
+import android.graphics.Color;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * What the next save writes after inserting or removing a page
+ *
+ * The page order is only stored in the book index, so inserting a page near
+ * the front of a large book must not require the later pages to be written
+ * again. Counts the bytes of the index and of the pages that need a
+ * snapshot, the log tag is PageInsertTest.
+ *
+ * @author vbraun
+ *
+ */
+public class PageInsertTest extends TestCase {
+	private static final String TAG = "PageInsertTest";
+
+	private static final int PAGES = 400;
+	private static final int STROKES_PER_PAGE = 20;
+	private static final int POINTS = 32;
+
+	private Book book;
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(1);
+		book = new Book("PageInsertTest");
+		Transformation transform = new Transformation();
+		for (int i = 0; i < PAGES; i++) {
+			Page page = (i == 0) ? book.pages.getFirst() : new Page(book.tagManager);
+			for (int s = 0; s < STROKES_PER_PAGE; s++)
+				page.addStroke(makeStroke(random, transform));
+			if (i > 0)
+				book.pages.add(page);
+		}
+		book.filterChanged();
+		for (Page page : book.pages)
+			page.markAsSaved();
+	}
+
+	private static Stroke makeStroke(Random random, Transformation transform) {
+		float[] x = new float[POINTS];
+		float[] y = new float[POINTS];
+		float[] p = new float[POINTS];
+		float px = random.nextFloat(), py = random.nextFloat();
+		for (int n = 0; n < POINTS; n++) {
+			px += (random.nextFloat() - 0.5f) * 0.01f;
+			py += (random.nextFloat() - 0.5f) * 0.01f;
+			x[n] = px;
+			y[n] = py;
+			p[n] = 0.5f;
+		}
+		return new Stroke(Tool.FOUNTAINPEN, 2, Color.BLACK, transform, x, y, p, 0, POINTS);
+	}
+
+	private int indexBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		book.saveIndex(out);
+		out.close();
+		return bytes.size();
+	}
+
+	private static int pageBytes(Page page) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		page.writeToStream(out);
+		out.close();
+		return bytes.size();
+	}
+
+	// the pages that the next save writes, and their size
+	private int countSnapshots() {
+		int count = 0;
+		for (Page page : book.pages)
+			if (page.isSnapshotRequired())
+				count++;
+		return count;
+	}
+
+	private int snapshotBytes() throws IOException {
+		int size = 0;
+		for (Page page : book.pages)
+			if (page.isSnapshotRequired())
+				size += pageBytes(page);
+		return size;
+	}
+
+	private int laterPageBytes(int position) throws IOException {
+		int size = 0;
+		for (int i = position; i < book.pages.size(); i++)
+			size += pageBytes(book.pages.get(i));
+		return size;
+	}
+
+	public void testInsert() throws IOException {
+		assertEquals(0, countSnapshots());
+		Page page = new Page(book.tagManager);
+		book.addPage(page, 1);
+		assertSame(page, book.pages.get(1));
+		assertEquals(1, countSnapshots());
+		assertTrue(page.isSnapshotRequired());
+		int written = indexBytes() + snapshotBytes();
+		Log.i(TAG, String.format("Insert into %d pages: %d bytes written, rewriting the later pages takes %d bytes",
+				PAGES, written, indexBytes() + laterPageBytes(1)));
+	}
+
+	public void testRemove() throws IOException {
+		Page page = book.pages.get(1);
+		book.removePage(page, 1);
+		assertEquals(PAGES - 1, book.pages.size());
+		assertEquals(0, countSnapshots());
+		Log.i(TAG, String.format("Remove from %d pages: %d bytes written, rewriting the later pages takes %d bytes",
+				PAGES, indexBytes(), indexBytes() + laterPageBytes(1)));
+	}
+
+	public void testMove() throws IOException {
+		Page page = book.pages.get(PAGES - 1);
+		book.removePage(page, PAGES - 1);
+		book.addPage(page, 0);
+		assertSame(page, book.pages.getFirst());
+		// only the moved page, its file may have been deleted in between
+		assertEquals(1, countSnapshots());
+		assertTrue(page.isSnapshotRequired());
+		Log.i(TAG, String.format("Move in %d pages: %d bytes written", PAGES, indexBytes() + snapshotBytes()));
+	}
+}
@@ -0,0 +1,132 @@
+package com.write.Quill.data;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import name.vbraun.view.write.Page;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Page positions in large books
+ *
+ * Checks the positions from {@link PageList} against a scan of the list, and
+ * that flipping through a book costs the same per page for 1k and 10k
+ * pages. The timings are in the log under the tag PageListTest.
+ *
+ * @author vbraun
+ *
+ */
+public class PageListTest extends TestCase {
+	private static final String TAG = "PageListTest";
+
+	private static final int SMALL_BOOK = 1000;
+	private static final int LARGE_BOOK = 10000;
+
+	// how much slower a page flip may be in the large book
+	private static final int MAX_SLOWDOWN = 5;
+
+	private static int scan(ArrayList<Page> list, Page page) {
+		for (int i = 0; i < list.size(); i++)
+			if (list.get(i) == page)
+				return i;
+		return -1;
+	}
+
+	private static void assertPositions(PageList pages, ArrayList<Page> all) {
+		for (Page page : all) {
+			int expected = scan(pages, page);
+			assertEquals(expected, pages.indexOf(page));
+			assertEquals(expected, pages.indexOf(page.getUUID()));
+			assertEquals(expected >= 0, pages.contains(page));
+		}
+	}
+
+	public void testIndexOf() {
+		Random random = new Random(1);
+		TagManager tagManager = new TagManager();
+		PageList pages = new PageList();
+		ArrayList<Page> all = new ArrayList<Page>();
+		for (int i = 0; i < 100; i++) {
+			Page page = new Page(tagManager);
+			all.add(page);
+			pages.add(page);
+		}
+		assertPositions(pages, all);
+		for (int round = 0; round < 200; round++) {
+			switch (random.nextInt(4)) {
+			case 0:
+				Page page = new Page(tagManager);
+				all.add(page);
+				pages.add(random.nextInt(pages.size() + 1), page);
+				break;
+			case 1:
+				if (pages.size() > 1)
+					pages.remove(random.nextInt(pages.size()));
+				break;
+			case 2:
+				if (pages.size() > 1)
+					assertTrue(pages.remove(pages.get(random.nextInt(pages.size()))));
+				break;
+			case 3:
+				Page replacement = new Page(tagManager);
+				all.add(replacement);
+				pages.set(random.nextInt(pages.size()), replacement);
+				break;
+			}
+			assertPositions(pages, all);
+		}
+		assertFalse(pages.remove(new Page(tagManager)));
+		assertEquals(-1, pages.indexOf("not a page"));
+	}
+
+	private static Book makeBook(int size) {
+		Book book = new Book("PageListTest");
+		// not through addPage(), which checks each page against the whole book
+		for (int i = 1; i < size; i++)
+			book.pages.add(new Page(book.tagManager));
+		book.filterChanged();
+		return book;
+	}
+
+	// nanoseconds per page flip, the best of a few runs
+	private static long timeFlipping(Book book) {
+		int size = book.pagesSize();
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			book.setCurrentPage(book.pages.getFirst());
+			long start = System.nanoTime();
+			for (int i = 1; i < size; i++)
+				book.nextPage();
+			assertSame(book.pages.getLast(), book.currentPage());
+			for (int i = 1; i < size; i++)
+				book.previousPage();
+			assertSame(book.pages.getFirst(), book.currentPage());
+			best = Math.min(best, (System.nanoTime() - start) / (2 * (size - 1)));
+		}
+		return best;
+	}
+
+	public void testNavigation() {
+		Book book = makeBook(SMALL_BOOK);
+		for (int i = 0; i < SMALL_BOOK; i += 37) {
+			Page page = book.pages.get(i);
+			book.setCurrentPage(page);
+			assertEquals(i, book.currentPageNumber());
+			assertEquals(i, book.getPageNumber(page));
+		}
+	}
+
+	public void testFlippingLargeBook() {
+		// warm up
+		timeFlipping(makeBook(SMALL_BOOK));
+		long small = timeFlipping(makeBook(SMALL_BOOK));
+		long large = timeFlipping(makeBook(LARGE_BOOK));
+		Log.i(TAG, String.format("Page flip: %d ns with %d pages, %d ns with %d pages",
+				small, SMALL_BOOK, large, LARGE_BOOK));
+		assertTrue("Page flips are " + large + " ns in the large book and " + small + " ns in the small one",
+				large < MAX_SLOWDOWN * Math.max(small, 1000));
+	}
+}
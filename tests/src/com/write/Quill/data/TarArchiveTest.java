@@ -0,0 +1,275 @@
+package com.write.Quill.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarInputStream;
+import org.xeustechnologies.jtar.TarOutputStream;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Book archives written and read through {@link TarArchive}
+ *
+ * Checks that the files come back unchanged, with and without compression,
+ * and that the archives can be read by the jtar streams that older versions
+ * use. Reports the throughput compared to copying through the jtar streams
+ * in 2kb chunks, the log tag is TarArchiveTest.
+ *
+ * @author vbraun
+ *
+ */
+public class TarArchiveTest extends AndroidTestCase {
+	private static final String TAG = "TarArchiveTest";
+
+	// a book with many small pages and a few images
+	private static final int PAGES = 200;
+	private static final int PAGE_SIZE = 8 * 1024;
+	private static final int IMAGES = 8;
+	private static final int IMAGE_SIZE = 1024 * 1024;
+
+	private File dir, extractDir, archive;
+	private ArrayList<File> files;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = new File(getContext().getCacheDir(), TAG);
+		extractDir = new File(dir, "extracted");
+		extractDir.mkdirs();
+		archive = new File(dir, "archive.tar");
+		Random random = new Random(1);
+		files = new ArrayList<File>();
+		for (int i = 0; i < PAGES + IMAGES; i++) {
+			// odd sizes to exercise the padding, and an empty file
+			int size = (i < PAGES) ? random.nextInt(PAGE_SIZE) : IMAGE_SIZE + i;
+			if (i == 0) size = 0;
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			File file = new File(dir, "file" + i);
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			files.add(file);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : extractDir.listFiles())
+			file.delete();
+		extractDir.delete();
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int pos = 0;
+			while (pos < data.length) {
+				int count = in.read(data, pos, data.length - pos);
+				if (count < 0)
+					throw new IOException("Short read");
+				pos += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static void assertSameContents(File expected, File actual) throws IOException {
+		assertTrue(actual.getName() + " differs", Arrays.equals(readFile(expected), readFile(actual)));
+	}
+
+	private long totalSize() {
+		long size = 0;
+		for (File file : files)
+			size += file.length();
+		return size;
+	}
+
+	private void write(boolean compress) throws IOException {
+		TarArchive.Writer tar = new TarArchive.Writer(archive, compress);
+		try {
+			for (File file : files)
+				tar.add(file, "book/" + file.getName());
+		} finally {
+			tar.close();
+		}
+		assertEquals(totalSize(), tar.getSize());
+	}
+
+	private void read() throws IOException {
+		TarArchive.Reader tar = new TarArchive.Reader(archive);
+		try {
+			int n = 0;
+			TarEntry entry;
+			while ((entry = tar.next()) != null) {
+				assertEquals("book/" + files.get(n).getName(), entry.getName());
+				tar.extract(entry, new File(extractDir, files.get(n).getName()));
+				n++;
+			}
+			assertEquals(files.size(), n);
+			assertEquals(totalSize(), tar.getSize());
+		} finally {
+			tar.close();
+		}
+	}
+
+	private void checkExtracted() throws IOException {
+		for (File file : files)
+			assertSameContents(file, new File(extractDir, file.getName()));
+	}
+
+	public void testRoundTrip() throws IOException {
+		write(false);
+		read();
+		checkExtracted();
+	}
+
+	public void testCompressedRoundTrip() throws IOException {
+		write(true);
+		read();
+		checkExtracted();
+	}
+
+	public void testSkipEntries() throws IOException {
+		for (boolean compress : new boolean[] { false, true }) {
+			write(compress);
+			TarArchive.Reader tar = new TarArchive.Reader(archive);
+			try {
+				// extract every third file only
+				int n = 0;
+				TarEntry entry;
+				while ((entry = tar.next()) != null) {
+					File file = files.get(n);
+					assertEquals("book/" + file.getName(), entry.getName());
+					if (n % 3 == 0) {
+						File dest = new File(extractDir, file.getName());
+						tar.extract(entry, dest);
+						assertSameContents(file, dest);
+					}
+					n++;
+				}
+				assertEquals(files.size(), n);
+			} finally {
+				tar.close();
+			}
+		}
+	}
+
+	public void testReadableByJtar() throws IOException {
+		write(false);
+		TarInputStream tis = new TarInputStream(new BufferedInputStream(new FileInputStream(archive)));
+		try {
+			int n = 0;
+			TarEntry entry;
+			byte[] data = new byte[2048];
+			while ((entry = tis.getNextEntry()) != null) {
+				File file = files.get(n++);
+				assertEquals("book/" + file.getName(), entry.getName());
+				File dest = new File(extractDir, file.getName());
+				BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(dest));
+				int count;
+				while ((count = tis.read(data)) != -1)
+					out.write(data, 0, count);
+				out.close();
+			}
+			assertEquals(files.size(), n);
+		} finally {
+			tis.close();
+		}
+		checkExtracted();
+	}
+
+	// the copy loops that were used before TarArchive
+
+	private void writeJtar() throws IOException {
+		TarOutputStream out = new TarOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+		int count;
+		byte data[] = new byte[2048];
+		for (File f : files) {
+			out.putNextEntry(new TarEntry(f, "book/" + f.getName()));
+			BufferedInputStream origin = new BufferedInputStream(new FileInputStream(f));
+			while ((count = origin.read(data)) != -1)
+				out.write(data, 0, count);
+			out.flush();
+			origin.close();
+		}
+		out.close();
+	}
+
+	private void readJtar() throws IOException {
+		TarInputStream tis = new TarInputStream(new BufferedInputStream(new FileInputStream(archive)));
+		TarEntry entry;
+		while ((entry = tis.getNextEntry()) != null) {
+			int count;
+			byte data[] = new byte[2048];
+			BufferedOutputStream dest = new BufferedOutputStream(
+					new FileOutputStream(new File(extractDir, new File(entry.getName()).getName())));
+			while ((count = tis.read(data)) != -1)
+				dest.write(data, 0, count);
+			dest.flush();
+			dest.close();
+		}
+		tis.close();
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+
+	public void testThroughput() throws IOException {
+		long size = totalSize();
+		// once to warm up the code and the file cache
+		writeJtar();
+		readJtar();
+
+		long start = System.nanoTime();
+		writeJtar();
+		long jtarWrite = System.nanoTime() - start;
+		start = System.nanoTime();
+		readJtar();
+		long jtarRead = System.nanoTime() - start;
+		checkExtracted();
+
+		start = System.nanoTime();
+		write(false);
+		long channelWrite = System.nanoTime() - start;
+		start = System.nanoTime();
+		read();
+		long channelRead = System.nanoTime() - start;
+		checkExtracted();
+
+		start = System.nanoTime();
+		write(true);
+		long gzipWrite = System.nanoTime() - start;
+		start = System.nanoTime();
+		read();
+		long gzipRead = System.nanoTime() - start;
+		checkExtracted();
+
+		Log.i(TAG, String.format("%d files, %d bytes. Write: jtar %.1f MB/s, channels %.1f MB/s, gzip %.1f MB/s. "
+				+ "Read: jtar %.1f MB/s, channels %.1f MB/s, gzip %.1f MB/s", files.size(), size,
+				megabytesPerSecond(size, jtarWrite), megabytesPerSecond(size, channelWrite),
+				megabytesPerSecond(size, gzipWrite), megabytesPerSecond(size, jtarRead),
+				megabytesPerSecond(size, channelRead), megabytesPerSecond(size, gzipRead)));
+	}
+}
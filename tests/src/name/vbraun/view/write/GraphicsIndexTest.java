@@ -0,0 +1,153 @@
+package name.vbraun.view.write;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * The spatial index must return the same objects in the same order as a scan
+ * of the whole list, and be faster than the scan on a dense page.
+ *
+ * @author vbraun
+ *
+ */
+public class GraphicsIndexTest extends TestCase {
+	private static final String TAG = "GraphicsIndexTest";
+
+	// a dense lecture page
+	private static final int STROKES = 5000;
+	private static final int QUERIES = 2000;
+	private static final float ASPECT_RATIO = 0.7f;
+
+	// how much faster the index must be than a scan
+	private static final int MIN_SPEEDUP = 2;
+
+	private LinkedList<Stroke> strokes;
+	private GraphicsIndex<Stroke> index;
+	private Random random;
+
+	@Override
+	protected void setUp() {
+		random = new Random(1);
+		Transformation transform = new Transformation();
+		strokes = new LinkedList<Stroke>();
+		index = new GraphicsIndex<Stroke>(strokes, ASPECT_RATIO);
+		for (int i = 0; i < STROKES; i++) {
+			Stroke stroke = makeStroke(transform);
+			strokes.add(stroke);
+			index.add(stroke);
+		}
+	}
+
+	private Stroke makeStroke(Transformation transform) {
+		int n = 2 + random.nextInt(30);
+		float[] x = new float[n];
+		float[] y = new float[n];
+		float[] p = new float[n];
+		float px = random.nextFloat() * ASPECT_RATIO, py = random.nextFloat();
+		for (int i = 0; i < n; i++) {
+			px += (random.nextFloat() - 0.5f) * 0.01f;
+			py += (random.nextFloat() - 0.5f) * 0.01f;
+			x[i] = px;
+			y[i] = py;
+			p[i] = 0.5f;
+		}
+		return new Stroke(Tool.FOUNTAINPEN, 2, Color.BLACK, transform, x, y, p, 0, n);
+	}
+
+	// the eraser and the hit tests query small rectangles
+	private RectF randomRect(float size) {
+		float left = random.nextFloat() * ASPECT_RATIO;
+		float top = random.nextFloat();
+		return new RectF(left, top, left + size, top + size);
+	}
+
+	private static void scan(LinkedList<Stroke> strokes, RectF rect, ArrayList<Stroke> result) {
+		for (Stroke stroke : strokes)
+			if (RectF.intersects(rect, stroke.getPageBoundingBox()))
+				result.add(stroke);
+	}
+
+	public void testSameResultAsScan() {
+		ArrayList<Stroke> expected = new ArrayList<Stroke>();
+		ArrayList<Stroke> actual = new ArrayList<Stroke>();
+		for (int i = 0; i < QUERIES; i++) {
+			// from the eraser up to the whole page
+			RectF rect = randomRect((i % 4 == 0) ? 1f : 0.02f);
+			expected.clear();
+			actual.clear();
+			scan(strokes, rect, expected);
+			index.query(rect, actual);
+			assertEquals(expected, actual);
+		}
+	}
+
+	public void testSameResultAfterRemoving() {
+		for (int i = 0; i < STROKES / 2; i++) {
+			Stroke stroke = strokes.remove(random.nextInt(strokes.size()));
+			index.remove(stroke);
+		}
+		ArrayList<Stroke> expected = new ArrayList<Stroke>();
+		ArrayList<Stroke> actual = new ArrayList<Stroke>();
+		for (int i = 0; i < QUERIES; i++) {
+			RectF rect = randomRect(0.05f);
+			expected.clear();
+			actual.clear();
+			scan(strokes, rect, expected);
+			index.query(rect, actual);
+			assertEquals(expected, actual);
+		}
+	}
+
+	// nanoseconds for all queries, the best of a few runs
+	private long timeScan(ArrayList<RectF> rects, ArrayList<Stroke> result) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			for (RectF rect : rects) {
+				result.clear();
+				scan(strokes, rect, result);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private long timeIndex(ArrayList<RectF> rects, ArrayList<Stroke> result) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			for (RectF rect : rects) {
+				result.clear();
+				index.query(rect, result);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	public void testFasterThanScan() {
+		ArrayList<RectF> rects = new ArrayList<RectF>();
+		for (int i = 0; i < QUERIES; i++)
+			rects.add(randomRect(0.02f));
+		ArrayList<Stroke> result = new ArrayList<Stroke>();
+		// warm up
+		timeScan(rects, result);
+		timeIndex(rects, result);
+		long scanTime = timeScan(rects, result);
+		long indexTime = timeIndex(rects, result);
+		Log.i(TAG, String.format("%d strokes, %d queries: scan %d us/query, index %d us/query",
+				STROKES, QUERIES, scanTime / QUERIES / 1000, indexTime / QUERIES / 1000));
+		// the index is usually an order of magnitude faster, leave room for a busy device
+		assertTrue("Index takes " + indexTime + " ns and scanning " + scanTime + " ns",
+				MIN_SPEEDUP * indexTime < scanTime);
+	}
+}
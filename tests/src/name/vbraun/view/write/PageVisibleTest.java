@@ -0,0 +1,108 @@
+package name.vbraun.view.write;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import com.write.Quill.data.TagManager;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+/**
+ * Drawing the graphics objects of a page without the page lock
+ *
+ * The tile cache looks up the objects of a tile while holding the page lock
+ * and rasterizes them afterwards. Checks that this draws the same pixels as
+ * drawing the page, and that the drawing does not wait for the page lock.
+ *
+ * @author vbraun
+ *
+ */
+public class PageVisibleTest extends TestCase {
+
+	private static final int SIZE = 200;
+	private static final int STROKES = 20;
+	private static final int POINTS = 16;
+
+	private Page page;
+	private Bitmap bitmap;
+	private Canvas canvas;
+
+	@Override
+	protected void setUp() {
+		page = new Page(new TagManager());
+		page.setTransform(0, 0, SIZE);
+		Transformation transform = page.getTransform();
+		for (int s = 0; s < STROKES; s++) {
+			float[] x = new float[POINTS];
+			float[] y = new float[POINTS];
+			float[] p = new float[POINTS];
+			for (int n = 0; n < POINTS; n++) {
+				x[n] = 0.1f + 0.05f * n;
+				y[n] = 0.05f + 0.045f * s + 0.01f * (n % 2);
+				p[n] = 0.5f;
+			}
+			Tool tool = (s % 2 == 0) ? Tool.FOUNTAINPEN : Tool.PENCIL;
+			page.addStroke(new Stroke(tool, 3, Color.BLACK, transform, x, y, p, 0, POINTS));
+		}
+		bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+		canvas = new Canvas(bitmap);
+	}
+
+	@Override
+	protected void tearDown() {
+		bitmap.recycle();
+	}
+
+	private int[] pixels() {
+		int[] pixels = new int[SIZE * SIZE];
+		bitmap.getPixels(pixels, 0, SIZE, 0, 0, SIZE, SIZE);
+		return pixels;
+	}
+
+	public void testSameAsPageDraw() {
+		// the lower right quarter, strokes cross its edges
+		RectF rect = new RectF(SIZE / 2, SIZE / 2, SIZE, SIZE);
+		bitmap.eraseColor(Color.WHITE);
+		page.draw(canvas, rect);
+		int[] expected = pixels();
+		bitmap.eraseColor(Color.WHITE);
+		page.getVisible(rect).draw(canvas, true);
+		assertTrue("Drawn differently", Arrays.equals(expected, pixels()));
+	}
+
+	public void testDrawWithoutPageLock() throws InterruptedException {
+		RectF rect = new RectF(0, 0, SIZE, SIZE);
+		final Page.Visible visible = page.getVisible(rect);
+		final CountDownLatch drawn = new CountDownLatch(1);
+		synchronized (page) {
+			new Thread() {
+				public void run() {
+					visible.draw(canvas, true);
+					drawn.countDown();
+				}
+			}.start();
+			assertTrue("Drawing waits for the page lock", drawn.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testTransformCopied() {
+		RectF rect = new RectF(0, 0, SIZE, SIZE);
+		Page.Visible visible = page.getVisible(rect);
+		bitmap.eraseColor(Color.WHITE);
+		visible.draw(canvas, true);
+		int[] expected = pixels();
+		// zooming after the lookup does not change what the lookup draws
+		page.setTransform(SIZE / 4, SIZE / 4, 2 * SIZE);
+		bitmap.eraseColor(Color.WHITE);
+		visible.draw(canvas, true);
+		assertTrue("Drawn with the new transformation", Arrays.equals(expected, pixels()));
+	}
+}
@@ -0,0 +1,275 @@
+package name.vbraun.view.write;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import android.graphics.Color;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trip of the v3 stroke format
+ *
+ * Reading a stroke must give back the points up to the fixed-point
+ * resolution, and writing it again must give the same bytes. Both the plain
+ * and the deflated encoding are covered, as well as reading the old v2
+ * format. For a page of 10k handwritten strokes, the v3 strokes must be at
+ * least 3 times smaller than in v2. The sizes and load times are in the log
+ * under the tag StrokeFormatTest.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeFormatTest extends TestCase {
+	private static final String TAG = "StrokeFormatTest";
+
+	// the synthetic page
+	private static final int PAGE_STROKES = 10000;
+	private static final float MIN_SIZE_RATIO = 3f;
+
+	// half a unit of the fixed-point coordinates and of the 8-bit pressure
+	private static final float POSITION_TOLERANCE = 0.5f / (1 << 13) + 1e-7f;
+	private static final float PRESSURE_TOLERANCE = 0.5f / 0xff + 1e-7f;
+
+	private Stroke makeStroke(Random random, Tool tool, int points) {
+		float[] x = new float[points];
+		float[] y = new float[points];
+		float[] p = new float[points];
+		float px = random.nextFloat(), py = random.nextFloat();
+		for (int n = 0; n < points; n++) {
+			px += (random.nextFloat() - 0.5f) * 0.01f;
+			py += (random.nextFloat() - 0.5f) * 0.01f;
+			x[n] = px;
+			y[n] = py;
+			p[n] = 0.3f + 0.4f * random.nextFloat();
+		}
+		return new Stroke(tool, 5, Color.BLUE, new Transformation(), x, y, p, 0, points);
+	}
+
+	private static byte[] write(Stroke stroke) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		stroke.writeToStream(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Stroke read(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		Stroke stroke = new Stroke(in);
+		assertEquals("Trailing bytes after the stroke", 0, in.available());
+		return stroke;
+	}
+
+	// the byte after the header: version and color, then the varints thickness, tool and N
+	private static int encoding(byte[] data) {
+		int pos = 2 * 4;
+		for (int field = 0; field < 3; field++)
+			while ((data[pos++] & 0x80) != 0)
+				continue;
+		return data[pos];
+	}
+
+	private static void assertSamePoints(Stroke expected, Stroke actual) {
+		assertEquals(expected.getTool(), actual.getTool());
+		assertEquals(expected.pen_color, actual.pen_color);
+		assertEquals(expected.pen_thickness, actual.pen_thickness);
+		assertEquals(expected.N, actual.N);
+		for (int i = 0; i < expected.N; i++) {
+			assertEquals(expected.position_x[i], actual.position_x[i], POSITION_TOLERANCE);
+			assertEquals(expected.position_y[i], actual.position_y[i], POSITION_TOLERANCE);
+			assertEquals(expected.pressure[i], actual.pressure[i], PRESSURE_TOLERANCE);
+		}
+	}
+
+	private void checkRoundTrip(Stroke stroke, int expectedEncoding) throws IOException {
+		byte[] first = write(stroke);
+		assertEquals(expectedEncoding, encoding(first));
+		Stroke copy = read(first);
+		assertSamePoints(stroke, copy);
+		assertTrue("Output differs after reading it back", Arrays.equals(first, write(copy)));
+	}
+
+	public void testPlainRoundTrip() throws IOException {
+		Random random = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			Tool tool = (i % 2 == 0) ? Tool.FOUNTAINPEN : Tool.PENCIL;
+			checkRoundTrip(makeStroke(random, tool, 2 + i % 8), 0);
+		}
+	}
+
+	public void testDeflatedRoundTrip() throws IOException {
+		Random random = new Random(2);
+		for (int i = 0; i < 20; i++) {
+			Tool tool = (i % 2 == 0) ? Tool.FOUNTAINPEN : Tool.PENCIL;
+			Stroke stroke = makeStroke(random, tool, 2000);
+			// the pressure is random noise, but the coordinates compress well
+			checkRoundTrip(stroke, 1);
+		}
+	}
+
+	public void testSharedEncoder() throws IOException {
+		Random random = new Random(3);
+		Stroke.Encoder encoder = new Stroke.Encoder();
+		ByteArrayOutputStream shared = new ByteArrayOutputStream();
+		ByteArrayOutputStream separate = new ByteArrayOutputStream();
+		DataOutputStream sharedOut = new DataOutputStream(shared);
+		DataOutputStream separateOut = new DataOutputStream(separate);
+		for (int i = 0; i < 50; i++) {
+			Stroke stroke = makeStroke(random, Tool.FOUNTAINPEN, (i % 3 == 0) ? 1000 : 10);
+			stroke.writeToStream(sharedOut, encoder);
+			stroke.writeToStream(separateOut);
+		}
+		encoder.end();
+		assertTrue(Arrays.equals(separate.toByteArray(), shared.toByteArray()));
+	}
+
+	// the stroke as written before v3
+	private static void writeVersion2(Stroke stroke, DataOutputStream out) throws IOException {
+		out.writeInt(2);
+		out.writeInt(stroke.pen_color);
+		out.writeInt(stroke.pen_thickness);
+		out.writeInt(stroke.getTool().ordinal());
+		out.writeInt(stroke.N);
+		for (int i = 0; i < stroke.N; i++) {
+			out.writeFloat(stroke.position_x[i]);
+			out.writeFloat(stroke.position_y[i]);
+			out.writeFloat(stroke.pressure[i]);
+		}
+	}
+
+	public void testReadVersion2() throws IOException {
+		Random random = new Random(4);
+		Stroke stroke = makeStroke(random, Tool.PENCIL, 50);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeVersion2(stroke, out);
+		out.close();
+		Stroke copy = read(bytes.toByteArray());
+		assertEquals(stroke.N, copy.N);
+		assertTrue(Arrays.equals(stroke.position_x, copy.position_x));
+		assertTrue(Arrays.equals(stroke.position_y, copy.position_y));
+		assertTrue(Arrays.equals(stroke.pressure, copy.pressure));
+	}
+
+	public void testTruncated() throws IOException {
+		Random random = new Random(5);
+		byte[][] strokes = {
+				write(makeStroke(random, Tool.FOUNTAINPEN, 5)),
+				write(makeStroke(random, Tool.FOUNTAINPEN, 2000)) };
+		for (byte[] data : strokes)
+			for (int length = 0; length < data.length; length += 1 + length / 8)
+				try {
+					new Stroke(new DataInputStream(new ByteArrayInputStream(data, 0, length)));
+					fail("Read a stroke from " + length + " of " + data.length + " bytes");
+				} catch (IOException e) {
+					// expected
+				}
+	}
+
+	/**
+	 * A handwritten stroke: digitizer samples along a wavy line, simplified
+	 * like the pen input
+	 */
+	private Stroke makeHandwriting(Random random, Tool tool) {
+		int samples = 20 + random.nextInt(120);
+		float[] x = new float[samples];
+		float[] y = new float[samples];
+		float[] p = new float[samples];
+		float x0 = 0.7f * random.nextFloat(), y0 = random.nextFloat();
+		float size = 0.004f + 0.004f * random.nextFloat();
+		float fx = 0.05f + 0.2f * random.nextFloat(), fy = 0.05f + 0.2f * random.nextFloat();
+		float phase_x = 6 * random.nextFloat(), phase_y = 6 * random.nextFloat();
+		float pp = 0.5f;
+		for (int i = 0; i < samples; i++) {
+			x[i] = x0 + 0.0006f * i + size * (float) Math.sin(fx * i + phase_x);
+			y[i] = y0 + 1.5f * size * (float) Math.sin(fy * i + phase_y);
+			pp = Math.max(0.1f, Math.min(1f, pp + (random.nextFloat() - 0.5f) * 0.04f));
+			p[i] = pp;
+		}
+		boolean[] keep = new boolean[samples];
+		int n = Stroke.simplify(x, y, p, tool, 0, samples - 1, keep, Stroke.EPSILON);
+		int j = 0;
+		for (int i = 0; i < samples; i++)
+			if (keep[i]) {
+				x[j] = x[i];
+				y[j] = y[i];
+				p[j] = p[i];
+				j++;
+			}
+		return new Stroke(tool, 5, Color.BLACK, new Transformation(), x, y, p, 0, n);
+	}
+
+	// the strokes of a page, the rest of the page file is the same in both versions
+	private static byte[] writePage(Stroke[] strokes, boolean version2) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(strokes.length);
+		Stroke.Encoder encoder = new Stroke.Encoder();
+		try {
+			for (Stroke stroke : strokes)
+				if (version2)
+					writeVersion2(stroke, out);
+				else
+					stroke.writeToStream(out, encoder);
+		} finally {
+			encoder.end();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Stroke[] readPage(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		Stroke[] strokes = new Stroke[in.readInt()];
+		for (int i = 0; i < strokes.length; i++)
+			strokes[i] = new Stroke(in);
+		assertEquals(0, in.available());
+		return strokes;
+	}
+
+	// nanoseconds to read the page, the best of a few runs
+	private static long timeReading(byte[] data) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			readPage(data);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	public void testLargePage() throws IOException {
+		Random random = new Random(6);
+		Stroke[] strokes = new Stroke[PAGE_STROKES];
+		long points = 0;
+		for (int i = 0; i < PAGE_STROKES; i++) {
+			strokes[i] = makeHandwriting(random, (i % 4 == 0) ? Tool.PENCIL : Tool.FOUNTAINPEN);
+			points += strokes[i].N;
+		}
+		byte[] v2 = writePage(strokes, true);
+		byte[] v3 = writePage(strokes, false);
+		Stroke[] copy = readPage(v3);
+		for (int i = 0; i < PAGE_STROKES; i++)
+			assertSamePoints(strokes[i], copy[i]);
+
+		// once to warm up
+		timeReading(v2);
+		timeReading(v3);
+		long v2Time = timeReading(v2);
+		long v3Time = timeReading(v3);
+		float ratio = v2.length / (float) v3.length;
+		Log.i(TAG, String.format("%d strokes, %d points: v2 %d bytes, read in %d ms; v3 %d bytes, read in %d ms; "
+				+ "%.2f times smaller", PAGE_STROKES, points, v2.length, v2Time / 1000000, v3.length,
+				v3Time / 1000000, ratio));
+		assertTrue("v3 is only " + ratio + " times smaller", ratio >= MIN_SIZE_RATIO);
+	}
+}
@@ -0,0 +1,243 @@
+package name.vbraun.view.write;
+
+import java.util.Random;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Heap accounting for the strokes of a synthetic book
+ *
+ * Compares the bytes per stroke, on the Java heap and in native memory (where
+ * Paint and Path keep their data), with LegacyStroke. That is the layout
+ * before the strokes shared their paints and transformation, with its own
+ * Paint, Path, Transformation and bounding boxes. Both are measured in the
+ * same run, once as loaded and once after drawing, which includes the
+ * drawing cache. Run on a device, the numbers are in the log under the tag
+ * StrokeHeapTest.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeHeapTest extends TestCase {
+	private static final String TAG = "StrokeHeapTest";
+
+	private static final int STROKES = 10000;
+	private static final int POINTS = 32;
+
+	// the header of a float array on Dalvik
+	private static final int ARRAY_HEADER = 12;
+
+	// what a loaded stroke may cost beyond its three coordinate arrays: about 250 
+	// bytes of objects, and the outline of the fountain pen strokes (2 bytes per
+	// point, half of the strokes)
+	private static final int MAX_OVERHEAD = 512;
+
+	// the Path of a drawn stroke, per point. Two cubic segments per point of a 
+	// fountain pen stroke take 50 bytes
+	private static final int MAX_CACHE_PER_POINT = 128;
+
+	// the zoom where strokes are drawn with all points
+	private static final float SCALE = 2000f;
+
+	private static final int[] COLORS = { Color.BLACK, Color.BLUE, Color.RED, Color.GREEN };
+	private static final int[] THICKNESSES = { 2, 5 };
+
+	private final Transformation transform = new Transformation(0, 0, SCALE);
+
+	/**
+	 * The fields of a stroke before the paints were shared, see the class
+	 * documentation
+	 */
+	private static class LegacyStroke {
+		// from Graphics
+		private Tool tool;
+		private Transformation transform = new Transformation();
+		private float offset_x = 0f;
+		private float offset_y = 0f;
+		private float scale = 1.0f;
+		private RectF bBoxFloat = new RectF();
+		private Rect bBoxInt = new Rect();
+		private boolean recompute_bounding_box = true;
+		// from Stroke
+		private int N;
+		private float[] position_x;
+		private float[] position_y;
+		private float[] pressure;
+		private final Paint mPen = new Paint();
+		private int pen_thickness;
+		private int pen_color;
+		private Path path = new Path();
+
+		private LegacyStroke(Tool tool, int pen_thickness, int pen_color, Transformation transform, 
+				float[] x, float[] y, float[] p) {
+			this.tool = tool;
+			N = x.length;
+			position_x = x.clone();
+			position_y = y.clone();
+			pressure = p.clone();
+			this.pen_thickness = pen_thickness;
+			this.pen_color = pen_color;
+			mPen.setARGB(Color.alpha(pen_color), Color.red(pen_color), Color.green(pen_color), Color.blue(pen_color));
+			mPen.setAntiAlias(true);
+			mPen.setStrokeCap(Paint.Cap.ROUND);
+			this.transform.set(transform);
+			offset_x = transform.offset_x;
+			offset_y = transform.offset_y;
+			scale = transform.scale;
+		}
+
+		// the Path segments that drawing left in the Path
+		private void draw() {
+			path.rewind();
+			path.moveTo(position_x[0] * scale + offset_x, position_y[0] * scale + offset_y);
+			for (int i = 1; i < N - 1; i++) {
+				float x = position_x[i] * scale + offset_x;
+				float y = position_y[i] * scale + offset_y;
+				if (tool == Tool.PENCIL)
+					path.quadTo(x, y, x, y);
+				else
+					// the + and the - boundary
+					for (int side = 0; side < 2; side++)
+						path.cubicTo(x, y, x, y, x, y);
+			}
+			if (tool == Tool.FOUNTAINPEN) {
+				// the end caps
+				float x = position_x[N - 1] * scale + offset_x;
+				float y = position_y[N - 1] * scale + offset_y;
+				path.cubicTo(x, y, x, y, x, y);
+				path.cubicTo(x, y, x, y, x, y);
+				path.close();
+			}
+		}
+	}
+
+	private float[] x = new float[POINTS];
+	private float[] y = new float[POINTS];
+	private float[] p = new float[POINTS];
+
+	// a wavy line, like handwriting
+	private void makePoints(Random random) {
+		float x0 = random.nextFloat(), y0 = random.nextFloat();
+		float size = 0.004f + 0.004f * random.nextFloat();
+		float phase = 6 * random.nextFloat();
+		for (int n = 0; n < POINTS; n++) {
+			x[n] = x0 + 0.002f * n + size * (float) Math.sin(0.5f * n + phase);
+			y[n] = y0 + 1.5f * size * (float) Math.sin(0.3f * n + phase);
+			p[n] = 0.3f + 0.4f * random.nextFloat();
+		}
+	}
+
+	private static Tool tool(int i) {
+		return (i % 2 == 0) ? Tool.FOUNTAINPEN : Tool.PENCIL;
+	}
+
+	private static int color(int i) {
+		return COLORS[i % COLORS.length];
+	}
+
+	private static int thickness(int i) {
+		return THICKNESSES[(i / COLORS.length) % THICKNESSES.length];
+	}
+
+	private Stroke[] makeStrokes() {
+		Random random = new Random(1);
+		Stroke[] strokes = new Stroke[STROKES];
+		for (int i = 0; i < STROKES; i++) {
+			makePoints(random);
+			strokes[i] = new Stroke(tool(i), thickness(i), color(i), transform, x, y, p, 0, POINTS);
+		}
+		return strokes;
+	}
+
+	private LegacyStroke[] makeLegacyStrokes() {
+		Random random = new Random(1);
+		LegacyStroke[] strokes = new LegacyStroke[STROKES];
+		for (int i = 0; i < STROKES; i++) {
+			makePoints(random);
+			strokes[i] = new LegacyStroke(tool(i), thickness(i), color(i), transform, x, y, p);
+		}
+		return strokes;
+	}
+
+	// bytes in use on the Java heap and in native memory
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			System.runFinalization();
+		}
+		return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+	}
+
+	private static long pointBytesPerStroke() {
+		return 3 * (ARRAY_HEADER + 4 * POINTS);
+	}
+
+	private void draw(Stroke[] strokes) {
+		Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		RectF clip = new RectF(0, 0, 256, 256);
+		for (Stroke stroke : strokes)
+			stroke.draw(canvas, clip);
+		bitmap.recycle();
+	}
+
+	public void testStoredStrokes() {
+		long before = usedMemory();
+		LegacyStroke[] legacy = makeLegacyStrokes();
+		long legacyBytes = (usedMemory() - before) / STROKES;
+		assertEquals(POINTS, legacy[STROKES - 1].N);  // keep the strokes alive
+		legacy = null;
+
+		before = usedMemory();
+		Stroke[] strokes = makeStrokes();
+		long strokeBytes = (usedMemory() - before) / STROKES;
+		assertEquals(POINTS, strokes[STROKES - 1].N);
+
+		Log.i(TAG, String.format("Stored, %d strokes of %d points: %d bytes per stroke, before %d bytes per stroke, "
+				+ "%d bytes per stroke are point data", STROKES, POINTS, strokeBytes, legacyBytes, pointBytesPerStroke()));
+		long overhead = strokeBytes - pointBytesPerStroke();
+		assertTrue("Stroke overhead is " + overhead + " bytes", overhead < MAX_OVERHEAD);
+		assertTrue("Strokes take " + strokeBytes + " bytes, before " + legacyBytes, strokeBytes < legacyBytes);
+	}
+
+	public void testDrawnStrokes() {
+		long before = usedMemory();
+		LegacyStroke[] legacy = makeLegacyStrokes();
+		for (LegacyStroke stroke : legacy)
+			stroke.draw();
+		long legacyBytes = (usedMemory() - before) / STROKES;
+		assertEquals(POINTS, legacy[STROKES - 1].N);
+		legacy = null;
+
+		before = usedMemory();
+		Stroke[] strokes = makeStrokes();
+		long storedBytes = (usedMemory() - before) / STROKES;
+		draw(strokes);
+		long drawnBytes = (usedMemory() - before) / STROKES;
+		for (Stroke stroke : strokes)
+			stroke.releaseDrawingCache();
+		long releasedBytes = (usedMemory() - before) / STROKES;
+		assertEquals(POINTS, strokes[STROKES - 1].N);
+
+		long cacheBytes = drawnBytes - storedBytes;
+		Log.i(TAG, String.format("Drawn, %d strokes of %d points: %d bytes per stroke, of which %d bytes are "
+				+ "the drawing cache, %d bytes after releasing it, before %d bytes per stroke",
+				STROKES, POINTS, drawnBytes, cacheBytes, releasedBytes, legacyBytes));
+		assertTrue("Drawing cache is " + cacheBytes + " bytes per stroke", cacheBytes < MAX_CACHE_PER_POINT * POINTS);
+		assertTrue("Drawn strokes take " + drawnBytes + " bytes, before " + legacyBytes, drawnBytes < legacyBytes);
+		assertTrue("Released strokes take " + releasedBytes + " bytes", releasedBytes - storedBytes < cacheBytes / 4);
+	}
+}
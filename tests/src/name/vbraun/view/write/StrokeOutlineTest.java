@@ -0,0 +1,74 @@
+package name.vbraun.view.write;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+/**
+ * The filled outline of fountain pen strokes
+ *
+ * Draws strokes that reverse their direction into a bitmap and checks that
+ * the retraced part is inked. A single closed outline around a cusp crosses
+ * itself, and the nonzero fill leaves a hole where the two legs cancel.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeOutlineTest extends TestCase {
+
+	private static final int SIZE = 400;
+	private static final int POINTS = 41;
+
+	private Bitmap bitmap;
+	private Canvas canvas;
+	private Transformation transform;
+
+	@Override
+	protected void setUp() {
+		bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+		canvas = new Canvas(bitmap);
+		transform = new Transformation(0, 0, SIZE);
+	}
+
+	@Override
+	protected void tearDown() {
+		bitmap.recycle();
+	}
+
+	// to the right along y = 0.5 and back, the return leg is shifted by dy per point
+	private Stroke makeRetracedStroke(float dy) {
+		float[] x = new float[POINTS];
+		float[] y = new float[POINTS];
+		float[] p = new float[POINTS];
+		int turn = POINTS / 2;
+		for (int i = 0; i < POINTS; i++) {
+			int j = (i <= turn) ? i : 2 * turn - i;
+			x[i] = 0.1f + 0.02f * j;
+			y[i] = 0.5f + dy * Math.max(0, i - turn);
+			p[i] = 1f;
+		}
+		return new Stroke(Tool.FOUNTAINPEN, 20, Color.BLACK, transform, x, y, p, 0, POINTS);
+	}
+
+	private void assertInked(Stroke stroke) {
+		bitmap.eraseColor(Color.WHITE);
+		stroke.draw(canvas, new RectF(0, 0, SIZE, SIZE), transform);
+		// along the first leg, up to the turning point at the center
+		int row = SIZE / 2;
+		for (int column = SIZE / 10; column < SIZE / 2; column++)
+			assertEquals("Not inked at " + column + "," + row, Color.BLACK, bitmap.getPixel(column, row));
+	}
+
+	public void testRetraced() {
+		assertInked(makeRetracedStroke(0f));
+	}
+
+	public void testSharpTurn() {
+		assertInked(makeRetracedStroke(0.0005f));
+	}
+}
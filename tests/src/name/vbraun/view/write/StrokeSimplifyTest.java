@@ -0,0 +1,208 @@
+package name.vbraun.view.write;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import name.vbraun.view.write.Graphics.Tool;
+
+import android.os.Debug;
+import android.util.FloatMath;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Ramer-Douglas-Peucker simplification of the stroke points
+ *
+ * Compares {@link Stroke#simplify} with the original implementation on
+ * linked lists of boxed integers, which is kept here as the reference. Both
+ * must keep exactly the same points. Also counts the objects allocated by
+ * both, the log tag is StrokeSimplifyTest.
+ *
+ * @author vbraun
+ *
+ */
+public class StrokeSimplifyTest extends TestCase {
+	private static final String TAG = "StrokeSimplifyTest";
+
+	private static final int STROKES = 1000;
+	private static final int MAX_POINTS = 500;
+
+	private static final float[] TOLERANCES = { Stroke.EPSILON, 4 * Stroke.EPSILON, 16 * Stroke.EPSILON };
+
+	private float[] x, y, p;
+	private int n;
+
+	private void makeStroke(Random random) {
+		n = 2 + random.nextInt(MAX_POINTS - 1);
+		x = new float[n];
+		y = new float[n];
+		p = new float[n];
+		float px = random.nextFloat(), py = random.nextFloat(), pp = 0.5f;
+		// a mix of straight segments, where most points go, and wiggles
+		float dx = 0, dy = 0;
+		for (int i = 0; i < n; i++) {
+			if (random.nextInt(10) == 0) {
+				dx = (random.nextFloat() - 0.5f) * 0.002f;
+				dy = (random.nextFloat() - 0.5f) * 0.002f;
+			}
+			px += dx + (random.nextFloat() - 0.5f) * 0.0002f;
+			py += dy + (random.nextFloat() - 0.5f) * 0.0002f;
+			pp = Math.max(0f, Math.min(1f, pp + (random.nextFloat() - 0.5f) * 0.05f));
+			x[i] = px;
+			y[i] = py;
+			p[i] = pp;
+		}
+		// repeated points, as sent by the digitizer while the pen rests
+		if (n > 10)
+			for (int i = 0; i < 3; i++) {
+				int j = random.nextInt(n - 1);
+				x[j + 1] = x[j];
+				y[j + 1] = y[j];
+			}
+	}
+
+	public void testSameAsReference() {
+		Random random = new Random(1);
+		boolean[] keep = new boolean[MAX_POINTS];
+		long kept = 0, total = 0;
+		for (int s = 0; s < STROKES; s++) {
+			makeStroke(random);
+			for (Tool tool : new Tool[] { Tool.FOUNTAINPEN, Tool.PENCIL })
+				for (float epsilon : TOLERANCES) {
+					LinkedList<Integer> expected = referenceSimplify(x, y, p, tool, n, epsilon);
+					int count = Stroke.simplify(x, y, p, tool, 0, n - 1, keep, epsilon);
+					assertEquals(expected.size(), count);
+					int k = 0;
+					for (Integer i : expected) {
+						for (; k < i; k++)
+							assertFalse("Point " + k + " of " + n + " kept", keep[k]);
+						assertTrue("Point " + k + " of " + n + " dropped", keep[k]);
+						k++;
+					}
+					assertEquals(n, k);
+					kept += count;
+					total += n;
+				}
+		}
+		Log.i(TAG, String.format("Kept %d of %d points", kept, total));
+	}
+
+	public void testAllocations() {
+		Random random = new Random(2);
+		boolean[] keep = new boolean[MAX_POINTS];
+		makeStroke(random);
+		// warm up the thread-local scratch space
+		Stroke.simplify(x, y, p, Tool.FOUNTAINPEN, 0, n - 1, keep, Stroke.EPSILON);
+		referenceSimplify(x, y, p, Tool.FOUNTAINPEN, n, Stroke.EPSILON);
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			for (int i = 0; i < 100; i++)
+				Stroke.simplify(x, y, p, Tool.FOUNTAINPEN, 0, n - 1, keep, Stroke.EPSILON);
+			int allocations = Debug.getThreadAllocCount();
+
+			Debug.resetThreadAllocCount();
+			for (int i = 0; i < 100; i++)
+				referenceSimplify(x, y, p, Tool.FOUNTAINPEN, n, Stroke.EPSILON);
+			int referenceAllocations = Debug.getThreadAllocCount();
+
+			Log.i(TAG, String.format("100 times %d points: %d allocations, reference %d allocations",
+					n, allocations, referenceAllocations));
+			assertEquals(0, allocations);
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	// The implementation before the scratch arrays, adapted to static arrays
+
+	private static Integer referenceFindMidPoint(float[] position_x, float[] position_y, float[] pressure,
+			Tool tool, Integer point0, Integer point1, float epsilon) {
+		float x0 = position_x[point0];
+		float y0 = position_y[point0];
+		float p0 = pressure[point0];
+		float x1 = position_x[point1];
+		float y1 = position_y[point1];
+		float p1 = pressure[point1];
+
+		// the line has the equation ax + by + c = 0
+		float a = y1 - y0;
+		float b = x0 - x1;
+		float c = x1 * y0 - x0 * y1;
+		float normal_abs = FloatMath.sqrt(a * a + b * b);
+
+		// distance between p0 and p1
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float distance_01 = FloatMath.sqrt(dx * dx + dy * dy);
+
+		// average pressure is the 3rd dimension (line thickness is determined
+		// by it)
+		float p_avg = (p0 + p1) / 2;
+
+		int mid = -1;
+		float distance_max = 0;
+		for (int i = point0 + 1; i < point1; i++) {
+			float x = position_x[i];
+			float y = position_y[i];
+			float p = pressure[i];
+			float distance = 0;
+
+			// distance in pressure
+			if (tool == Tool.FOUNTAINPEN) {
+				float p_0_avg = (p0 + p) / 2;
+				float p_1_avg = (p1 + p) / 2;
+				float pressure_difference = Math.max(Math.abs(p_0_avg - p_avg), Math.abs(p_1_avg - p_avg))
+						* Stroke.LINE_THICKNESS_SCALE * 3;
+				distance = Math.max(distance, pressure_difference);
+			}
+
+			// distance for degenerate triangles where midpoint is far away from
+			// p0, p1
+			float dx0 = x - x0;
+			float dy0 = y - y0;
+			float distance_p0 = FloatMath.sqrt(dx0 * dx0 + dy0 * dy0);
+			distance = Math.max(distance, distance_p0 - distance_01);
+			float dx1 = x - x1;
+			float dy1 = y - y1;
+			float distance_p1 = FloatMath.sqrt(dx1 * dx1 + dy1 * dy1);
+			distance = Math.max(distance, distance_p1 - distance_01);
+
+			// perpendicular distance
+			if (distance_01 > epsilon) {
+				float d = Math.abs(a * x + b * y + c) / normal_abs;
+				distance = Math.max(distance, d);
+			}
+
+			if (distance > distance_max) {
+				distance_max = distance;
+				mid = i;
+			}
+		}
+		if (distance_max < epsilon || mid == -1)
+			return null;
+		return mid;
+	}
+
+	private static LinkedList<Integer> referenceSimplify(float[] position_x, float[] position_y,
+			float[] pressure, Tool tool, int N, float epsilon) {
+		LinkedList<Integer> simplified_points = new LinkedList<Integer>();
+		simplified_points.add(0);
+		LinkedList<Integer> endpoint = new LinkedList<Integer>();
+		endpoint.addLast(N - 1);
+		Integer point0 = 0;
+		while (!endpoint.isEmpty()) {
+			Integer point1 = endpoint.getLast();
+			Integer mid = referenceFindMidPoint(position_x, position_y, pressure, tool, point0, point1, epsilon);
+			if (mid == null) {
+				simplified_points.add(point1);
+				point0 = point1;
+				endpoint.removeLast();
+			} else
+				endpoint.addLast(mid);
+		}
+		return simplified_points;
+	}
+}